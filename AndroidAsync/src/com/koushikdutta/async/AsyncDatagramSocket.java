@@ -1,8 +1,16 @@
 package com.koushikdutta.async;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 public class AsyncDatagramSocket extends AsyncNetworkSocket {
     public void disconnect() throws IOException {
@@ -22,6 +30,53 @@ public class AsyncDatagramSocket extends AsyncNetworkSocket {
         ((DatagramChannelWrapper)getChannel()).mChannel.connect(address);
     }
 
+    /**
+     * Receive the datagrams sent to a multicast group on the given interface.
+     */
+    public void joinGroup(InetAddress group, NetworkInterface networkInterface) throws IOException {
+        try {
+            DatagramChannel channel = ((DatagramChannelWrapper)getChannel()).mChannel;
+            // DatagramChannel.join is API 24, look it up rather than link against it.
+            try {
+                Method join = DatagramChannel.class.getMethod("join", InetAddress.class, NetworkInterface.class);
+                join.invoke(channel, group, networkInterface);
+                return;
+            }
+            catch (NoSuchMethodException e) {
+            }
+            // older platforms join through the socket impl, like Dns.multicastLookup.
+            Field field = DatagramSocket.class.getDeclaredField("impl");
+            field.setAccessible(true);
+            Object impl = field.get(channel.socket());
+            for (Class<?> c = impl.getClass(); c != null; c = c.getSuperclass()) {
+                Method join;
+                try {
+                    join = c.getDeclaredMethod("joinGroup", SocketAddress.class, NetworkInterface.class);
+                }
+                catch (NoSuchMethodException e) {
+                    continue;
+                }
+                join.setAccessible(true);
+                join.invoke(impl, new InetSocketAddress(group, 0), networkInterface);
+                return;
+            }
+            throw new IOException("multicast join is not supported");
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            throw new IOException(cause);
+        }
+        catch (Throwable e) {
+            // including LinkageErrors on platforms missing any of the above
+            throw new IOException(e);
+        }
+    }
+
     public void send(final String host, final int port, final ByteBuffer buffer) {
         if (getServer().getAffinity() != Thread.currentThread()) {
             getServer().run(new Runnable() {
@@ -55,7 +110,9 @@ public class AsyncDatagramSocket extends AsyncNetworkSocket {
         }
 
         try {
-            int sent = ((DatagramChannelWrapper)getChannel()).mChannel.send(buffer, new InetSocketAddress(address.getHostName(), address.getPort()));
+            // an address that is already resolved is sent to as is, getHostName would do a reverse lookup
+            InetSocketAddress target = address.isUnresolved() ? new InetSocketAddress(address.getHostName(), address.getPort()) : address;
+            int sent = ((DatagramChannelWrapper)getChannel()).mChannel.send(buffer, target);
         }
         catch (IOException e) {
 //            Log.e("SEND", "send error", e);
@@ -1,11 +1,13 @@
 package com.koushikdutta.async;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.callback.WritableCallback;
 import com.koushikdutta.async.util.Allocator;
+import com.koushikdutta.async.util.MpscQueue;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -14,8 +16,10 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AsyncNetworkSocket implements AsyncSocket {
     AsyncNetworkSocket() {
@@ -33,7 +37,7 @@ public class AsyncNetworkSocket implements AsyncSocket {
     InetSocketAddress socketAddress;
     void attach(SocketChannel channel, InetSocketAddress socketAddress) throws IOException {
         this.socketAddress = socketAddress;
-        allocator = new Allocator();
+        allocator = new Allocator().setDirect(directBuffers);
         mChannel = new SocketChannelWrapper(channel);
     }
     
@@ -41,7 +45,26 @@ public class AsyncNetworkSocket implements AsyncSocket {
         mChannel = new DatagramChannelWrapper(channel);
         // keep udp at roughly the mtu, which is 1540 or something
         // letting it grow freaks out nio apparently.
-        allocator = new Allocator(8192);
+        allocator = new Allocator(8192).setDirect(directBuffers);
+    }
+
+    private boolean directBuffers;
+    /**
+     * Read into pooled direct buffers, so the channel fills them without a copy through the
+     * JDK's temporary direct buffers. A TLS socket unwraps straight from them and wraps its
+     * output into them, which saves a copy each way. Otherwise what was read is copied into
+     * pooled heap buffers before it is emitted, so data callbacks still get a backing array,
+     * and plain reads gain nothing over heap buffers.
+     * Defaults to AsyncServer.isDirectBuffers.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+        if (allocator != null)
+            allocator.setDirect(directBuffers);
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
     }
     
     ChannelWrapper getChannel() {
@@ -49,6 +72,17 @@ public class AsyncNetworkSocket implements AsyncSocket {
     }
     
     public void onDataWritable() {
+        if (pendingWrites.hasRemaining()) {
+            flushPendingWrites();
+            // keep waiting for the socket to drain before asking the writer for more
+            if (pendingWrites.hasRemaining())
+                return;
+        }
+        if (transferFile != null) {
+            continueTransfer();
+            if (transferFile != null)
+                return;
+        }
         if (!mChannel.isChunked()) {
             // turn write off
             mKey.interestOps(~SelectionKey.OP_WRITE & mKey.interestOps());
@@ -64,11 +98,80 @@ public class AsyncNetworkSocket implements AsyncSocket {
     void setup(AsyncServer server, SelectionKey key) {
         mServer = server;
         mKey = key;
+        server.mConnectionCount.incrementAndGet();
+        if (server.isDirectBuffers())
+            setDirectBuffers(true);
     }
     
+    /**
+     * When enabled, write never blocks the calling thread. Writes from other threads are
+     * queued and the affinity thread gathers everything queued into a single vectored write.
+     * In this mode the socket takes ownership of all the data it is handed, buffering what
+     * the channel does not accept, so callers should throttle using the writeable callback.
+     */
+    public void setNonBlockingWrites(boolean nonBlockingWrites) {
+        this.nonBlockingWrites = nonBlockingWrites;
+    }
+
+    public boolean isNonBlockingWrites() {
+        return nonBlockingWrites;
+    }
+
+    private volatile boolean nonBlockingWrites;
+    private final MpscQueue<ByteBufferList> writeQueue = new MpscQueue<>();
+    private final AtomicBoolean writeDrainScheduled = new AtomicBoolean();
+    // owned by the affinity thread
+    private final ByteBufferList pendingWrites = new ByteBufferList();
+    private final Runnable drainWrites = new Runnable() {
+        @Override
+        public void run() {
+            writeDrainScheduled.set(false);
+            drainWriteQueue();
+            flushPendingWrites();
+        }
+    };
+
+    private void drainWriteQueue() {
+        ByteBufferList queued;
+        while ((queued = writeQueue.poll()) != null) {
+            queued.get(pendingWrites);
+        }
+    }
+
+    private void flushPendingWrites() {
+        if (!mChannel.isConnected()) {
+            pendingWrites.recycle();
+            return;
+        }
+        if (!pendingWrites.hasRemaining())
+            return;
+
+        try {
+            int before = pendingWrites.remaining();
+            ByteBuffer[] arr = pendingWrites.getAllArray();
+            mChannel.write(arr);
+            pendingWrites.addAll(arr);
+            handleRemaining(pendingWrites.remaining());
+            mServer.onDataSent(before - pendingWrites.remaining());
+        }
+        catch (IOException e) {
+            closeInternal();
+            reportEndPending(e);
+            reportClose(e);
+        }
+    }
+
     @Override
     public void write(final ByteBufferList list) {
         if (mServer.getAffinity() != Thread.currentThread()) {
+            if (nonBlockingWrites) {
+                ByteBufferList queued = new ByteBufferList();
+                list.get(queued);
+                writeQueue.offer(queued);
+                if (writeDrainScheduled.compareAndSet(false, true))
+                    mServer.post(drainWrites);
+                return;
+            }
             mServer.run(new Runnable() {
                 @Override
                 public void run() {
@@ -81,6 +184,14 @@ public class AsyncNetworkSocket implements AsyncSocket {
             return;
         }
 
+        if (nonBlockingWrites) {
+            // queue behind anything written from other threads to keep ordering.
+            drainWriteQueue();
+            list.get(pendingWrites);
+            flushPendingWrites();
+            return;
+        }
+
         try {
             int before = list.remaining();
             ByteBuffer[] arr = list.getAllArray();
@@ -96,6 +207,93 @@ public class AsyncNetworkSocket implements AsyncSocket {
         }
     }
     
+    private FileChannel transferFile;
+    private long transferPosition;
+    private long transferRemaining;
+    private CompletedCallback transferCallback;
+
+    /**
+     * Send count bytes of the file, starting at position, with FileChannel.transferTo so the
+     * data is copied by the kernel rather than through the Java heap. The transfer is driven
+     * by writable events and the writeable callback is not invoked until it completes.
+     * Nothing else should be written to the socket until the callback is invoked.
+     * The file channel is not closed. Only supported on stream sockets.
+     */
+    public void sendFile(final FileChannel file, final long position, final long count, final CompletedCallback callback) {
+        if (mServer.getAffinity() != Thread.currentThread()) {
+            mServer.run(new Runnable() {
+                @Override
+                public void run() {
+                    sendFile(file, position, count, callback);
+                }
+            });
+            return;
+        }
+        if (!(mChannel instanceof SocketChannelWrapper)) {
+            callback.onCompleted(new IOException("sendFile is only supported on stream sockets"));
+            return;
+        }
+        if (transferFile != null) {
+            callback.onCompleted(new IOException("sendFile already in progress"));
+            return;
+        }
+        if (!mChannel.isConnected()) {
+            callback.onCompleted(new IOException("socket is not connected"));
+            return;
+        }
+
+        transferFile = file;
+        transferPosition = position;
+        transferRemaining = count;
+        transferCallback = callback;
+
+        // anything already written goes out first.
+        drainWriteQueue();
+        flushPendingWrites();
+        if (transferFile != null && !pendingWrites.hasRemaining())
+            continueTransfer();
+    }
+
+    private void continueTransfer() {
+        try {
+            SocketChannelWrapper socket = (SocketChannelWrapper)mChannel;
+            long sent = 0;
+            while (transferRemaining > 0) {
+                long transferred = socket.transferFrom(transferFile, transferPosition, transferRemaining);
+                if (transferred <= 0)
+                    break;
+                transferPosition += transferred;
+                transferRemaining -= transferred;
+                sent += transferred;
+            }
+            // a single transfer can run past what an int holds, so report it in int sized pieces.
+            while (sent > 0) {
+                int reported = (int)Math.min(sent, Integer.MAX_VALUE);
+                mServer.onDataSent(reported);
+                sent -= reported;
+            }
+            if (transferRemaining > 0 && transferPosition >= transferFile.size())
+                throw new IOException("file ended before transfer completed");
+            handleRemaining(transferRemaining > 0 ? 1 : 0);
+            if (transferRemaining == 0)
+                completeTransfer(null);
+        }
+        catch (IOException e) {
+            closeInternal();
+            completeTransfer(e);
+            reportEndPending(e);
+            reportClose(e);
+        }
+    }
+
+    private void completeTransfer(Exception e) {
+        CompletedCallback callback = transferCallback;
+        transferFile = null;
+        transferCallback = null;
+        if (callback != null)
+            callback.onCompleted(e);
+    }
+
     private void handleRemaining(int remaining) throws IOException {
         if (!mKey.isValid())
             throw new IOException(new CancelledKeyException());
@@ -114,13 +312,52 @@ public class AsyncNetworkSocket implements AsyncSocket {
 //    private ByteBuffer[] buffers = new ByteBuffer[8];
 
     Allocator allocator;
+
+    /**
+     * Set the number of bytes this socket may read per readable event. When set, reads scatter
+     * into several pooled buffers and repeat until the socket is drained, the budget is spent,
+     * or the consumer pauses, before yielding to other sockets on the loop.
+     * 0, the default, reads once into a single buffer. Applies to stream sockets only.
+     */
+    public void setReadBudget(int readBudget) {
+        this.readBudget = Math.max(0, readBudget);
+    }
+
+    public int getReadBudget() {
+        return readBudget;
+    }
+
+    private int readBudget;
+    private static final int SCATTER_BUFFERS = 4;
+    private ByteBuffer[] scatterBuffers;
+    // waiting in the server backlog to emit the rest of pending.
+    private boolean requeued;
+
+    // falls back to the server's FairnessPolicy.
+    private int getEffectiveReadBudget() {
+        if (mChannel instanceof DatagramChannelWrapper)
+            return 0;
+        if (readBudget > 0)
+            return readBudget;
+        return mServer.mFairness.keyByteBudget;
+    }
+
     int onReadable() {
+        // the backlog pass will get to this socket.
+        if (requeued)
+            return 0;
         spitPending();
         // even if the socket is paused,
         // it may end up getting a queued readable event if it is
         // already in the selector's ready queue.
         if (mPaused)
             return 0;
+        // out of budget for this pass.
+        if (pending.hasRemaining())
+            return 0;
+        int budget = getEffectiveReadBudget();
+        if (budget > 0)
+            return onReadableScatter(budget);
         int total = 0;
         boolean closed = false;
 
@@ -156,8 +393,8 @@ public class AsyncNetworkSocket implements AsyncSocket {
 //                    b.flip();
 //                    pending.add(b);
 //                }
-            pending.add(b);
-            Util.emitAllData(this, pending);
+            pending.add(toHeap(b));
+            spitPending();
         }
         else {
             ByteBufferList.reclaim(b);
@@ -171,11 +408,97 @@ public class AsyncNetworkSocket implements AsyncSocket {
         return total;
     }
     
+    // set by a consumer that takes direct buffers and never lets them out, the tls wrapper.
+    boolean directConsumer;
+
+    // other consumers expect a backing array, so data read into a direct buffer is copied out.
+    private ByteBuffer toHeap(ByteBuffer b) {
+        if (directConsumer || !b.isDirect() || !b.hasRemaining())
+            return b;
+        ByteBuffer heap = ByteBufferList.obtain(b.remaining());
+        heap.put(b);
+        heap.flip();
+        ByteBufferList.reclaim(b);
+        return heap;
+    }
+
+    private int onReadableScatter(int budget) {
+        if (scatterBuffers == null)
+            scatterBuffers = new ByteBuffer[SCATTER_BUFFERS];
+        int total = 0;
+        boolean closed = false;
+        boolean drained = false;
+        long timeBudget = mServer.mFairness.keyTimeBudget;
+        long start = timeBudget > 0 ? SystemClock.elapsedRealtime() : 0;
+
+        while (total < budget && !mPaused && !pending.hasRemaining()) {
+            if (timeBudget > 0 && SystemClock.elapsedRealtime() - start >= timeBudget)
+                break;
+
+            long capacity = 0;
+            for (int i = 0; i < scatterBuffers.length; i++) {
+                scatterBuffers[i] = allocator.allocate();
+                capacity += scatterBuffers[i].remaining();
+            }
+
+            long read;
+            try {
+                read = mChannel.read(scatterBuffers);
+            }
+            catch (Exception e) {
+                read = -1;
+                closeInternal();
+                reportEndPending(e);
+                reportClose(e);
+            }
+
+            for (int i = 0; i < scatterBuffers.length; i++) {
+                ByteBuffer b = scatterBuffers[i];
+                scatterBuffers[i] = null;
+                b.flip();
+                // empty buffers are reclaimed by add
+                pending.add(toHeap(b));
+            }
+
+            if (read < 0) {
+                closeInternal();
+                closed = true;
+                break;
+            }
+
+            total += read;
+            if (read > 0) {
+                // size each buffer off the average fill.
+                allocator.track(read / scatterBuffers.length);
+                spitPending();
+            }
+
+            // a short read means the socket is drained.
+            if (read < capacity) {
+                drained = true;
+                break;
+            }
+        }
+
+        // the socket still has data, the selector will report it again next pass.
+        if (!closed && !drained && !mPaused)
+            mServer.mIterationOverBudget = true;
+
+        if (closed) {
+            reportEndPending(null);
+            reportClose(null);
+        }
+
+        return total;
+    }
+
     boolean closeReported;
     protected void reportClose(Exception e) {
         if (closeReported)
             return;
         closeReported = true;
+        if (transferCallback != null)
+            completeTransfer(e != null ? e : new IOException("socket closed during sendFile"));
         if (mClosedHander != null) {
             mClosedHander.onCompleted(e);
             mClosedHander = null;
@@ -188,7 +511,12 @@ public class AsyncNetworkSocket implements AsyncSocket {
         reportClose(null);
     }
 
+    private boolean closedInternal;
     private void closeInternal() {
+        if (!closedInternal) {
+            closedInternal = true;
+            mServer.mConnectionCount.decrementAndGet();
+        }
         mKey.cancel();
         try {
             mChannel.close();
@@ -291,9 +619,32 @@ public class AsyncNetworkSocket implements AsyncSocket {
     }
     
     private void spitPending() {
-        if (pending.hasRemaining()) {
+        if (!pending.hasRemaining())
+            return;
+        int budget = getEffectiveReadBudget();
+        if (budget <= 0 || pending.remaining() <= budget) {
             Util.emitAllData(this, pending);
+            return;
+        }
+
+        // emit a budget's worth, and come back for the rest after the other ready sockets.
+        ByteBufferList slice = pending.get(budget);
+        Util.emitAllData(this, slice);
+        if (slice.hasRemaining()) {
+            slice.add(pending);
+            pending = slice;
         }
+        if (pending.hasRemaining() && !mPaused && !requeued) {
+            requeued = true;
+            mServer.requeue(this);
+        }
+    }
+
+    void onBacklog() {
+        requeued = false;
+        spitPending();
+        if (!isOpen())
+            reportEndPending(mPendingEndException);
     }
     
     @Override
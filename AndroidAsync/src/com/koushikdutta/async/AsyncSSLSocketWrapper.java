@@ -261,6 +261,9 @@ public class AsyncSSLSocketWrapper implements AsyncSocketWrapper, AsyncSSLSocket
         });
 
         mSocket.setDataCallback(dataCallback);
+        // the engine unwraps direct buffers as they are, and only heap buffers come out
+        if (mSocket instanceof AsyncNetworkSocket)
+            ((AsyncNetworkSocket)mSocket).directConsumer = true;
     }
 
     final DataCallback dataCallback = new DataCallback() {
@@ -447,6 +450,13 @@ public class AsyncSSLSocketWrapper implements AsyncSocketWrapper, AsyncSSLSocket
         return alloc;
     }
 
+    // the wrapped output only ever goes to the channel, so it can be direct when the socket is.
+    private ByteBuffer obtainWriteBuffer(int size) {
+        if (mSocket instanceof AsyncNetworkSocket && ((AsyncNetworkSocket)mSocket).isDirectBuffers())
+            return ByteBufferList.obtainDirect(size);
+        return ByteBufferList.obtain(size);
+    }
+
     ByteBufferList writeList = new ByteBufferList();
     @Override
     public void write(ByteBufferList bb) {
@@ -457,7 +467,7 @@ public class AsyncSSLSocketWrapper implements AsyncSocketWrapper, AsyncSSLSocket
         mWrapping = true;
         int remaining;
         SSLEngineResult res = null;
-        ByteBuffer writeBuf = ByteBufferList.obtain(calculateAlloc(bb.remaining()));
+        ByteBuffer writeBuf = obtainWriteBuffer(calculateAlloc(bb.remaining()));
         do {
             // if the handshake is finished, don't send
             // 0 bytes of data, since that makes the ssl connection die.
@@ -476,11 +486,11 @@ public class AsyncSSLSocketWrapper implements AsyncSocketWrapper, AsyncSSLSocket
                 int previousCapacity = writeBuf.capacity();
                 writeBuf = null;
                 if (res.getStatus() == Status.BUFFER_OVERFLOW) {
-                    writeBuf = ByteBufferList.obtain(previousCapacity * 2);
+                    writeBuf = obtainWriteBuffer(previousCapacity * 2);
                     remaining = -1;
                 }
                 else {
-                    writeBuf = ByteBufferList.obtain(calculateAlloc(bb.remaining()));
+                    writeBuf = obtainWriteBuffer(calculateAlloc(bb.remaining()));
                     handleHandshakeStatus(res.getHandshakeStatus());
                 }
             }
@@ -10,12 +10,15 @@ import com.koushikdutta.async.callback.ConnectCallback;
 import com.koushikdutta.async.callback.ListenCallback;
 import com.koushikdutta.async.callback.SocketCreateCallback;
 import com.koushikdutta.async.callback.ValueFunction;
+import com.koushikdutta.async.dns.DnsResolver;
 import com.koushikdutta.async.future.Cancellable;
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
 import com.koushikdutta.async.future.SimpleCancellable;
 import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.util.MpscQueue;
 import com.koushikdutta.async.util.StreamUtility;
+import com.koushikdutta.async.util.TimerWheel;
 
 import java.io.IOException;
 import java.net.Inet4Address;
@@ -31,9 +34,9 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -42,6 +45,7 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public class AsyncServer {
     public static final String LOGTAG = "NIO";
@@ -103,7 +107,7 @@ public class AsyncServer {
         return mInstance;
     }
 
-    private SelectorWrapper mSelector;
+    private volatile SelectorWrapper mSelector;
 
     public boolean isRunning() {
         return mSelector != null;
@@ -120,18 +124,7 @@ public class AsyncServer {
         mName = name;
     }
 
-    private static ExecutorService synchronousWorkers = newSynchronousWorkers("AsyncServer-worker-");
-    private static void wakeup(final SelectorWrapper selector) {
-        synchronousWorkers.execute(() -> {
-            try {
-                selector.wakeupOnce();
-            }
-            catch (Exception e) {
-            }
-        });
-    }
-
-    boolean killed;
+    volatile boolean killed;
     public void kill() {
         synchronized (this) {
             killed = true;
@@ -139,36 +132,42 @@ public class AsyncServer {
         stop(false);
     }
 
-    int postCounter = 0;
     public Cancellable postDelayed(Runnable runnable, long delay) {
+        if (delay == 0) {
+            // lock free path for posts to a running loop: the queue only
+            // refuses the offer once its loop has exited.
+            ScheduledQueue queue = mQueue;
+            SelectorWrapper selector = queue.selector;
+            if (selector != null && !killed) {
+                Scheduled s = new Scheduled(this, runnable, queue);
+                if (queue.offer(s)) {
+                    if (!isAffinityThread())
+                        selector.wakeupIfSleeping();
+                    return s;
+                }
+            }
+        }
+
         Scheduled s;
         synchronized (this) {
             if (killed)
                 return SimpleCancellable.CANCELLED;
 
-            // Calculate when to run this queue item:
-            // If there is a delay (non-zero), add it to the current time
-            // When delay is zero, ensure that this follows all other
-            // zero-delay queue items. This is done by setting the
-            // "time" to the queue size. This will make sure it is before
-            // all time-delayed queue items (for all real world scenarios)
-            // as it will always be less than the current time and also remain
-            // behind all other immediately run queue items.
-            long time;
+            // Delayed items go on the timer wheel.
+            // Zero-delay items run in FIFO order ahead of any expired timers,
+            // and negative delays (postImmediate) jump to the front of that line.
+            s = new Scheduled(this, runnable, mQueue);
             if (delay > 0)
-                time = SystemClock.elapsedRealtime() + delay;
+                mQueue.schedule(s, SystemClock.elapsedRealtime() + delay);
             else if (delay == 0)
-                time = postCounter++;
-            else if (mQueue.size() > 0)
-                time = Math.min(0, mQueue.peek().time - 1);
+                mQueue.offer(s);
             else
-                time = 0;
-            mQueue.add(s = new Scheduled(this, runnable, time));
+                mQueue.postFirst(s);
             // start the server up if necessary
             if (mSelector == null)
                 run();
             if (!isAffinityThread()) {
-                wakeup(mSelector);
+                mSelector.wakeupIfSleeping();
             }
         }
         return s;
@@ -215,17 +214,23 @@ public class AsyncServer {
         }
     }
 
-    private static class Scheduled implements Cancellable, Runnable {
-        // this constructor is only called when the async execution should not be preserved
-        // ie... AsyncServer.stop.
-        public Scheduled(AsyncServer server, Runnable runnable, long time) {
+    private static class Scheduled extends TimerWheel.Timer implements Cancellable, Runnable {
+        public Scheduled(AsyncServer server, Runnable runnable, ScheduledQueue queue) {
             this.server = server;
             this.runnable = runnable;
-            this.time = time;
+            this.queue = queue;
         }
         public AsyncServer server;
         public Runnable runnable;
-        public long time;
+        ScheduledQueue queue;
+        // 1 while waiting in one of the run queues (as opposed to the timer wheel).
+        // the loop claims it without the lock, so it is flipped with a CAS.
+        volatile int queued;
+        private static final AtomicIntegerFieldUpdater<Scheduled> QUEUED = AtomicIntegerFieldUpdater.newUpdater(Scheduled.class, "queued");
+
+        boolean claim() {
+            return QUEUED.compareAndSet(this, 1, 0);
+        }
 
         @Override
         public void run() {
@@ -235,7 +240,7 @@ public class AsyncServer {
         @Override
         public boolean isDone() {
             synchronized (server) {
-                return !cancelled && !server.mQueue.contains(this);
+                return !cancelled && queued == 0 && !isScheduled();
             }
         }
 
@@ -248,26 +253,103 @@ public class AsyncServer {
         @Override
         public boolean cancel() {
             synchronized (server) {
-                return cancelled = server.mQueue.remove(this);
+                return cancelled = queue.remove(this);
             }
         }
     }
-    PriorityQueue<Scheduled> mQueue = new PriorityQueue<Scheduled>(1, Scheduler.INSTANCE);
 
-    static class Scheduler implements Comparator<Scheduled> {
-        public static Scheduler INSTANCE = new Scheduler();
-        private Scheduler() {
+    private static class ScheduledQueue {
+        // set once the loop that drains this queue has started.
+        volatile SelectorWrapper selector;
+
+        // zero-delay posts from any thread.
+        MpscQueue<Scheduled> posted = new MpscQueue<>();
+
+        // everything below is guarded by the server lock.
+        ArrayDeque<Scheduled> immediate = new ArrayDeque<>();
+        ArrayDeque<Scheduled> expired = new ArrayDeque<>();
+        TimerWheel<Scheduled> timers = new TimerWheel<>(1024, SystemClock.elapsedRealtime());
+        volatile boolean hasImmediate;
+        // bumped on every locked insert, so the loop can tell whether its select timeout is stale.
+        volatile int version;
+        int seenVersion;
+
+        boolean offer(Scheduled s) {
+            s.queued = 1;
+            return posted.offer(s);
         }
-        @Override
-        public int compare(Scheduled s1, Scheduled s2) {
-            // keep the smaller ones at the head, so they get tossed out quicker
-            if (s1.time == s2.time)
-                return 0;
-            if (s1.time > s2.time)
-                return 1;
-            return -1;
+
+        void postFirst(Scheduled s) {
+            s.queued = 1;
+            immediate.addFirst(s);
+            hasImmediate = true;
+            version++;
+        }
+
+        void schedule(Scheduled s, long deadline) {
+            timers.add(s, deadline);
+            version++;
+        }
+
+        boolean remove(Scheduled s) {
+            // queued items are left in place and skipped when polled, which keeps removal O(1).
+            if (s.claim())
+                return true;
+            return timers.remove(s);
+        }
+
+        Scheduled pollImmediate() {
+            Scheduled s;
+            while ((s = immediate.poll()) != null) {
+                if (s.claim())
+                    return s;
+            }
+            hasImmediate = false;
+            return null;
+        }
+
+        Scheduled pollPosted() {
+            Scheduled s;
+            while ((s = posted.poll()) != null) {
+                if (s.claim())
+                    return s;
+            }
+            return null;
+        }
+
+        Scheduled pollExpired(long now) {
+            Scheduled s;
+            if (expired.isEmpty()) {
+                timers.expire(now, expired);
+                for (Scheduled e: expired) {
+                    e.queued = 1;
+                }
+            }
+            while ((s = expired.poll()) != null) {
+                if (s.claim())
+                    return s;
+            }
+            return null;
+        }
+
+        long getWait(long now) {
+            seenVersion = version;
+            if (timers.size() == 0)
+                return QUEUE_EMPTY;
+            // a zero timeout would make select block indefinitely.
+            return Math.max(1, timers.getWait(now));
+        }
+
+        // called by the loop after prepareToSleep, to catch anything that raced with it.
+        boolean hasPendingWork() {
+            return !posted.isEmpty() || version != seenVersion;
+        }
+
+        int size() {
+            return immediate.size() + expired.size() + timers.size();
         }
     }
+    ScheduledQueue mQueue = new ScheduledQueue();
 
 
     public void stop() {
@@ -287,27 +369,22 @@ public class AsyncServer {
             semaphore = new Semaphore(0);
 
             // post a shutdown and wait
-            mQueue.add(new Scheduled(this, new Runnable() {
+            mQueue.offer(new Scheduled(this, new Runnable() {
                 @Override
                 public void run() {
                     shutdownEverything(currentSelector);
                     semaphore.release();
                 }
-            }, 0));
-            synchronousWorkers.execute(() -> {
-                try {
-                    currentSelector.wakeupOnce();
-                }
-                catch (Exception e) {
-                }
-            });
+            }, mQueue));
+            currentSelector.wakeup();
 
             // force any existing connections to die
             shutdownKeys(currentSelector);
 
-            mQueue = new PriorityQueue<>(1, Scheduler.INSTANCE);
+            mQueue = new ScheduledQueue();
             mSelector = null;
             mAffinity = null;
+            mConnectionCount.set(0);
         }
         try {
             if (!isAffinityThread && wait)
@@ -326,7 +403,21 @@ public class AsyncServer {
     private static class ObjectHolder<T> {
         T held;
     }
+    private static class GroupListenCallback {
+        ListenCallback handler;
+        AsyncServerGroup group;
+
+        GroupListenCallback(ListenCallback handler, AsyncServerGroup group) {
+            this.handler = handler;
+            this.group = group;
+        }
+    }
+
     public AsyncServerSocket listen(final InetAddress host, final int port, final ListenCallback handler) {
+        return listen(host, port, handler, null);
+    }
+
+    AsyncServerSocket listen(final InetAddress host, final int port, final ListenCallback handler, final AsyncServerGroup group) {
         final ObjectHolder<AsyncServerSocket> holder = new ObjectHolder<>();
         run(new Runnable() {
             @Override
@@ -346,7 +437,10 @@ public class AsyncServer {
                         isa = new InetSocketAddress(host, port);
                     server.socket().bind(isa);
                     final SelectionKey key = wrapper.register(mSelector.getSelector());
-                    key.attach(handler);
+                    if (group != null)
+                        key.attach(new GroupListenCallback(handler, group));
+                    else
+                        key.attach(handler);
                     handler.onListening(holder.held = new AsyncServerSocket() {
                         @Override
                         public int getLocalPort() {
@@ -419,7 +513,10 @@ public class AsyncServer {
                     if (ckey != null)
                         ckey.cancel();
                     StreamUtility.closeQuietly(socket);
-                    cancel.setComplete(new RuntimeException(e));
+                    // eg, the network for the address family is unreachable
+                    RuntimeException ex = new RuntimeException(e);
+                    if (cancel.setComplete(ex))
+                        callback.onConnectCompleted(ex, null);
                 }
             }
         });
@@ -476,7 +573,29 @@ public class AsyncServer {
     };
 
     private static ExecutorService synchronousResolverWorkers = newSynchronousWorkers("AsyncServer-resolver-");
+
+    DnsResolver dnsResolver;
+    /**
+     * Resolve host names with the given resolver, on this server's thread, instead of
+     * with InetAddress.getAllByName on the resolver pool. Pass null to go back to the pool.
+     */
+    public void setDnsResolver(DnsResolver dnsResolver) {
+        this.dnsResolver = dnsResolver;
+    }
+
+    public DnsResolver getDnsResolver() {
+        return dnsResolver;
+    }
+
     public Future<InetAddress[]> getAllByName(final String host) {
+        DnsResolver resolver = dnsResolver;
+        if (resolver != null) {
+            return resolver.resolve(host)
+            .thenConvert(addresses -> {
+                Arrays.sort(addresses, ipSorter);
+                return addresses;
+            });
+        }
         final SimpleFuture<InetAddress[]> ret = new SimpleFuture<InetAddress[]>();
         synchronousResolverWorkers.execute(new Runnable() {
             @Override
@@ -509,6 +628,70 @@ public class AsyncServer {
         return getAllByName(host).thenConvert(addresses -> addresses[0]);
     }
 
+    FairnessPolicy mFairness = new FairnessPolicy();
+    public void setFairnessPolicy(FairnessPolicy fairness) {
+        if (fairness == null)
+            fairness = new FairnessPolicy();
+        mFairness = fairness;
+    }
+
+    public FairnessPolicy getFairnessPolicy() {
+        return mFairness;
+    }
+
+    // sockets that ran out of budget with data still pending, only touched on the affinity thread.
+    ArrayDeque<AsyncNetworkSocket> mBacklog = new ArrayDeque<>();
+    boolean mIterationOverBudget;
+    private volatile long mOverBudgetIterations;
+
+    /**
+     * The number of loop iterations in which a socket exhausted its budget, or which took
+     * longer than the loop time budget of the FairnessPolicy.
+     */
+    public long getOverBudgetIterations() {
+        return mOverBudgetIterations;
+    }
+
+    void requeue(AsyncNetworkSocket socket) {
+        mIterationOverBudget = true;
+        mBacklog.add(socket);
+    }
+
+    private volatile boolean directBuffers;
+    /**
+     * Have sockets created from now on read into pooled direct buffers.
+     * See AsyncNetworkSocket.setDirectBuffers.
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    AtomicInteger mConnectionCount = new AtomicInteger();
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    private void accepted(final SocketChannel sc, final ListenCallback serverHandler) {
+        SelectionKey ckey = null;
+        try {
+            ckey = sc.register(mSelector.getSelector(), SelectionKey.OP_READ);
+            AsyncNetworkSocket handler = new AsyncNetworkSocket();
+            handler.attach(sc, (InetSocketAddress)sc.socket().getRemoteSocketAddress());
+            handler.setup(this, ckey);
+            ckey.attach(handler);
+            serverHandler.onAccepted(handler);
+        }
+        catch (IOException e) {
+            StreamUtility.closeQuietly(sc);
+            if (ckey != null)
+                ckey.cancel();
+        }
+    }
+
     private void handleSocket(final AsyncNetworkSocket handler) throws ClosedChannelException {
         final ChannelWrapper sc = handler.getChannel();
         SelectionKey ckey = sc.register(mSelector.getSelector());
@@ -662,12 +845,13 @@ public class AsyncServer {
     Thread mAffinity;
     private void run() {
         final SelectorWrapper selector;
-        final PriorityQueue<Scheduled> queue;
+        final ScheduledQueue queue;
         synchronized (this) {
             if (mSelector == null) {
                 try {
                     selector = mSelector = new SelectorWrapper(SelectorProvider.provider().openSelector());
                     queue = mQueue;
+                    queue.selector = selector;
                 }
                 catch (IOException e) {
                     throw new RuntimeException("unable to create selector?", e);
@@ -712,7 +896,7 @@ public class AsyncServer {
         }
     }
 
-    private static void run(final AsyncServer server, final SelectorWrapper selector, final PriorityQueue<Scheduled> queue) {
+    private static void run(final AsyncServer server, final SelectorWrapper selector, final ScheduledQueue queue) {
 //        Log.i(LOGTAG, "****AsyncServer is starting.****");
         // at this point, this local queue and selector are owned
         // by this thread.
@@ -732,14 +916,18 @@ public class AsyncServer {
             }
             // see if we keep looping, this must be in a synchronized block since the queue is accessed.
             synchronized (server) {
-                if (selector.isOpen() && (selector.keys().size() > 0 || queue.size() > 0))
+                // closing the post queue fails if anything raced in, in which case keep going.
+                if (selector.isOpen() && (selector.keys().size() > 0 || queue.size() > 0 || !queue.posted.close(false)))
                     continue;
 
+                // anything posted from here on falls back to the locked path and a new loop.
+                queue.posted.close(true);
                 shutdownEverything(selector);
                 if (server.mSelector == selector) {
-                    server.mQueue = new PriorityQueue<Scheduled>(1, Scheduler.INSTANCE);
+                    server.mQueue = new ScheduledQueue();
                     server.mSelector = null;
                     server.mAffinity = null;
+                    server.mConnectionCount.set(0);
                 }
                 break;
             }
@@ -769,35 +957,36 @@ public class AsyncServer {
     }
 
     private static final long QUEUE_EMPTY = Long.MAX_VALUE;
-    private static long lockAndRunQueue(final AsyncServer server, final PriorityQueue<Scheduled> queue) {
-        long wait = QUEUE_EMPTY;
+    private static long lockAndRunQueue(final AsyncServer server, final ScheduledQueue queue) {
+        long wait;
 
-        // find the first item we can actually run
+        // run everything that is ready: postImmediate items first, then
+        // regular posts in FIFO order, then expired timers.
         while (true) {
             Scheduled run = null;
 
-            synchronized (server) {
-                long now = SystemClock.elapsedRealtime();
-
-                if (queue.size() > 0) {
-                    Scheduled s = queue.remove();
-                    if (s.time <= now) {
-                        run = s;
-                    }
-                    else {
-                        wait = s.time - now;
-                        queue.add(s);
-                    }
+            if (queue.hasImmediate) {
+                synchronized (server) {
+                    run = queue.pollImmediate();
                 }
             }
-
             if (run == null)
-                break;
+                run = queue.pollPosted();
+
+            if (run == null) {
+                synchronized (server) {
+                    long now = SystemClock.elapsedRealtime();
+                    run = queue.pollExpired(now);
+                    if (run == null) {
+                        wait = queue.getWait(now);
+                        break;
+                    }
+                }
+            }
 
             run.run();
         }
 
-        server.postCounter = 0;
         return wait;
     }
 
@@ -807,7 +996,7 @@ public class AsyncServer {
         }
     }
 
-    private static void runLoop(final AsyncServer server, final SelectorWrapper selector, final PriorityQueue<Scheduled> queue) throws AsyncSelectorException {
+    private static void runLoop(final AsyncServer server, final SelectorWrapper selector, final ScheduledQueue queue) throws AsyncSelectorException {
 //        Log.i(LOGTAG, "Keys: " + selector.keys().size());
         boolean needsSelect = true;
 
@@ -825,6 +1014,9 @@ public class AsyncServer {
 //                    Log.i(LOGTAG, "Shutting down. keys: " + selector.keys().size() + " keepRunning: " + keepRunning);
                         return;
                     }
+                    // sockets with a backlog are ready to go right away.
+                    if (!server.mBacklog.isEmpty())
+                        needsSelect = false;
                 }
                 else {
                     needsSelect = false;
@@ -832,7 +1024,13 @@ public class AsyncServer {
             }
 
             if (needsSelect) {
-                if (wait == QUEUE_EMPTY) {
+                // producers only wake the selector once this is set. anything posted
+                // before it is caught by the pending work check.
+                selector.prepareToSleep();
+                if (queue.hasPendingWork()) {
+                    selector.cancelSleep();
+                }
+                else if (wait == QUEUE_EMPTY) {
                     // wait until woken up
                     selector.select();
                 }
@@ -847,30 +1045,40 @@ public class AsyncServer {
         }
 
         // process whatever keys are ready
+        FairnessPolicy fairness = server.mFairness;
+        long start = fairness.loopTimeBudget > 0 ? SystemClock.elapsedRealtime() : 0;
         Set<SelectionKey> readyKeys = selector.selectedKeys();
         for (SelectionKey key: readyKeys) {
             try {
                 if (key.isAcceptable()) {
                     ServerSocketChannel nextReady = (ServerSocketChannel) key.channel();
                     SocketChannel sc = null;
-                    SelectionKey ckey = null;
                     try {
                         sc = nextReady.accept();
                         if (sc == null)
                             continue;
                         sc.configureBlocking(false);
-                        ckey = sc.register(selector.getSelector(), SelectionKey.OP_READ);
-                        ListenCallback serverHandler = (ListenCallback) key.attachment();
-                        AsyncNetworkSocket handler = new AsyncNetworkSocket();
-                        handler.attach(sc, (InetSocketAddress)sc.socket().getRemoteSocketAddress());
-                        handler.setup(server, ckey);
-                        ckey.attach(handler);
-                        serverHandler.onAccepted(handler);
                     }
                     catch (IOException e) {
                         StreamUtility.closeQuietly(sc);
-                        if (ckey != null)
-                            ckey.cancel();
+                        continue;
+                    }
+                    Object attachment = key.attachment();
+                    if (attachment instanceof GroupListenCallback) {
+                        // hand the socket off to a loop in the group. the channel is
+                        // registered with the target selector on its own thread.
+                        final GroupListenCallback groupHandler = (GroupListenCallback)attachment;
+                        final AsyncServer target = groupHandler.group.next();
+                        if (target != server) {
+                            final SocketChannel accepted = sc;
+                            if (target.post(() -> target.accepted(accepted, groupHandler.handler)) == SimpleCancellable.CANCELLED)
+                                StreamUtility.closeQuietly(accepted);
+                            continue;
+                        }
+                        server.accepted(sc, groupHandler.handler);
+                    }
+                    else {
+                        server.accepted(sc, (ListenCallback)attachment);
                     }
                 }
                 else if (key.isReadable()) {
@@ -913,6 +1121,15 @@ public class AsyncServer {
             }
         }
         readyKeys.clear();
+
+        // then give the sockets that ran out of budget on an earlier pass another turn.
+        for (int i = server.mBacklog.size(); i > 0; i--) {
+            server.mBacklog.remove().onBacklog();
+        }
+
+        if (server.mIterationOverBudget || (fairness.loopTimeBudget > 0 && SystemClock.elapsedRealtime() - start > fairness.loopTimeBudget))
+            server.mOverBudgetIterations++;
+        server.mIterationOverBudget = false;
     }
 
     public void dump() {
@@ -0,0 +1,97 @@
+package com.koushikdutta.async;
+
+import com.koushikdutta.async.callback.ListenCallback;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of AsyncServer loops, each with its own selector and affinity thread.
+ * Connections accepted by a group listener are spread across the loops, and
+ * clients may pick a loop via next().
+ */
+public class AsyncServerGroup {
+    public enum Policy {
+        ROUND_ROBIN,
+        LEAST_LOADED,
+    }
+
+    private final AsyncServer[] servers;
+    private final AtomicInteger counter = new AtomicInteger();
+    private Policy policy = Policy.ROUND_ROBIN;
+
+    public AsyncServerGroup() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public AsyncServerGroup(int count) {
+        this("AsyncServerGroup", count);
+    }
+
+    public AsyncServerGroup(String name, int count) {
+        if (count <= 0)
+            throw new IllegalArgumentException("group must contain at least one server");
+        servers = new AsyncServer[count];
+        for (int i = 0; i < count; i++) {
+            servers[i] = new AsyncServer(name + "-" + i);
+        }
+    }
+
+    public AsyncServerGroup setPolicy(Policy policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int size() {
+        return servers.length;
+    }
+
+    public AsyncServer get(int index) {
+        return servers[index];
+    }
+
+    public AsyncServer next() {
+        if (servers.length == 1)
+            return servers[0];
+        if (policy == Policy.LEAST_LOADED) {
+            // start the scan at a rotating offset so ties are spread evenly.
+            int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % servers.length;
+            AsyncServer best = null;
+            int bestLoad = Integer.MAX_VALUE;
+            for (int i = 0; i < servers.length; i++) {
+                AsyncServer server = servers[(start + i) % servers.length];
+                int load = server.getConnectionCount();
+                if (load < bestLoad) {
+                    best = server;
+                    bestLoad = load;
+                }
+            }
+            return best;
+        }
+        return servers[(counter.getAndIncrement() & Integer.MAX_VALUE) % servers.length];
+    }
+
+    /**
+     * Listen on the first server of the group. Accepted sockets are handed off to the
+     * loop chosen by next(), and handler.onAccepted is invoked on that loop's thread.
+     */
+    public AsyncServerSocket listen(InetAddress host, int port, ListenCallback handler) {
+        return servers[0].listen(host, port, handler, this);
+    }
+
+    public void stop() {
+        for (AsyncServer server: servers) {
+            server.stop();
+        }
+    }
+
+    public void kill() {
+        for (AsyncServer server: servers) {
+            server.kill();
+        }
+    }
+}
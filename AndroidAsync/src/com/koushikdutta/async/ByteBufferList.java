@@ -2,9 +2,9 @@ package com.koushikdutta.async;
 
 import android.annotation.TargetApi;
 import android.os.Build;
-import android.os.Looper;
 
 import com.koushikdutta.async.util.ArrayDeque;
+import com.koushikdutta.async.util.BufferPool;
 import com.koushikdutta.async.util.Charsets;
 
 import java.io.IOException;
@@ -12,8 +12,6 @@ import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.Comparator;
-import java.util.PriorityQueue;
 
 @TargetApi(Build.VERSION_CODES.GINGERBREAD)
 public class ByteBufferList {
@@ -105,7 +103,8 @@ public class ByteBufferList {
 
     public byte[] peekBytes(int size) {
         byte[] ret = new byte[size];
-        read(size).get(ret, mBuffers.peekFirst().position(), ret.length);
+        // read through a duplicate, a relative get would move the position of the buffer
+        read(size).duplicate().get(ret);
         return ret;
     }
 
@@ -190,9 +189,24 @@ public class ByteBufferList {
             if (offset + remaining > length) {
                 int need = length - offset;
                 // this is shared between both
-                ByteBuffer subset = obtain(need);
-                subset.limit(need);
-                b.get(subset.array(), 0, need);
+                ByteBuffer subset;
+                if (b.hasArray()) {
+                    // split into two views of the same array rather than copying.
+                    // the last view to be reclaimed returns the array to the pool.
+                    // each view's capacity ends at its limit, so appending can never write into the other.
+                    SharedBuffers.retain(b.array());
+                    int limit = b.limit();
+                    b.limit(b.position() + need);
+                    subset = b.slice();
+                    b.limit(limit);
+                    b.position(b.position() + need);
+                    b = b.slice();
+                }
+                else {
+                    subset = obtain(need);
+                    subset.limit(need);
+                    b.get(subset.array(), 0, need);
+                }
                 into.add(subset);
                 mBuffers.addFirst(b);
                 break;
@@ -391,132 +405,76 @@ public class ByteBufferList {
         return ret;
     }
 
-    static class Reclaimer implements Comparator<ByteBuffer> {
-        @Override
-        public int compare(ByteBuffer byteBuffer, ByteBuffer byteBuffer2) {
-            // keep the smaller ones at the head, so they get tossed out quicker
-            if (byteBuffer.capacity() == byteBuffer2.capacity())
-                return 0;
-            if (byteBuffer.capacity() > byteBuffer2.capacity())
-                return 1;
-            return -1;
-        }
-    }
-
-    static PriorityQueue<ByteBuffer> reclaimed = new PriorityQueue<ByteBuffer>(8, new Reclaimer());
-
-    private static PriorityQueue<ByteBuffer> getReclaimed() {
-        Looper mainLooper = Looper.getMainLooper();
-        if (mainLooper != null) {
-            if (Thread.currentThread() == mainLooper.getThread())
-                return null;
-        }
-        return reclaimed;
-    }
-
     private static int MAX_SIZE = 1024 * 1024;
     public static int MAX_ITEM_SIZE = 1024 * 256;
-    static int currentSize = 0;
-    static int maxItem = 0;
+    private static final BufferPool pool = new BufferPool(MAX_SIZE, MAX_ITEM_SIZE);
+    private static int MAX_DIRECT_SIZE = 1024 * 1024;
+    private static final BufferPool directPool = new BufferPool(MAX_DIRECT_SIZE, MAX_ITEM_SIZE, true);
 
     public static void setMaxPoolSize(int size) {
         MAX_SIZE = size;
+        pool.setMaxSize(size);
     }
 
     public static void setMaxItemSize(int size) {
         MAX_ITEM_SIZE = size;
+        pool.setMaxItemSize(size);
+        directPool.setMaxItemSize(size);
     }
 
-    private static boolean reclaimedContains(ByteBuffer b) {
-        for (ByteBuffer other: reclaimed) {
-            if (other == b)
-                return true;
-        }
-        return false;
+    /**
+     * Off-heap budget for pooled direct buffers.
+     */
+    public static void setMaxDirectPoolSize(int size) {
+        MAX_DIRECT_SIZE = size;
+        directPool.setMaxSize(size);
+    }
+
+    /**
+     * Bytes currently held by the buffer pool.
+     */
+    public static long getPoolSize() {
+        return pool.size();
+    }
+
+    public static long getDirectPoolSize() {
+        return directPool.size();
     }
 
     public static void reclaim(ByteBuffer b) {
-        if (b == null || b.isDirect())
-            return;
-        if (b.arrayOffset() != 0 || b.array().length != b.capacity())
+        if (b == null)
             return;
-        if (b.capacity() < 8192)
-            return;
-        if (b.capacity() > MAX_ITEM_SIZE)
-            return;
-
-        PriorityQueue<ByteBuffer> r = getReclaimed();
-        if (r == null)
+        if (b.isDirect()) {
+            directPool.reclaim(b);
             return;
-
-        synchronized (LOCK) {
-            while (currentSize > MAX_SIZE && r.size() > 0 && r.peek().capacity() < b.capacity()) {
-//                System.out.println("removing for better: " + b.capacity());
-                ByteBuffer head = r.remove();
-                currentSize -= head.capacity();
-            }
-
-            if (currentSize > MAX_SIZE) {
-//                System.out.println("too full: " + b.capacity());
+        }
+        // only a partial view of its array can be a shared split.
+        if (b.hasArray() && (b.arrayOffset() != 0 || b.array().length != b.capacity())) {
+            b = SharedBuffers.release(b);
+            if (b == null)
                 return;
-            }
-
-            b.position(0);
-            b.limit(b.capacity());
-            currentSize += b.capacity();
-
-            r.add(b);
-
-            maxItem = Math.max(maxItem, b.capacity());
         }
+        pool.reclaim(b);
     }
 
-    private static final Object LOCK = new Object();
-
     public static ByteBuffer obtain(int size) {
-        if (size <= maxItem) {
-            PriorityQueue<ByteBuffer> r = getReclaimed();
-            if (r != null) {
-                synchronized (LOCK) {
-                    while (r.size() > 0) {
-                        ByteBuffer ret = r.remove();
-                        if (r.size() == 0)
-                            maxItem = 0;
-                        currentSize -= ret.capacity();
-                        if (ret.capacity() >= size) {
-//                            System.out.println("using " + ret.capacity());
-                            return ret;
-                        }
-//                        System.out.println("dumping " + ret.capacity());
-                    }
-                }
-            }
-        }
+        return pool.obtain(size, 8192);
+    }
 
-//        System.out.println("alloc for " + size);
-        ByteBuffer ret = ByteBuffer.allocate(Math.max(8192, size));
-        return ret;
+    /**
+     * Get a direct buffer for channel I/O. Direct buffers have no backing array.
+     */
+    public static ByteBuffer obtainDirect(int size) {
+        return directPool.obtain(size, 8192);
     }
 
     public static void obtainArray(ByteBuffer[] arr, int size) {
-        PriorityQueue<ByteBuffer> r = getReclaimed();
         int index = 0;
         int total = 0;
 
-        if (r != null) {
-            synchronized (LOCK) {
-                while (r.size() > 0 && total < size && index < arr.length - 1) {
-                    ByteBuffer b = r.remove();
-                    currentSize -= b.capacity();
-                    int needed = Math.min(size - total, b.capacity());
-                    total += needed;
-                    arr[index++] = b;
-                }
-            }
-        }
-
-        if (total < size) {
-            ByteBuffer b = ByteBuffer.allocate(Math.max(8192, size - total));
+        while (total < size && index < arr.length) {
+            ByteBuffer b = obtain(size - total);
+            total += b.capacity();
             arr[index++] = b;
         }
 
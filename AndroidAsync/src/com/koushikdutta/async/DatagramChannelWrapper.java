@@ -40,8 +40,9 @@ class DatagramChannelWrapper extends ChannelWrapper {
         if (!isConnected()) {
             int position = buffer.position();
             address = (InetSocketAddress)mChannel.receive(buffer);
+            // nothing to read yet, which is not the end of the socket
             if (address == null)
-                return -1;
+                return 0;
             return buffer.position() - position;
         }
         address = null;
@@ -0,0 +1,50 @@
+package com.koushikdutta.async;
+
+/**
+ * Limits how much work a single socket may do per AsyncServer loop iteration, so one busy
+ * connection can not starve the others on the same loop. A socket that still has data when
+ * its budget runs out is re-queued and serviced again after the other ready keys.
+ * A budget of 0 means unlimited.
+ */
+public class FairnessPolicy {
+    int keyByteBudget;
+    long keyTimeBudget;
+    long loopTimeBudget;
+
+    /**
+     * Bytes a socket may read and emit per loop iteration.
+     */
+    public FairnessPolicy setKeyByteBudget(int keyByteBudget) {
+        this.keyByteBudget = Math.max(0, keyByteBudget);
+        return this;
+    }
+
+    public int getKeyByteBudget() {
+        return keyByteBudget;
+    }
+
+    /**
+     * Milliseconds a socket may spend reading per loop iteration.
+     */
+    public FairnessPolicy setKeyTimeBudget(long keyTimeBudget) {
+        this.keyTimeBudget = Math.max(0, keyTimeBudget);
+        return this;
+    }
+
+    public long getKeyTimeBudget() {
+        return keyTimeBudget;
+    }
+
+    /**
+     * Milliseconds the loop may spend servicing one batch of ready keys. This is not enforced,
+     * iterations that go over are counted in AsyncServer.getOverBudgetIterations.
+     */
+    public FairnessPolicy setLoopTimeBudget(long loopTimeBudget) {
+        this.loopTimeBudget = Math.max(0, loopTimeBudget);
+        return this;
+    }
+
+    public long getLoopTimeBudget() {
+        return loopTimeBudget;
+    }
+}
@@ -0,0 +1,194 @@
+package com.koushikdutta.async;
+
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.SimpleCancellable;
+import com.koushikdutta.async.util.LruCache;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/**
+ * Races connections to the addresses of a host, RFC 8305 style. Address families are
+ * interleaved, and a new attempt is started whenever the last one fails or has not connected
+ * after the attempt delay, without cancelling it. The first connection wins and the rest are
+ * cancelled. The family that won is tried first the next time around, so a host with a broken
+ * family only costs an attempt delay once.
+ */
+public class HappyEyeballs {
+    public static final long DEFAULT_ATTEMPT_DELAY = 250;
+    // RFC 8305 section 5, attempts are never started closer together than this
+    public static final long MIN_ATTEMPT_DELAY = 10;
+
+    final AsyncServer server;
+    long attemptDelay = DEFAULT_ATTEMPT_DELAY;
+    // host to whether IPv6 won the last race, only touched on the server thread
+    final LruCache<String, Boolean> preferIPv6 = new LruCache<String, Boolean>(256);
+
+    public HappyEyeballs(AsyncServer server) {
+        this.server = server;
+    }
+
+    public long getAttemptDelay() {
+        return attemptDelay;
+    }
+
+    public void setAttemptDelay(long attemptDelay) {
+        this.attemptDelay = Math.max(MIN_ATTEMPT_DELAY, attemptDelay);
+    }
+
+    /**
+     * The address family that connected last, Inet4Address or Inet6Address, or null
+     * if there has not been a race to the host yet.
+     */
+    public Class<? extends InetAddress> getPreferredFamily(String host) {
+        Boolean ipv6 = preferIPv6.get(host);
+        if (ipv6 == null)
+            return null;
+        return ipv6 ? Inet6Address.class : Inet4Address.class;
+    }
+
+    public Cancellable connect(final String host, final int port, final ConnectCallback callback) {
+        final SimpleCancellable ret = new SimpleCancellable();
+        server.getAllByName(host)
+        .setCallback((e, addresses) -> {
+            if (ret.isCancelled())
+                return;
+            if (e != null) {
+                ret.setComplete();
+                callback.onConnectCompleted(e, null);
+                return;
+            }
+            ret.setParent(connect(host, addresses, port, callback));
+        });
+        return ret;
+    }
+
+    public Cancellable connect(final String host, final InetAddress[] addresses, final int port, final ConnectCallback callback) {
+        final Race race = new Race(host, port, callback);
+        server.post(() -> {
+            if (race.isCancelled())
+                return;
+            if (addresses.length == 0) {
+                race.setComplete();
+                callback.onConnectCompleted(new HostnameResolutionException("no addresses for host"), null);
+                return;
+            }
+            race.addresses = order(host, addresses);
+            race.next();
+        });
+        return race;
+    }
+
+    // alternate families, starting with the one that won last time or else the first one given.
+    InetAddress[] order(String host, InetAddress[] addresses) {
+        if (addresses.length == 0)
+            return addresses;
+        Boolean ipv6 = preferIPv6.get(host);
+        boolean first = ipv6 != null ? ipv6 : addresses[0] instanceof Inet6Address;
+        ArrayList<InetAddress> preferred = new ArrayList<InetAddress>();
+        ArrayList<InetAddress> other = new ArrayList<InetAddress>();
+        for (InetAddress address: addresses) {
+            if ((address instanceof Inet6Address) == first)
+                preferred.add(address);
+            else
+                other.add(address);
+        }
+        InetAddress[] ret = new InetAddress[addresses.length];
+        int i = 0;
+        for (int p = 0, o = 0; p < preferred.size() || o < other.size();) {
+            if (p < preferred.size())
+                ret[i++] = preferred.get(p++);
+            if (o < other.size())
+                ret[i++] = other.get(o++);
+        }
+        return ret;
+    }
+
+    class Race extends SimpleCancellable {
+        final String host;
+        final int port;
+        final ConnectCallback callback;
+        InetAddress[] addresses;
+        int started;
+        int failed;
+        Exception lastError;
+        Cancellable timer;
+        final ArrayList<Cancellable> attempts = new ArrayList<Cancellable>();
+
+        Race(String host, int port, ConnectCallback callback) {
+            this.host = host;
+            this.port = port;
+            this.callback = callback;
+        }
+
+        void next() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            if (isDone() || isCancelled() || started == addresses.length)
+                return;
+            final InetAddress address = addresses[started++];
+            attempts.add(server.connectResolvedInetSocketAddress(new InetSocketAddress(address, port), (ex, socket) -> {
+                if (ex != null)
+                    failed(ex);
+                else
+                    connected(address, socket);
+            }));
+            // a synchronous failure has already moved on to the next address and set the timer
+            if (timer == null && started < addresses.length && !isDone() && !isCancelled())
+                timer = server.postDelayed(this::next, attemptDelay);
+        }
+
+        void failed(Exception ex) {
+            lastError = ex;
+            failed++;
+            if (isDone() || isCancelled())
+                return;
+            if (failed == addresses.length) {
+                setComplete();
+                callback.onConnectCompleted(lastError, null);
+                return;
+            }
+            // don't wait out the delay, go straight to the next address
+            next();
+        }
+
+        void connected(InetAddress address, AsyncSocket socket) {
+            if (!setComplete()) {
+                socket.close();
+                return;
+            }
+            preferIPv6.put(host, address instanceof Inet6Address);
+            callback.onConnectCompleted(null, socket);
+        }
+
+        // the losers, the winner has already completed and ignores this
+        void cancelAttempts() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            for (Cancellable attempt: attempts) {
+                attempt.cancel();
+            }
+            attempts.clear();
+        }
+
+        @Override
+        protected void completeCleanup() {
+            super.completeCleanup();
+            cancelAttempts();
+        }
+
+        @Override
+        protected void cancelCleanup() {
+            super.cancelCleanup();
+            server.post(this::cancelAttempts);
+        }
+    }
+}
@@ -5,8 +5,6 @@ import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.Set;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -14,8 +12,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 class SelectorWrapper implements Closeable {
     private Selector selector;
-    public AtomicBoolean isWaking = new AtomicBoolean(false);
-    Semaphore semaphore = new Semaphore(0);
+    // true from just before the loop blocks in select until it wakes back up.
+    // only the first producer to flip it back calls selector.wakeup().
+    private AtomicBoolean sleeping = new AtomicBoolean(false);
     public Selector getSelector() {
         return selector;
     }
@@ -34,14 +33,25 @@ class SelectorWrapper implements Closeable {
 
     public void select(long timeout) throws IOException {
         try {
-            semaphore.drainPermits();
             selector.select(timeout);
         }
         finally {
-            semaphore.release(Integer.MAX_VALUE);
+            sleeping.set(false);
         }
     }
 
+    /**
+     * Called by the loop before it checks for pending work and blocks in select.
+     * selectNow clears any outstanding wakeup, so this must come after it.
+     */
+    public void prepareToSleep() {
+        sleeping.set(true);
+    }
+
+    public void cancelSleep() {
+        sleeping.set(false);
+    }
+
     public Set<SelectionKey> keys() {
         return selector.keys();
     }
@@ -59,43 +69,16 @@ class SelectorWrapper implements Closeable {
         return selector.isOpen();
     }
 
-    public void wakeupOnce() {
-        // see if it is selecting, ie, can't acquire a permit
-        boolean selecting = !semaphore.tryAcquire();
-        selector.wakeup();
-        // if it was selecting, then the wakeup definitely worked.
-        if (selecting)
-            return;
-
-        // now, we NEED to wait for the select to start to forcibly wake it.
-        if (isWaking.getAndSet(true)) {
+    /**
+     * Wake the loop if it is sleeping or about to sleep. A wakeup issued before select
+     * starts is sticky, so the upcoming select returns immediately.
+     */
+    public void wakeupIfSleeping() {
+        if (sleeping.compareAndSet(true, false))
             selector.wakeup();
-            return;
-        }
-
-        try {
-            waitForSelect();
-            selector.wakeup();
-        } finally {
-            isWaking.set(false);
-        }
     }
 
-    public boolean waitForSelect() {
-        // try to wake up 10 times
-        for (int i = 0; i < 100; i++) {
-            try {
-                if (semaphore.tryAcquire(10, TimeUnit.MILLISECONDS)) {
-                    // successfully acquiring means the selector is NOT selecting, since select
-                    // will drain all permits.
-                    continue;
-                }
-            } catch (InterruptedException e) {
-                // an InterruptedException means the acquire failed a select is in progress,
-                // since it holds all permits
-                return true;
-            }
-        }
-        return false;
+    public void wakeup() {
+        selector.wakeup();
     }
 }
@@ -0,0 +1,139 @@
+package com.koushikdutta.async;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
+/**
+ * Reference counts for heap arrays that have been split into several views.
+ * Each view holds one reference, and the array goes back to the pool when the last view is
+ * reclaimed. Arrays are weakly held, so views dropped without being reclaimed just leave the
+ * array to the garbage collector.
+ */
+class SharedBuffers {
+    private static class Ref extends WeakReference<byte[]> {
+        final int hash;
+        int count;
+        Ref next;
+
+        Ref(byte[] array, int hash, ReferenceQueue<byte[]> queue) {
+            super(array, queue);
+            this.hash = hash;
+        }
+    }
+
+    private static class Stripe {
+        final ReferenceQueue<byte[]> queue = new ReferenceQueue<byte[]>();
+        Ref[] table = new Ref[16];
+        int size;
+
+        private void expunge() {
+            Ref stale;
+            while ((stale = (Ref)queue.poll()) != null) {
+                unlink(stale);
+            }
+        }
+
+        private void unlink(Ref ref) {
+            int index = ref.hash & (table.length - 1);
+            Ref prev = null;
+            for (Ref r = table[index]; r != null; prev = r, r = r.next) {
+                if (r != ref)
+                    continue;
+                if (prev == null)
+                    table[index] = r.next;
+                else
+                    prev.next = r.next;
+                size--;
+                return;
+            }
+        }
+
+        private Ref find(byte[] array, int hash) {
+            for (Ref r = table[hash & (table.length - 1)]; r != null; r = r.next) {
+                if (r.get() == array)
+                    return r;
+            }
+            return null;
+        }
+
+        private void grow() {
+            Ref[] old = table;
+            table = new Ref[old.length * 2];
+            for (Ref head: old) {
+                for (Ref r = head; r != null; ) {
+                    Ref next = r.next;
+                    int index = r.hash & (table.length - 1);
+                    r.next = table[index];
+                    table[index] = r;
+                    r = next;
+                }
+            }
+        }
+
+        synchronized void retain(byte[] array, int hash) {
+            expunge();
+            Ref ref = find(array, hash);
+            if (ref != null) {
+                ref.count++;
+                return;
+            }
+            // the array was whole until now, so this is its first split into two views.
+            ref = new Ref(array, hash, queue);
+            ref.count = 2;
+            if (++size > table.length * 3 / 4)
+                grow();
+            int index = hash & (table.length - 1);
+            ref.next = table[index];
+            table[index] = ref;
+        }
+
+        // returns the views left, or -1 if the array is not shared.
+        synchronized int release(byte[] array, int hash) {
+            expunge();
+            Ref ref = find(array, hash);
+            if (ref == null)
+                return -1;
+            if (--ref.count == 0)
+                unlink(ref);
+            return ref.count;
+        }
+    }
+
+    private static final Stripe[] stripes = new Stripe[16];
+    static {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int hash(byte[] array) {
+        int h = System.identityHashCode(array);
+        return h ^ (h >>> 16);
+    }
+
+    // the top bits pick the stripe, the low bits pick the bucket within it.
+    private static Stripe stripe(int hash) {
+        return stripes[hash >>> 28];
+    }
+
+    /**
+     * Record one more view of the array.
+     */
+    static void retain(byte[] array) {
+        int hash = hash(array);
+        stripe(hash).retain(array, hash);
+    }
+
+    /**
+     * Drop the reference held by this view. Returns the whole array, ready to be pooled, when
+     * this was the last view, or null otherwise. Buffers that are not shared views are ignored.
+     */
+    static ByteBuffer release(ByteBuffer view) {
+        byte[] array = view.array();
+        int hash = hash(array);
+        if (stripe(hash).release(array, hash) != 0)
+            return null;
+        return ByteBuffer.wrap(array);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -78,4 +79,8 @@ class SocketChannelWrapper extends ChannelWrapper {
     public Object getSocket() {
         return mChannel.socket();
     }
+
+    long transferFrom(FileChannel file, long position, long count) throws IOException {
+        return file.transferTo(position, count, mChannel);
+    }
 }
@@ -39,7 +39,7 @@ public class Dns {
         return setFlag(flags, 1, 8);
     }
 
-    private static void addName(ByteBuffer bb, String name) {
+    static void addName(ByteBuffer bb, String name) {
         String[] parts = name.split("\\.");
         for (String part: parts) {
             bb.put((byte)part.length());
@@ -48,6 +48,27 @@ public class Dns {
         bb.put((byte)0);
     }
 
+    // a query packet with a single question
+    static ByteBuffer query(int id, String host, int type, boolean recursion) {
+        ByteBuffer packet = ByteBufferList.obtain(1024).order(ByteOrder.BIG_ENDIAN);
+        int flags = setQuery(0);
+        if (recursion)
+            flags = setRecursion(flags);
+        packet.putShort((short)id);
+        packet.putShort((short)flags);
+        // one question, no answer, authority, or additional rr
+        packet.putShort((short)1);
+        packet.putShort((short)0);
+        packet.putShort((short)0);
+        packet.putShort((short)0);
+        addName(packet, host);
+        packet.putShort((short)type);
+        // internet class
+        packet.putShort((short)1);
+        packet.flip();
+        return packet;
+    }
+
     public static Future<DnsResponse> lookup(AsyncServer server, String host) {
         return lookup(server, host, false, null);
     }
@@ -98,13 +119,16 @@ public class Dns {
         }
 
         packet.flip();
-
+        // kept to ask again over tcp if the answer is truncated
+        final byte[] query = new byte[packet.remaining()];
+        packet.duplicate().get(query);
 
         try {
             final AsyncDatagramSocket dgram;
             // todo, use the dns server...
+            final InetSocketAddress nameserver = new InetSocketAddress("8.8.8.8", 53);
             if (!multicast) {
-                dgram = server.connectDatagram(new InetSocketAddress("8.8.8.8", 53));
+                dgram = server.connectDatagram(nameserver);
             }
             else {
 //                System.out.println("multicast dns...");
@@ -134,7 +158,16 @@ public class Dns {
 //                        System.out.println(response);
                         response.source = dgram.getRemoteAddress();
 
-                        if (!multicast) {
+                        if (!multicast && response.truncated) {
+                            dgram.close();
+                            DnsTcpConnection tcp = new DnsTcpConnection(server, nameserver);
+                            ret.setComplete(tcp.query(ByteBuffer.wrap(query))
+                            .thenConvert(full -> {
+                                tcp.close();
+                                return full;
+                            }));
+                        }
+                        else if (!multicast) {
                             dgram.close();
                             ret.setComplete(response);
                         }
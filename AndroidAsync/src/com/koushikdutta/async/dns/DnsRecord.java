@@ -0,0 +1,64 @@
+package com.koushikdutta.async.dns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+/**
+ * A resource record from the answer or additional section of a DnsResponse.
+ */
+public class DnsRecord {
+    public static final int A = 1;
+    public static final int CNAME = 5;
+    public static final int SOA = 6;
+    public static final int PTR = 12;
+    public static final int TXT = 16;
+    public static final int AAAA = 28;
+    public static final int SRV = 33;
+
+    public String name;
+    public int type;
+    // in seconds
+    public int ttl;
+    // mDNS, this record replaces the ones with the same name and type
+    public boolean cacheFlush;
+
+    // A and AAAA
+    public InetAddress address;
+    // PTR, CNAME and SRV
+    public String target;
+    // SRV
+    public int priority;
+    public int weight;
+    public int port;
+    // TXT, the strings as is, usually key=value
+    public ArrayList<String> txt = new ArrayList<String>();
+    // SOA, the negative ttl of the zone
+    public int minimum;
+
+    /**
+     * Whether the two are the same record, ttl aside.
+     */
+    public boolean isSameRecord(DnsRecord other) {
+        if (type != other.type || !name.equalsIgnoreCase(other.name))
+            return false;
+        switch (type) {
+            case A:
+            case AAAA:
+                return address != null && address.equals(other.address);
+            case PTR:
+            case CNAME:
+                return target != null && target.equalsIgnoreCase(other.target);
+            case SRV:
+                return port == other.port && target != null && target.equalsIgnoreCase(other.target);
+            case TXT:
+                return txt.equals(other.txt);
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + type + " " + ttl + " " + (address != null ? address : target != null ? target + ":" + port : txt);
+    }
+}
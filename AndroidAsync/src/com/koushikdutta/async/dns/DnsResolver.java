@@ -0,0 +1,360 @@
+package com.koushikdutta.async.dns;
+
+import com.koushikdutta.async.AsyncDatagramSocket;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.util.LruCache;
+import com.koushikdutta.async.util.StreamUtility;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Resolves host names on the server thread, rather than on the blocking resolver pool used by
+ * AsyncServer.getAllByName. The A and AAAA queries go out in parallel, to one nameserver after
+ * another until one of them answers. They are asked over UDP, and again over TCP when the
+ * answer was truncated. Answers are cached for their ttl, and names that do not exist for the
+ * negative ttl of their zone. Lookups of a name that is already being resolved wait on that query.
+ * The hosts file and search domains are not consulted, other than for localhost.
+ */
+public class DnsResolver {
+    static final int MAX_CACHED = 512;
+    // for a missing name whose zone did not send an SOA record
+    static final int DEFAULT_NEGATIVE_TTL = 30;
+
+    final AsyncServer server;
+    final ArrayList<InetSocketAddress> nameservers;
+    final Random random = new Random();
+    long timeout = 2000;
+    int rounds = 2;
+    // the rest is only touched on the server thread
+    final LruCache<String, Entry> cache = new LruCache<String, Entry>(MAX_CACHED);
+    final HashMap<String, Query> inFlight = new HashMap<String, Query>();
+    int queryCount;
+    int hitCount;
+
+    static class Entry {
+        // null for a name that does not exist
+        InetAddress[] addresses;
+        long expires;
+    }
+
+    public DnsResolver(AsyncServer server) {
+        this(server, getSystemNameservers());
+    }
+
+    public DnsResolver(AsyncServer server, List<InetSocketAddress> nameservers) {
+        if (nameservers.isEmpty())
+            throw new IllegalArgumentException("no nameservers");
+        this.server = server;
+        this.nameservers = new ArrayList<InetSocketAddress>(nameservers);
+    }
+
+    /**
+     * The nameservers in /etc/resolv.conf, or Google Public DNS where there is none,
+     * as on Android.
+     */
+    public static List<InetSocketAddress> getSystemNameservers() {
+        ArrayList<InetSocketAddress> ret = new ArrayList<InetSocketAddress>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/etc/resolv.conf"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length >= 2 && "nameserver".equals(parts[0]))
+                    ret.add(new InetSocketAddress(InetAddress.getByName(parts[1]), 53));
+            }
+        }
+        catch (Exception e) {
+        }
+        finally {
+            StreamUtility.closeQuietly(reader);
+        }
+        if (ret.isEmpty())
+            ret.add(new InetSocketAddress("8.8.8.8", 53));
+        return ret;
+    }
+
+    /**
+     * How long to wait on a nameserver before moving on to the next one.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * How many times to go through the nameservers before giving up.
+     */
+    public void setRounds(int rounds) {
+        this.rounds = Math.max(1, rounds);
+    }
+
+    public int getRounds() {
+        return rounds;
+    }
+
+    /**
+     * Lookups that were sent to a nameserver, as opposed to answered from the cache
+     * or joining one already in flight.
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    // only touched on the server thread
+    final HashMap<InetSocketAddress, DnsTcpConnection> tcpConnections = new HashMap<InetSocketAddress, DnsTcpConnection>();
+    DnsTcpConnection getTcpConnection(InetSocketAddress nameserver) {
+        DnsTcpConnection connection = tcpConnections.get(nameserver);
+        if (connection == null || connection.isClosed()) {
+            connection = new DnsTcpConnection(server, nameserver);
+            tcpConnections.put(nameserver, connection);
+        }
+        return connection;
+    }
+
+    public Future<InetAddress[]> resolve(final String host) {
+        if (!server.isAffinityThread()) {
+            SimpleFuture<InetAddress[]> ret = new SimpleFuture<InetAddress[]>();
+            server.post(() -> ret.setComplete(resolve(host)));
+            return ret;
+        }
+
+        String name = host.toLowerCase(Locale.ENGLISH);
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+        try {
+            InetAddress[] local = getLocal(name);
+            if (local != null)
+                return new SimpleFuture<InetAddress[]>(local);
+        }
+        catch (Exception e) {
+            return new SimpleFuture<InetAddress[]>(e);
+        }
+
+        Entry entry = cache.get(name);
+        if (entry != null) {
+            if (entry.expires > System.currentTimeMillis()) {
+                hitCount++;
+                if (entry.addresses == null)
+                    return new SimpleFuture<InetAddress[]>(new UnknownHostException(host));
+                return new SimpleFuture<InetAddress[]>(entry.addresses.clone());
+            }
+            cache.remove(name);
+        }
+
+        Query query = inFlight.get(name);
+        if (query == null) {
+            query = new Query(name);
+            inFlight.put(name, query);
+            queryCount++;
+            query.send();
+        }
+        // cancelling one lookup leaves the query running for the others
+        SimpleFuture<InetAddress[]> ret = new SimpleFuture<InetAddress[]>();
+        query.waiters.add(ret);
+        return ret;
+    }
+
+    // ip address literals and localhost, which never go to the network.
+    private static InetAddress[] getLocal(String name) throws UnknownHostException {
+        if ("localhost".equals(name))
+            return new InetAddress[] { InetAddress.getByName("127.0.0.1"), InetAddress.getByName("::1") };
+        if (name.indexOf(':') != -1 || name.matches("[0-9.]+"))
+            return new InetAddress[] { InetAddress.getByName(name) };
+        return null;
+    }
+
+    class Query {
+        final String name;
+        final ArrayList<SimpleFuture<InetAddress[]>> waiters = new ArrayList<SimpleFuture<InetAddress[]>>();
+        int attempt;
+        InetSocketAddress nameserver;
+        AsyncDatagramSocket socket;
+        Cancellable timer;
+        int aId;
+        int aaaaId;
+        DnsResponse a;
+        DnsResponse aaaa;
+
+        Query(String name) {
+            this.name = name;
+        }
+
+        // ask the next nameserver
+        void send() {
+            close();
+            if (attempt == rounds * nameservers.size()) {
+                finish(new UnknownHostException("no response from nameservers for " + name));
+                return;
+            }
+            nameserver = nameservers.get(attempt++ % nameservers.size());
+            a = null;
+            aaaa = null;
+            final AsyncDatagramSocket current;
+            try {
+                current = socket = server.connectDatagram(nameserver);
+            }
+            catch (Exception e) {
+                send();
+                return;
+            }
+            aId = random.nextInt(0x10000);
+            aaaaId = (aId + 1) & 0xFFFF;
+            current.setDataCallback((emitter, bb) -> {
+                DnsResponse response;
+                try {
+                    response = DnsResponse.parse(bb);
+                }
+                catch (Exception e) {
+                    return;
+                }
+                finally {
+                    bb.recycle();
+                }
+                if (socket == current)
+                    onResponse(response);
+            });
+            // eg, the port was unreachable
+            current.setClosedCallback(ex -> {
+                if (socket == current)
+                    send();
+            });
+            timer = server.postDelayed(this::onTimeout, timeout);
+            current.write(new ByteBufferList(Dns.query(aId, name, DnsRecord.A, true)));
+            current.write(new ByteBufferList(Dns.query(aaaaId, name, DnsRecord.AAAA, true)));
+        }
+
+        void onResponse(DnsResponse response) {
+            final int type;
+            if (response.id == aId && a == null)
+                type = DnsRecord.A;
+            else if (response.id == aaaaId && aaaa == null)
+                type = DnsRecord.AAAA;
+            else
+                return;
+
+            if (!response.truncated) {
+                onAnswer(type, response);
+                return;
+            }
+            // the full answer only comes over tcp
+            final AsyncDatagramSocket current = socket;
+            getTcpConnection(nameserver).query(Dns.query(0, name, type, true))
+            .setCallback((e, full) -> {
+                if (socket != current)
+                    return;
+                if (e != null)
+                    send();
+                else
+                    onAnswer(type, full);
+            });
+        }
+
+        void onAnswer(int type, DnsResponse response) {
+            if (type == DnsRecord.A)
+                a = response;
+            else
+                aaaa = response;
+
+            // the name does not exist
+            if (response.rcode == 3) {
+                finish(null, response.negativeTtl);
+                return;
+            }
+            // server failure, refused, and the like, someone else may know
+            if (response.rcode != 0) {
+                send();
+                return;
+            }
+            if (a != null && aaaa != null)
+                complete();
+        }
+
+        void onTimeout() {
+            timer = null;
+            // go with the one family that came back
+            if ((a != null && !a.addresses.isEmpty()) || (aaaa != null && !aaaa.addresses.isEmpty()))
+                complete();
+            else
+                send();
+        }
+
+        void complete() {
+            ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+            int ttl = Integer.MAX_VALUE;
+            int negativeTtl = -1;
+            for (DnsResponse response: new DnsResponse[] { a, aaaa }) {
+                if (response == null)
+                    continue;
+                addresses.addAll(response.addresses);
+                if (!response.addresses.isEmpty())
+                    ttl = Math.min(ttl, response.ttl);
+                negativeTtl = Math.max(negativeTtl, response.negativeTtl);
+            }
+            if (addresses.isEmpty())
+                finish(null, negativeTtl);
+            else
+                finish(addresses.toArray(new InetAddress[addresses.size()]), ttl);
+        }
+
+        void finish(InetAddress[] addresses, int ttl) {
+            if (addresses == null && ttl < 0)
+                ttl = DEFAULT_NEGATIVE_TTL;
+            if (ttl > 0) {
+                Entry entry = new Entry();
+                entry.addresses = addresses;
+                entry.expires = System.currentTimeMillis() + ttl * 1000L;
+                cache.put(name, entry);
+            }
+            if (addresses == null) {
+                finish(new UnknownHostException(name));
+                return;
+            }
+            close();
+            inFlight.remove(name);
+            for (SimpleFuture<InetAddress[]> waiter: waiters) {
+                waiter.setComplete(addresses.clone());
+            }
+        }
+
+        void finish(Exception e) {
+            close();
+            inFlight.remove(name);
+            for (SimpleFuture<InetAddress[]> waiter: waiters) {
+                waiter.setComplete(e);
+            }
+        }
+
+        void close() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+            if (socket != null) {
+                AsyncDatagramSocket closing = socket;
+                socket = null;
+                closing.close();
+            }
+        }
+    }
+}
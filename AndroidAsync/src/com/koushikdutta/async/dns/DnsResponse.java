@@ -16,7 +16,20 @@ public class DnsResponse {
     public ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
     public ArrayList<String> names = new ArrayList<String>();
     public Multimap txt = new Multimap();
+    // the records of the answer and additional sections
+    public ArrayList<DnsRecord> records = new ArrayList<DnsRecord>();
     public InetSocketAddress source;
+    public int id;
+    // response code, 0 is no error and 3 is a name that does not exist
+    public int rcode;
+    // the answer did not fit in the datagram, ask again over tcp for the rest
+    public boolean truncated;
+    // a query, as seen by mDNS, whose answer section holds the answers the asker already knows
+    public boolean query;
+    // the lowest ttl of the address records, in seconds
+    public int ttl = Integer.MAX_VALUE;
+    // how long the name can be cached as not existing, from the SOA record of the zone, or -1
+    public int negativeTtl = -1;
 
     private static String parseName(ByteBufferList bb, ByteBuffer backReference) {
         bb.order(ByteOrder.BIG_ENDIAN);
@@ -52,19 +65,21 @@ public class DnsResponse {
         // naive parsing...
         bb.order(ByteOrder.BIG_ENDIAN);
 
-        // id
-        bb.getShort();
-        // flags
-        bb.getShort();
+        DnsResponse response = new DnsResponse();
+        response.id = bb.getShort() & 0xFFFF;
+        int flags = bb.getShort();
+        response.rcode = flags & 0x000F;
+        response.truncated = (flags & 0x0200) != 0;
+        response.query = (flags & 0x8000) == 0;
 
         // number questions
-        int questions = bb.getShort();
+        int questions = bb.getShort() & 0xFFFF;
         // number answer rr
-        int answers = bb.getShort();
+        int answers = bb.getShort() & 0xFFFF;
         // number authority rr
-        int authorities = bb.getShort();
+        int authorities = bb.getShort() & 0xFFFF;
         // number additional rr
-        int additionals = bb.getShort();
+        int additionals = bb.getShort() & 0xFFFF;
 
         for (int i = 0; i < questions; i++) {
             parseName(bb, b);
@@ -74,97 +89,99 @@ public class DnsResponse {
             bb.getShort();
         }
 
-        DnsResponse response = new DnsResponse();
         for (int i = 0; i < answers; i++) {
-            String name = parseName(bb, b);
-            // type
-            int type = bb.getShort();
-            // class
-            int clazz = bb.getShort();
-            // ttl
-            int ttl = bb.getInt();
-            // length of address
-            int length = bb.getShort();
-            try {
-                if (type == 1) {
-                    // data
-                    byte[] data = new byte[length];
-                    bb.get(data);
-                    response.addresses.add(InetAddress.getByAddress(data));
-                }
-                else if (type == 0x000c) {
-                    response.names.add(parseName(bb, b));
-                }
-                else if (type == 16) {
-                    ByteBufferList txt = new ByteBufferList();
-                    bb.get(txt, length);
-                    response.parseTxt(txt);
-                }
-                else {
-                    bb.get(new byte[length]);
-                }
+            DnsRecord record = parseRecord(bb, b);
+            response.records.add(record);
+            if (record.address != null) {
+                response.addresses.add(record.address);
+                response.ttl = Math.min(response.ttl, record.ttl);
+            }
+            else if (record.type == DnsRecord.PTR && record.target != null) {
+                response.names.add(record.target);
             }
-            catch (Exception e) {
-//                e.printStackTrace();
+            else if (record.type == DnsRecord.TXT) {
+                response.addTxt(record);
             }
         }
 
         // authorities
         for (int i = 0; i < authorities; i++) {
-            String name = parseName(bb, b);
-            // type
-            int type = bb.getShort();
-            // class
-            int clazz = bb.getShort();
-            // ttl
-            int ttl = bb.getInt();
-            // length of address
-            int length = bb.getShort();
-            try {
-                bb.get(new byte[length]);
-            }
-            catch (Exception e) {
-//                e.printStackTrace();
-            }
+            DnsRecord record = parseRecord(bb, b);
+            // SOA, its minimum is the negative ttl (RFC 2308)
+            if (record.type == DnsRecord.SOA)
+                response.negativeTtl = Math.min(record.ttl, record.minimum);
         }
 
         // additionals
         for (int i = 0; i < additionals; i++) {
-            String name = parseName(bb, b);
-            // type
-            int type = bb.getShort();
-            // class
-            int clazz = bb.getShort();
-            // ttl
-            int ttl = bb.getInt();
-            // length of address
-            int length = bb.getShort();
-            try {
-                if (type == 16) {
-                    ByteBufferList txt = new ByteBufferList();
-                    bb.get(txt, length);
-                    response.parseTxt(txt);
-                }
-                else {
-                    bb.get(new byte[length]);
-                }
-            }
-            catch (Exception e) {
-//                e.printStackTrace();
-            }
+            DnsRecord record = parseRecord(bb, b);
+            response.records.add(record);
+            if (record.type == DnsRecord.TXT)
+                response.addTxt(record);
         }
 
         return response;
     }
 
-    void parseTxt(ByteBufferList bb) {
-        while (bb.hasRemaining()) {
-            int length = (int)bb.get() & 0x00FF;
-            byte [] bytes = new byte[length];
-            bb.get(bytes);
-            String string = new String(bytes);
-            String[] pair = string.split("=");
-            txt.add(pair[0], pair[1]);
+    private static DnsRecord parseRecord(ByteBufferList bb, ByteBuffer backReference) {
+        DnsRecord record = new DnsRecord();
+        record.name = parseName(bb, backReference);
+        record.type = bb.getShort() & 0xFFFF;
+        // in mDNS, the top bit of the class is the cache flush bit
+        record.cacheFlush = (bb.getShort() & 0x8000) != 0;
+        record.ttl = bb.getInt();
+        int length = bb.getShort() & 0xFFFF;
+        // parse the data on its own, so a record that can't be parsed is skipped cleanly
+        ByteBufferList data = new ByteBufferList();
+        bb.get(data, length);
+        data.order(ByteOrder.BIG_ENDIAN);
+        try {
+            switch (record.type) {
+                case DnsRecord.A:
+                case DnsRecord.AAAA:
+                    // 4 bytes for A records and 16 for AAAA
+                    record.address = InetAddress.getByAddress(data.getAllByteArray());
+                    break;
+                case DnsRecord.PTR:
+                case DnsRecord.CNAME:
+                    record.target = parseName(data, backReference);
+                    break;
+                case DnsRecord.SRV:
+                    record.priority = data.getShort() & 0xFFFF;
+                    record.weight = data.getShort() & 0xFFFF;
+                    record.port = data.getShort() & 0xFFFF;
+                    record.target = parseName(data, backReference);
+                    break;
+                case DnsRecord.TXT:
+                    while (data.hasRemaining()) {
+                        byte[] bytes = new byte[data.get() & 0x00FF];
+                        data.get(bytes);
+                        record.txt.add(new String(bytes));
+                    }
+                    break;
+                case DnsRecord.SOA:
+                    parseName(data, backReference);
+                    parseName(data, backReference);
+                    // serial, refresh, retry, and expire
+                    data.get(new byte[16]);
+                    record.minimum = data.getInt();
+                    break;
+            }
+        }
+        catch (Exception e) {
+//            e.printStackTrace();
+        }
+        data.recycle();
+        return record;
+    }
+
+    void addTxt(DnsRecord record) {
+        for (String string: record.txt) {
+            int equals = string.indexOf('=');
+            if (equals == -1)
+                txt.add(string, null);
+            else
+                txt.add(string.substring(0, equals), string.substring(equals + 1));
         }
     }
 
@@ -0,0 +1,162 @@
+package com.koushikdutta.async.dns;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.BufferedDataSink;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * DNS over TCP to one nameserver (RFC 7766), for answers that don't fit in a datagram.
+ * Each message is prefixed with its length. Queries are pipelined on the one connection,
+ * and the answers, which may come back in any order, are matched up by id. The connection
+ * is closed once it has been idle for a while, and opened again by the next query.
+ * Only used on the server thread.
+ */
+class DnsTcpConnection {
+    static final long IDLE_TIMEOUT = 5000;
+
+    final AsyncServer server;
+    final InetSocketAddress address;
+    BufferedDataSink sink;
+    boolean connecting;
+    boolean closed;
+    Cancellable idle;
+    int nextId;
+    final HashMap<Integer, SimpleFuture<DnsResponse>> outstanding = new HashMap<Integer, SimpleFuture<DnsResponse>>();
+    // written once connected
+    final ByteBufferList queued = new ByteBufferList();
+    final ByteBufferList read = new ByteBufferList().order(ByteOrder.BIG_ENDIAN);
+
+    DnsTcpConnection(AsyncServer server, InetSocketAddress address) {
+        this.server = server;
+        this.address = address;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Send a query packet, its id is replaced with one that is unique on this connection.
+     */
+    Future<DnsResponse> query(ByteBuffer packet) {
+        SimpleFuture<DnsResponse> ret = new SimpleFuture<DnsResponse>();
+        if (closed) {
+            ret.setComplete(new IOException("connection closed"));
+            return ret;
+        }
+        if (idle != null) {
+            idle.cancel();
+            idle = null;
+        }
+        int id = nextId++ & 0xFFFF;
+        outstanding.put(id, ret);
+        packet.order(ByteOrder.BIG_ENDIAN).putShort(packet.position(), (short)id);
+        ByteBuffer length = ByteBufferList.obtain(2).order(ByteOrder.BIG_ENDIAN);
+        length.putShort((short)packet.remaining());
+        length.flip();
+        ByteBufferList frame = new ByteBufferList(length, packet);
+        if (sink != null) {
+            sink.write(frame);
+            return ret;
+        }
+        frame.get(queued);
+        if (!connecting)
+            connect();
+        return ret;
+    }
+
+    private void connect() {
+        connecting = true;
+        server.connectSocket(address, (ex, socket) -> {
+            connecting = false;
+            if (ex != null) {
+                fail(ex);
+                return;
+            }
+            if (closed) {
+                socket.close();
+                return;
+            }
+            onConnected(socket);
+        });
+    }
+
+    private void onConnected(final AsyncSocket socket) {
+        sink = new BufferedDataSink(socket);
+        socket.setDataCallback((emitter, bb) -> {
+            bb.get(read);
+            parse();
+        });
+        socket.setClosedCallback(ex -> fail(ex != null ? ex : new IOException("connection closed")));
+        socket.setEndCallback(ex -> socket.close());
+        sink.write(queued);
+    }
+
+    private void parse() {
+        while (read.remaining() >= 2) {
+            int length = read.peekShort() & 0xFFFF;
+            if (read.remaining() < length + 2)
+                return;
+            read.getShort();
+            ByteBufferList message = new ByteBufferList();
+            read.get(message, length);
+            DnsResponse response;
+            try {
+                response = DnsResponse.parse(message);
+            }
+            catch (Exception e) {
+                fail(e);
+                return;
+            }
+            finally {
+                message.recycle();
+            }
+            SimpleFuture<DnsResponse> future = outstanding.remove(response.id);
+            if (future != null) {
+                response.source = address;
+                future.setComplete(response);
+            }
+        }
+        if (!closed && outstanding.isEmpty() && idle == null)
+            idle = server.postDelayed(this::close, IDLE_TIMEOUT);
+    }
+
+    private void fail(Exception e) {
+        ArrayList<SimpleFuture<DnsResponse>> failed = new ArrayList<SimpleFuture<DnsResponse>>(outstanding.values());
+        outstanding.clear();
+        close();
+        for (SimpleFuture<DnsResponse> future: failed) {
+            future.setComplete(e);
+        }
+    }
+
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (idle != null) {
+            idle.cancel();
+            idle = null;
+        }
+        queued.recycle();
+        read.recycle();
+        if (sink != null) {
+            AsyncSocket socket = (AsyncSocket)sink.getDataSink();
+            socket.setClosedCallback(null);
+            socket.close();
+        }
+        if (!outstanding.isEmpty())
+            fail(new IOException("connection closed"));
+    }
+}
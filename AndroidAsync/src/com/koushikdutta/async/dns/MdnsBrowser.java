@@ -0,0 +1,502 @@
+package com.koushikdutta.async.dns;
+
+import com.koushikdutta.async.AsyncDatagramSocket;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.Multimap;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Browses for the instances of an mDNS service type, such as _http._tcp.local (RFC 6762, 6763),
+ * for as long as it is started, instead of the one shot Dns.multicastLookup. The multicast group
+ * is joined once, and the PTR, SRV, TXT and address records heard are cached until their ttl runs
+ * out, so getServices answers without a round trip. Queries are repeated at growing intervals and
+ * list the answers already known, which responders then leave out, and records are asked for
+ * again before they expire.
+ * A service is added once its SRV record and an address are known, and removed when it says
+ * goodbye or its records expire. The callback and the cache are on the server thread.
+ */
+public class MdnsBrowser {
+    public static final InetSocketAddress MDNS_GROUP = new InetSocketAddress("224.0.0.251", 5353);
+    static final long FIRST_QUERY_INTERVAL = 1000;
+    static final long MAX_QUERY_INTERVAL = 60 * 60 * 1000;
+    // a goodbye, ttl 0, or a record replaced by a cache flush, lingers this long (RFC 6762 10.1, 10.2)
+    static final long GOODBYE_DELAY = 1000;
+    // don't ask for the same record more often than this
+    static final long QUESTION_INTERVAL = 1000;
+    // the room left in a query when known answers stop being added
+    static final int MAX_PACKET = 1400;
+
+    public interface ServiceCallback {
+        void onServiceAdded(Service service);
+        void onServiceRemoved(Service service);
+    }
+
+    public static class Service {
+        String name;
+        String host;
+        int port;
+        ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+        Multimap txt = new Multimap();
+
+        /**
+         * The instance name, eg "Living Room._airplay._tcp.local".
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public List<InetAddress> getAddresses() {
+            return addresses;
+        }
+
+        public Multimap getTxt() {
+            return txt;
+        }
+
+        boolean isSameService(Service other) {
+            return name.equals(other.name) && host.equalsIgnoreCase(other.host) && port == other.port
+                && addresses.equals(other.addresses) && txt.equals(other.txt);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + host + ":" + port + " " + addresses;
+        }
+    }
+
+    static class CachedRecord {
+        DnsRecord record;
+        long received;
+        long expires;
+        boolean refreshed;
+
+        long getRefreshTime() {
+            // RFC 6762 5.2 asks again at 80% of the ttl
+            return received + record.ttl * 800L;
+        }
+    }
+
+    final AsyncServer server;
+    final String serviceType;
+    final InetSocketAddress group;
+    final Random random = new Random();
+    ServiceCallback callback;
+    AsyncDatagramSocket socket;
+    final ArrayList<CachedRecord> cache = new ArrayList<CachedRecord>();
+    // the resolved services, read from any thread
+    final LinkedHashMap<String, Service> services = new LinkedHashMap<String, Service>();
+    final HashMap<String, Long> asked = new HashMap<String, Long>();
+    long queryInterval;
+    Cancellable queryTimer;
+    Cancellable expiryTimer;
+    int queryCount;
+
+    public MdnsBrowser(AsyncServer server, String serviceType) {
+        this(server, serviceType, MDNS_GROUP);
+    }
+
+    public MdnsBrowser(AsyncServer server, String serviceType, InetSocketAddress group) {
+        this.server = server;
+        this.serviceType = serviceType.toLowerCase(Locale.ENGLISH);
+        this.group = group;
+    }
+
+    public void setCallback(ServiceCallback callback) {
+        this.callback = callback;
+    }
+
+    public ServiceCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * The services found so far, from the cache.
+     */
+    public List<Service> getServices() {
+        synchronized (services) {
+            return new ArrayList<Service>(services.values());
+        }
+    }
+
+    /**
+     * The number of queries sent.
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Join the group and start browsing. The returned future completes once the group is
+     * joined, or with the error if it could not be joined on any interface.
+     */
+    public Future<MdnsBrowser> start() {
+        final SimpleFuture<MdnsBrowser> ret = new SimpleFuture<MdnsBrowser>();
+        server.post(() -> {
+            if (socket != null) {
+                ret.setComplete(this);
+                return;
+            }
+            socket = server.openDatagram(null, group.getPort(), true);
+            try {
+                boolean joined = false;
+                IOException error = null;
+                for (NetworkInterface networkInterface: Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                    if (!networkInterface.isUp() || !networkInterface.supportsMulticast())
+                        continue;
+                    try {
+                        socket.joinGroup(group.getAddress(), networkInterface);
+                        joined = true;
+                    }
+                    catch (IOException e) {
+                        error = e;
+                    }
+                }
+                if (!joined)
+                    throw new IOException("no interface to join " + group + " on", error);
+            }
+            catch (Exception e) {
+                close();
+                ret.setComplete(e);
+                return;
+            }
+            socket.setDataCallback((emitter, bb) -> {
+                DnsResponse response;
+                try {
+                    response = DnsResponse.parse(bb);
+                }
+                catch (Exception e) {
+                    return;
+                }
+                finally {
+                    bb.recycle();
+                }
+                if (!response.query)
+                    onResponse(response);
+            });
+            // the first query goes out after a short random delay, so browsers started together don't collide
+            queryInterval = FIRST_QUERY_INTERVAL;
+            queryTimer = server.postDelayed(this::browse, 20 + random.nextInt(100));
+            ret.setComplete(this);
+        });
+        return ret;
+    }
+
+    /**
+     * Leave the group and forget the services found. Takes effect on the server thread.
+     */
+    public void stop() {
+        server.post(this::close);
+    }
+
+    private void close() {
+        if (queryTimer != null)
+            queryTimer.cancel();
+        if (expiryTimer != null)
+            expiryTimer.cancel();
+        queryTimer = null;
+        expiryTimer = null;
+        if (socket != null)
+            socket.close();
+        socket = null;
+        cache.clear();
+        asked.clear();
+        synchronized (services) {
+            services.clear();
+        }
+    }
+
+    // the periodic PTR query, with the instances already known to be around for a while
+    private void browse() {
+        ArrayList<DnsRecord> known = new ArrayList<DnsRecord>();
+        long now = System.currentTimeMillis();
+        for (CachedRecord cached: cache) {
+            DnsRecord record = cached.record;
+            if (record.type != DnsRecord.PTR || !record.name.equalsIgnoreCase(serviceType))
+                continue;
+            // RFC 6762 7.1, only if more than half the ttl is left
+            if (cached.expires - now <= record.ttl * 500L)
+                continue;
+            known.add(record);
+        }
+        send(Collections.singletonList(new Question(serviceType, DnsRecord.PTR)), known, now);
+        queryTimer = server.postDelayed(this::browse, queryInterval);
+        queryInterval = Math.min(queryInterval * 2, MAX_QUERY_INTERVAL);
+    }
+
+    static class Question {
+        String name;
+        int type;
+
+        Question(String name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private void send(List<Question> questions, List<DnsRecord> known, long now) {
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET + 512).order(ByteOrder.BIG_ENDIAN);
+        // id 0 and no flags for mDNS
+        packet.putShort((short)0);
+        packet.putShort((short)0);
+        packet.putShort((short)questions.size());
+        int answerCount = packet.position();
+        packet.putShort((short)0);
+        packet.putShort((short)0);
+        packet.putShort((short)0);
+        for (Question question: questions) {
+            Dns.addName(packet, question.name);
+            packet.putShort((short)question.type);
+            packet.putShort((short)1);
+        }
+        int answers = 0;
+        for (DnsRecord record: known) {
+            if (packet.position() > MAX_PACKET)
+                break;
+            long remaining = 0;
+            for (CachedRecord cached: cache) {
+                if (cached.record == record)
+                    remaining = (cached.expires - now) / 1000;
+            }
+            Dns.addName(packet, record.name);
+            packet.putShort((short)record.type);
+            packet.putShort((short)1);
+            packet.putInt((int)remaining);
+            int length = packet.position();
+            packet.putShort((short)0);
+            Dns.addName(packet, record.target);
+            packet.putShort(length, (short)(packet.position() - length - 2));
+            answers++;
+        }
+        packet.putShort(answerCount, (short)answers);
+        packet.flip();
+        queryCount++;
+        socket.send(group, packet);
+    }
+
+    private CachedRecord find(DnsRecord record) {
+        for (CachedRecord cached: cache) {
+            if (cached.record.isSameRecord(record))
+                return cached;
+        }
+        return null;
+    }
+
+    // only the records of the service type, its instances, and their hosts are kept
+    private boolean isRelevant(DnsRecord record, ArrayList<DnsRecord> records) {
+        String name = record.name.toLowerCase(Locale.ENGLISH);
+        switch (record.type) {
+            case DnsRecord.PTR:
+                return name.equals(serviceType) && record.target != null;
+            case DnsRecord.SRV:
+                return record.target != null && name.endsWith("." + serviceType);
+            case DnsRecord.TXT:
+                return name.endsWith("." + serviceType);
+            case DnsRecord.A:
+            case DnsRecord.AAAA:
+                if (record.address == null)
+                    return false;
+                for (DnsRecord srv: records) {
+                    if (srv.type == DnsRecord.SRV && srv.target.equalsIgnoreCase(record.name))
+                        return true;
+                }
+                for (CachedRecord cached: cache) {
+                    if (cached.record.type == DnsRecord.SRV && cached.record.target.equalsIgnoreCase(record.name))
+                        return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private void onResponse(DnsResponse response) {
+        long now = System.currentTimeMillis();
+        ArrayList<DnsRecord> records = new ArrayList<DnsRecord>();
+        for (DnsRecord record: response.records) {
+            if (record.type == DnsRecord.PTR || record.type == DnsRecord.SRV || record.type == DnsRecord.TXT) {
+                if (isRelevant(record, records))
+                    records.add(record);
+            }
+        }
+        // addresses last, they are kept for the SRV targets, which may be in this same response
+        for (DnsRecord record: response.records) {
+            if ((record.type == DnsRecord.A || record.type == DnsRecord.AAAA) && isRelevant(record, records))
+                records.add(record);
+        }
+        if (records.isEmpty())
+            return;
+
+        for (DnsRecord record: records) {
+            if (record.cacheFlush) {
+                // the other records with this name and type are stale
+                for (CachedRecord cached: cache) {
+                    if (cached.record.type == record.type && cached.record.name.equalsIgnoreCase(record.name)
+                        && !cached.record.isSameRecord(record) && cached.received < now - GOODBYE_DELAY)
+                        cached.expires = Math.min(cached.expires, now + GOODBYE_DELAY);
+                }
+            }
+            CachedRecord cached = find(record);
+            if (cached == null) {
+                cached = new CachedRecord();
+                cache.add(cached);
+            }
+            cached.record = record;
+            cached.received = now;
+            cached.refreshed = false;
+            cached.expires = record.ttl <= 0 ? now + GOODBYE_DELAY : now + record.ttl * 1000L;
+        }
+        update();
+    }
+
+    private void expire() {
+        expiryTimer = null;
+        long now = System.currentTimeMillis();
+        ArrayList<Question> questions = new ArrayList<Question>();
+        for (Iterator<CachedRecord> i = cache.iterator(); i.hasNext();) {
+            CachedRecord cached = i.next();
+            if (cached.expires <= now) {
+                i.remove();
+            }
+            else if (!cached.refreshed && cached.record.ttl > 0 && cached.getRefreshTime() <= now) {
+                cached.refreshed = true;
+                questions.add(new Question(cached.record.name, cached.record.type));
+            }
+        }
+        if (!questions.isEmpty())
+            send(questions, new ArrayList<DnsRecord>(), now);
+        update();
+    }
+
+    private void ask(ArrayList<Question> questions, String name, int type, long now) {
+        String key = name.toLowerCase(Locale.ENGLISH) + "/" + type;
+        Long last = asked.get(key);
+        if (last != null && last + QUESTION_INTERVAL > now)
+            return;
+        asked.put(key, now);
+        questions.add(new Question(name, type));
+    }
+
+    // rebuild the services from the cache, report what changed, and ask for what is missing
+    private void update() {
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Service> current = new LinkedHashMap<String, Service>();
+        ArrayList<Question> questions = new ArrayList<Question>();
+        for (CachedRecord ptr: cache) {
+            if (ptr.record.type != DnsRecord.PTR)
+                continue;
+            String instance = ptr.record.target;
+            DnsRecord srv = null;
+            Service service = new Service();
+            service.name = instance;
+            for (CachedRecord cached: cache) {
+                DnsRecord record = cached.record;
+                if (!record.name.equalsIgnoreCase(instance))
+                    continue;
+                if (record.type == DnsRecord.SRV)
+                    srv = record;
+                else if (record.type == DnsRecord.TXT)
+                    service.txt = toMultimap(record);
+            }
+            if (srv == null) {
+                ask(questions, instance, DnsRecord.SRV, now);
+                ask(questions, instance, DnsRecord.TXT, now);
+                continue;
+            }
+            service.host = srv.target;
+            service.port = srv.port;
+            for (CachedRecord cached: cache) {
+                DnsRecord record = cached.record;
+                if (record.address != null && record.name.equalsIgnoreCase(srv.target))
+                    service.addresses.add(record.address);
+            }
+            if (service.addresses.isEmpty()) {
+                ask(questions, srv.target, DnsRecord.A, now);
+                ask(questions, srv.target, DnsRecord.AAAA, now);
+                continue;
+            }
+            // ipv4 first, like AsyncServer.getAllByName
+            Collections.sort(service.addresses, (l, r) -> (l instanceof Inet4Address ? 0 : 1) - (r instanceof Inet4Address ? 0 : 1));
+            current.put(instance.toLowerCase(Locale.ENGLISH), service);
+        }
+
+        ArrayList<Service> added = new ArrayList<Service>();
+        ArrayList<Service> removed = new ArrayList<Service>();
+        synchronized (services) {
+            for (String key: services.keySet()) {
+                if (!current.containsKey(key))
+                    removed.add(services.get(key));
+            }
+            for (String key: current.keySet()) {
+                Service previous = services.get(key);
+                if (previous == null)
+                    added.add(current.get(key));
+                else if (!previous.isSameService(current.get(key)))
+                    // an update is reported as the old one going away and the new one being added
+                    removed.add(previous);
+            }
+            for (Service service: removed) {
+                if (current.containsKey(service.name.toLowerCase(Locale.ENGLISH)))
+                    added.add(current.get(service.name.toLowerCase(Locale.ENGLISH)));
+            }
+            services.clear();
+            services.putAll(current);
+        }
+
+        if (!questions.isEmpty() && socket != null)
+            send(questions, new ArrayList<DnsRecord>(), now);
+
+        // wake up for the next expiry or refresh
+        long next = Long.MAX_VALUE;
+        for (CachedRecord cached: cache) {
+            next = Math.min(next, cached.expires);
+            if (!cached.refreshed && cached.record.ttl > 0)
+                next = Math.min(next, cached.getRefreshTime());
+        }
+        if (expiryTimer != null)
+            expiryTimer.cancel();
+        expiryTimer = null;
+        if (next != Long.MAX_VALUE)
+            expiryTimer = server.postDelayed(this::expire, Math.max(0, next - now));
+
+        if (callback == null)
+            return;
+        for (Service service: removed) {
+            callback.onServiceRemoved(service);
+        }
+        for (Service service: added) {
+            callback.onServiceAdded(service);
+        }
+    }
+
+    private static Multimap toMultimap(DnsRecord record) {
+        DnsResponse response = new DnsResponse();
+        response.addTxt(record);
+        return response.txt;
+    }
+}
@@ -0,0 +1,60 @@
+package com.koushikdutta.async.http;
+
+import java.lang.reflect.Method;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * ALPN protocol selection through SSLParameters.setApplicationProtocols and
+ * SSLEngine.getApplicationProtocol, looked up by reflection since they are only
+ * available on Java 9 and Android Q and up. Does nothing where they are missing.
+ */
+public class Alpn {
+    private static Method setApplicationProtocols;
+    private static Method getApplicationProtocol;
+
+    static {
+        try {
+            setApplicationProtocols = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            getApplicationProtocol = SSLEngine.class.getMethod("getApplicationProtocol");
+        }
+        catch (Exception e) {
+            setApplicationProtocols = null;
+            getApplicationProtocol = null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return setApplicationProtocols != null;
+    }
+
+    public static void setProtocols(SSLEngine engine, String... protocols) {
+        if (!isSupported() || engine == null)
+            return;
+        try {
+            SSLParameters parameters = engine.getSSLParameters();
+            setApplicationProtocols.invoke(parameters, (Object)protocols);
+            engine.setSSLParameters(parameters);
+        }
+        catch (Exception e) {
+        }
+    }
+
+    /**
+     * The protocol chosen during the handshake, or null if none was negotiated.
+     */
+    public static String getProtocol(SSLEngine engine) {
+        if (!isSupported() || engine == null)
+            return null;
+        try {
+            String protocol = (String)getApplicationProtocol.invoke(engine);
+            if (protocol == null || protocol.length() == 0)
+                return null;
+            return protocol;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -66,12 +66,14 @@ public class AsyncHttpClient {
     AsyncSSLSocketMiddleware sslSocketMiddleware;
     AsyncSocketMiddleware socketMiddleware;
     HttpTransportMiddleware httpTransportMiddleware;
+    Http2Middleware http2Middleware;
     AsyncServer mServer;
     public AsyncHttpClient(AsyncServer server) {
         mServer = server;
         insertMiddleware(socketMiddleware = new AsyncSocketMiddleware(this));
         insertMiddleware(sslSocketMiddleware = new AsyncSSLSocketMiddleware(this));
         insertMiddleware(httpTransportMiddleware = new HttpTransportMiddleware());
+        insertMiddleware(http2Middleware = new Http2Middleware());
         sslSocketMiddleware.addEngineConfigurator(new SSLEngineSNIConfigurator());
     }
 
@@ -119,6 +121,20 @@ public class AsyncHttpClient {
         return sslSocketMiddleware;
     }
 
+    /**
+     * Keep count connections to the host of the url open and ready for requests.
+     * See AsyncSocketMiddleware.keepWarm.
+     */
+    public void keepWarm(String url, int count) {
+        Uri uri = Uri.parse(url);
+        for (AsyncHttpClientMiddleware middleware: mMiddleware) {
+            if (middleware instanceof AsyncSocketMiddleware && ((AsyncSocketMiddleware)middleware).getSchemePort(uri) != -1) {
+                ((AsyncSocketMiddleware)middleware).keepWarm(uri, count);
+                return;
+            }
+        }
+    }
+
     public Future<AsyncHttpResponse> execute(final AsyncHttpRequest request, final HttpConnectCallback callback) {
         FutureAsyncHttpResponse ret;
         execute(request, 0, ret = new FutureAsyncHttpResponse(), callback);
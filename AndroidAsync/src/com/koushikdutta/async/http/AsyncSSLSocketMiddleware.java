@@ -73,9 +73,24 @@ public class AsyncSSLSocketMiddleware extends AsyncSocketMiddleware {
             configurator.configureEngine(sslEngine, data, host, port);
         }
 
+        if (isHttp2Enabled(data.request))
+            Alpn.setProtocols(sslEngine, Protocol.HTTP_2.toString(), Protocol.HTTP_1_1.toString());
+
         return sslEngine;
     }
 
+    @Override
+    protected boolean supportsHttp2() {
+        return Alpn.isSupported();
+    }
+
+    @Override
+    protected boolean isHttp2(AsyncSocket socket) {
+        if (!(socket instanceof AsyncSSLSocket))
+            return false;
+        return Protocol.HTTP_2.toString().equals(Alpn.getProtocol(((AsyncSSLSocket)socket).getSSLEngine()));
+    }
+
     protected AsyncSSLSocketWrapper.HandshakeCallback createHandshakeCallback(final GetSocketData data, final ConnectCallback callback) {
         return new AsyncSSLSocketWrapper.HandshakeCallback() {
             @Override
@@ -5,17 +5,20 @@ import android.net.Uri;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.HappyEyeballs;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.ConnectCallback;
 import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.future.Cancellable;
-import com.koushikdutta.async.future.Future;
-import com.koushikdutta.async.future.Futures;
 import com.koushikdutta.async.future.SimpleCancellable;
-import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.http2.Http2Connection;
+import com.koushikdutta.async.http.http2.Http2Stream;
 import com.koushikdutta.async.util.ArrayDeque;
+import com.koushikdutta.async.util.LruCache;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Locale;
 
@@ -32,6 +35,7 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
     }
 
     public void setIdleTimeoutMs(int idleTimeoutMs) {
+        // a reaper waiting on the old timeout is rescheduled the next time the pool is used
         this.idleTimeoutMs = idleTimeoutMs;
     }
     
@@ -61,10 +65,21 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         return connectAllAddresses;
     }
 
+    /**
+     * Resolve all the addresses of a host and race connections to them, see HappyEyeballs,
+     * instead of connecting to the first address only.
+     */
     public void setConnectAllAddresses(boolean connectAllAddresses) {
         this.connectAllAddresses = connectAllAddresses;
     }
 
+    HappyEyeballs happyEyeballs;
+    public HappyEyeballs getHappyEyeballs() {
+        if (happyEyeballs == null)
+            happyEyeballs = new HappyEyeballs(mClient.getServer());
+        return happyEyeballs;
+    }
+
     String proxyHost;
     int proxyPort;
     InetSocketAddress proxyAddress;
@@ -95,19 +110,61 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
     }
 
     class IdleSocketHolder {
-        public IdleSocketHolder(AsyncSocket socket) {
+        public IdleSocketHolder(AsyncSocket socket, String lookup, Uri uri, int port) {
             this.socket = socket;
+            this.lookup = lookup;
+            this.uri = uri;
+            this.port = port;
         }
         AsyncSocket socket;
+        String lookup;
+        Uri uri;
+        int port;
         long idleTime = System.currentTimeMillis();
+        // neighbours in the idle list across all hosts
+        IdleSocketHolder older;
+        IdleSocketHolder newer;
+        boolean linked;
     }
 
     static class ConnectionInfo {
         int openCount;
         ArrayDeque<GetSocketData> queue = new ArrayDeque<GetSocketData>();
         ArrayDeque<IdleSocketHolder> sockets = new ArrayDeque<IdleSocketHolder>();
+        ArrayList<HttpPipeline> pipelines = new ArrayList<HttpPipeline>();
+        Http2Connection http2;
+        boolean http2Connecting;
+        // requests waiting for the HTTP/2 connection to connect, or for a free stream
+        ArrayDeque<GetSocketData> http2Queue = new ArrayDeque<GetSocketData>();
+        // idle sockets to keep ready, see keepWarm
+        int warmCount;
+        int warming;
+    }
+
+    // recent requests to a host, for predictive connects
+    static class Traffic {
+        long windowStart;
+        int requests;
     }
-    Hashtable<String, ConnectionInfo> connectionInfo = new Hashtable<String, ConnectionInfo>();
+    // the pool is only touched from the client's AsyncServer thread, so it takes no locks.
+    HashMap<String, ConnectionInfo> connectionInfo = new HashMap<String, ConnectionInfo>();
+
+    // idle sockets across all hosts, least recently used first
+    IdleSocketHolder oldestIdle;
+    IdleSocketHolder newestIdle;
+    int idleCount;
+    int totalOpenCount;
+    int warmingCount;
+    // requests waiting for room under maxTotalConnectionCount
+    ArrayDeque<GetSocketData> waiting = new ArrayDeque<GetSocketData>();
+    Cancellable reaper;
+    // the idle timeout the reaper was scheduled with
+    int reaperTimeoutMs;
+
+    int hitCount;
+    int missCount;
+    int evictionCount;
+    long waitTimeMs;
 
     int maxConnectionCount = Integer.MAX_VALUE;
 
@@ -119,6 +176,333 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         this.maxConnectionCount = maxConnectionCount;
     }
 
+    int maxTotalConnectionCount = Integer.MAX_VALUE;
+
+    public int getMaxTotalConnectionCount() {
+        return maxTotalConnectionCount;
+    }
+
+    /**
+     * Cap the sockets held across all hosts, in use or idle. A new connection closes the least
+     * recently used idle socket to make room, or waits if none are idle.
+     */
+    public void setMaxTotalConnectionCount(int maxTotalConnectionCount) {
+        this.maxTotalConnectionCount = maxTotalConnectionCount;
+    }
+
+    int maxIdleSocketCount = 64;
+
+    public int getMaxIdleSocketCount() {
+        return maxIdleSocketCount;
+    }
+
+    /**
+     * Cap the idle keep-alive sockets kept across all hosts. The least recently used are
+     * closed first.
+     */
+    public void setMaxIdleSocketCount(int maxIdleSocketCount) {
+        this.maxIdleSocketCount = maxIdleSocketCount;
+    }
+
+    public int getIdleSocketCount() {
+        return idleCount;
+    }
+
+    /**
+     * Requests that were handed an idle keep-alive socket.
+     */
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Requests that had to open a new connection.
+     */
+    public int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Idle sockets closed by the pool, for being over a limit or idle for too long.
+     */
+    public int getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Total time requests spent queued for a connection under the connection limits.
+     */
+    public long getWaitTimeMs() {
+        return waitTimeMs;
+    }
+
+    // a host with this many requests in a window is kept warm by predictive connects
+    static final int HOT_REQUESTS = 4;
+    static final long HOT_WINDOW_MS = 60 * 1000;
+
+    boolean predictiveConnect;
+    LruCache<String, Traffic> traffic = new LruCache<String, Traffic>(256);
+
+    /**
+     * Keep count idle connections to the scheme, host and port of the uri open and ready
+     * for requests, so they don't wait on the connect, or the TLS handshake for https.
+     * Sockets that are taken by a request or closed are replaced, within the idle and total
+     * connection limits. Pass 0 to stop. Hosts that use HTTP/2 or a proxy are not warmed.
+     */
+    public void keepWarm(final Uri uri, final int count) {
+        final int port = getSchemePort(uri);
+        if (port == -1)
+            return;
+        mClient.getServer().post(() -> {
+            String lookup = computeLookup(uri, port, null, 0);
+            ConnectionInfo info = getOrCreateConnectionInfo(lookup);
+            info.warmCount = count;
+            warm(lookup, uri, port);
+            maybeCleanupConnectionInfo(lookup);
+        });
+    }
+
+    /**
+     * Learn which hosts see steady traffic, and open a spare connection to them in the
+     * background once their last idle socket is taken. Spares only use idle room in the pool.
+     */
+    public void setPredictiveConnect(boolean enabled) {
+        predictiveConnect = enabled;
+    }
+
+    public boolean getPredictiveConnect() {
+        return predictiveConnect;
+    }
+
+    private boolean isHot(String lookup) {
+        if (!predictiveConnect)
+            return false;
+        Traffic t = traffic.get(lookup);
+        return t != null && t.requests >= HOT_REQUESTS && t.windowStart + HOT_WINDOW_MS > System.currentTimeMillis();
+    }
+
+    private void recordTraffic(String lookup) {
+        if (!predictiveConnect)
+            return;
+        long now = System.currentTimeMillis();
+        Traffic t = traffic.get(lookup);
+        if (t == null) {
+            t = new Traffic();
+            traffic.put(lookup, t);
+        }
+        if (t.windowStart + HOT_WINDOW_MS <= now) {
+            // a new window, a host that was hot stays hot while its rate holds up
+            t.requests = t.requests >= HOT_REQUESTS ? HOT_REQUESTS / 2 : 0;
+            t.windowStart = now;
+        }
+        t.requests++;
+    }
+
+    // top up the idle sockets of a host that is kept warm, or hot.
+    private void warm(final String lookup, Uri uri, int port) {
+        ConnectionInfo info = connectionInfo.get(lookup);
+        if (info == null || proxyHost != null)
+            return;
+        int target = info.warmCount;
+        if (target == 0 && isHot(lookup))
+            target = 1;
+        final AsyncHttpRequest request = new AsyncHttpHead(uri);
+        if (isHttp2Enabled(request))
+            return;
+        while (info.sockets.size() + info.warming < target
+            && idleCount + warmingCount < maxIdleSocketCount
+            && totalOpenCount + idleCount + warmingCount < maxTotalConnectionCount) {
+            info.warming++;
+            warmingCount++;
+            request.logd("Warming connection");
+            GetSocketData data = new GetSocketData();
+            data.request = request;
+            data.connectCallback = (ex, socket) -> {
+                ConnectionInfo current = getOrCreateConnectionInfo(lookup);
+                current.warming--;
+                warmingCount--;
+                if (ex != null || !socket.isOpen()) {
+                    maybeCleanupConnectionInfo(lookup);
+                    drainWaiting();
+                    return;
+                }
+                idleSocket(socket);
+                recycleSocket(socket, request);
+                drainWaiting();
+            };
+            connect(data, uri, port);
+        }
+    }
+
+    private void warmLater(final String lookup, final Uri uri, final int port) {
+        ConnectionInfo info = connectionInfo.get(lookup);
+        if (info == null || (info.warmCount == 0 && !isHot(lookup)))
+            return;
+        mClient.getServer().post(() -> warm(lookup, uri, port));
+    }
+
+    Hashtable<String, Integer> pipelineDepths = new Hashtable<String, Integer>();
+
+    /**
+     * Pipeline up to depth GET and HEAD requests to the host on each keep-alive connection,
+     * rather than waiting for a response before sending the next request.
+     * The server must be known to handle pipelining properly. Requests are written again on a
+     * new connection if the connection closes before their response starts.
+     * Requests through a proxy are never pipelined.
+     */
+    public void enablePipelining(String host, int depth) {
+        pipelineDepths.put(host.toLowerCase(Locale.US), depth);
+    }
+
+    public void disablePipelining(String host) {
+        pipelineDepths.remove(host.toLowerCase(Locale.US));
+    }
+
+    private int getPipelineDepth(AsyncHttpRequest request) {
+        if (proxyHost != null || request.getProxyHost() != null || request.getBody() != null)
+            return 0;
+        if (!AsyncHttpGet.METHOD.equals(request.getMethod()) && !AsyncHttpHead.METHOD.equals(request.getMethod()))
+            return 0;
+        Headers headers = request.getHeaders();
+        if (headers.get("Upgrade") != null || "close".equalsIgnoreCase(headers.get("Connection")))
+            return 0;
+        String host = request.getUri().getHost();
+        if (host == null)
+            return 0;
+        Integer depth = pipelineDepths.get(host.toLowerCase(Locale.US));
+        if (depth == null || depth < 2)
+            return 0;
+        return depth;
+    }
+
+    Hashtable<String, Boolean> http2Hosts = new Hashtable<String, Boolean>();
+
+    /**
+     * Multiplex requests to the host as concurrent streams over a single HTTP/2 connection.
+     * Plain http connections speak HTTP/2 straight away, so the server must be known to
+     * support it. https connections offer it with ALPN and fall back to HTTP/1.1 if the
+     * server declines. Requests through a proxy never use HTTP/2.
+     */
+    public void enableHttp2(String host) {
+        http2Hosts.put(host.toLowerCase(Locale.US), true);
+    }
+
+    public void disableHttp2(String host) {
+        http2Hosts.remove(host.toLowerCase(Locale.US));
+    }
+
+    protected boolean supportsHttp2() {
+        return true;
+    }
+
+    /**
+     * Whether a newly connected socket should be used for HTTP/2.
+     */
+    protected boolean isHttp2(AsyncSocket socket) {
+        return true;
+    }
+
+    boolean isHttp2Enabled(AsyncHttpRequest request) {
+        if (!supportsHttp2() || proxyHost != null || request.getProxyHost() != null)
+            return false;
+        if (request.getHeaders().get("Upgrade") != null)
+            return false;
+        String host = request.getUri().getHost();
+        return host != null && Boolean.TRUE.equals(http2Hosts.get(host.toLowerCase(Locale.US)));
+    }
+
+    private Cancellable completed() {
+        SimpleCancellable ret = new SimpleCancellable();
+        ret.setComplete();
+        return ret;
+    }
+
+    // hand out a stream on the host's HTTP/2 connection, or queue the request until there is one.
+    // returns null if a new connection has to be made.
+    private Cancellable getHttp2Stream(ConnectionInfo info, GetSocketData data) {
+        if (info.http2 != null && !info.http2.isOpen())
+            info.http2 = null;
+        if (info.http2 != null && info.http2.canCreateStream()) {
+            data.request.logd("Reusing HTTP/2 connection");
+            data.protocol = Protocol.HTTP_2.toString();
+            data.connectCallback.onConnectCompleted(null, info.http2.newStream());
+            return completed();
+        }
+        if (info.http2 != null || info.http2Connecting) {
+            SimpleCancellable queueCancel = new SimpleCancellable();
+            info.http2Queue.add(data);
+            return queueCancel;
+        }
+        return null;
+    }
+
+    private void drainHttp2Queue(String lookup) {
+        ConnectionInfo info = connectionInfo.get(lookup);
+        if (info == null)
+            return;
+        while (!info.http2Queue.isEmpty()) {
+            if (info.http2 != null && info.http2.isOpen() && !info.http2.canCreateStream())
+                break;
+            GetSocketData gsd = info.http2Queue.remove();
+            SimpleCancellable socketCancellable = (SimpleCancellable)gsd.socketCancellable;
+            if (socketCancellable.isCancelled())
+                continue;
+            Cancellable connect = getSocket(gsd);
+            socketCancellable.setParent(connect);
+            // another connection attempt is under way, the rest wait for it
+            if (info.http2Connecting)
+                break;
+        }
+        maybeCleanupConnectionInfo(lookup);
+    }
+
+    private ConnectCallback wrapHttp2Callback(final String lookup, final GetSocketData data) {
+        final ConnectCallback callback = data.connectCallback;
+        return (ex, socket) -> {
+            if (ex != null || !isHttp2(socket)) {
+                if (ex == null) {
+                    // the server chose HTTP/1.1, don't offer HTTP/2 again.
+                    data.request.logd("Server declined HTTP/2");
+                    http2Hosts.put(data.request.getUri().getHost().toLowerCase(Locale.US), false);
+                }
+                getOrCreateConnectionInfo(lookup).http2Connecting = false;
+                callback.onConnectCompleted(ex, socket);
+                drainHttp2Queue(lookup);
+                return;
+            }
+
+            final Http2Connection connection = new Http2Connection(socket, true);
+            connection.setClosedCallback(e -> {
+                ConnectionInfo info = connectionInfo.get(lookup);
+                if (info != null && info.http2 == connection)
+                    info.http2 = null;
+                drainHttp2Queue(lookup);
+            });
+            ConnectionInfo info = getOrCreateConnectionInfo(lookup);
+            info.http2Connecting = false;
+            info.http2 = connection;
+            data.protocol = Protocol.HTTP_2.toString();
+            callback.onConnectCompleted(null, connection.newStream());
+            // streams don't hold on to a connection slot
+            nextConnection(data.request);
+            drainHttp2Queue(lookup);
+        };
+    }
+
+    HttpPipeline newPipeline(String lookup, GetSocketData data) {
+        HttpPipeline pipeline = new HttpPipeline(this, lookup, data);
+        getOrCreateConnectionInfo(lookup).pipelines.add(pipeline);
+        return pipeline;
+    }
+
+    void removePipeline(HttpPipeline pipeline) {
+        ConnectionInfo info = connectionInfo.get(pipeline.lookup);
+        if (info == null)
+            return;
+        info.pipelines.remove(pipeline);
+        maybeCleanupConnectionInfo(pipeline.lookup);
+    }
+
     @Override
     public Cancellable getSocket(final GetSocketData data) {
         final Uri uri = data.request.getUri();
@@ -127,41 +511,107 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
             return null;
         }
 
+        // picks up a changed idle timeout
+        scheduleReaper();
+
         data.state.put("socket-owner", this);
 
         final String lookup = computeLookup(uri, port, data.request.getProxyHost(), data.request.getProxyPort());
         ConnectionInfo info = getOrCreateConnectionInfo(lookup);
-        synchronized (AsyncSocketMiddleware.this) {
-            if (info.openCount >= maxConnectionCount) {
-                // wait for a connection queue to free up
-                SimpleCancellable queueCancel = new SimpleCancellable();
-                info.queue.add(data);
-                return queueCancel;
-            }
-
-            info.openCount++;
+        recordTraffic(lookup);
+        final boolean http2 = isHttp2Enabled(data.request);
+        final int pipelineDepth = http2 ? 0 : getPipelineDepth(data.request);
+        if (http2) {
+            Cancellable stream = getHttp2Stream(info, data);
+            if (stream != null)
+                return stream;
+        }
 
-            while (!info.sockets.isEmpty()) {
-                IdleSocketHolder idleSocketHolder = info.sockets.pop();
-                final AsyncSocket socket = idleSocketHolder.socket;
-                if (idleSocketHolder.idleTime + idleTimeoutMs < System.currentTimeMillis()) {
-                    socket.setClosedCallback(null);
-                    socket.close();
-                    continue;
-                }
-                if (!socket.isOpen())
+        // join a connection that is already pipelining, including one still connecting
+        if (pipelineDepth > 0) {
+            for (HttpPipeline pipeline: info.pipelines) {
+                if (!pipeline.canJoin(pipelineDepth))
                     continue;
-
-                data.request.logd("Reusing keep-alive socket");
-                data.connectCallback.onConnectCompleted(null, socket);
-
-                // just a noop/dummy, as this can't actually be cancelled.
+                info.openCount++;
+                totalOpenCount++;
+                data.request.logd("Pipelining request");
+                data.connectCallback.onConnectCompleted(null, pipeline.attach(data.request));
                 SimpleCancellable ret = new SimpleCancellable();
                 ret.setComplete();
                 return ret;
             }
         }
 
+        if (info.openCount >= maxConnectionCount) {
+            // wait for a connection queue to free up
+            return enqueue(info.queue, data);
+        }
+
+        // idle sockets are HTTP/1.1, HTTP/2 connects anew.
+        while (!http2 && !info.sockets.isEmpty()) {
+            IdleSocketHolder idleSocketHolder = info.sockets.pop();
+            unlinkIdle(idleSocketHolder);
+            final AsyncSocket socket = idleSocketHolder.socket;
+            if (idleSocketHolder.idleTime + idleTimeoutMs < System.currentTimeMillis()) {
+                evictionCount++;
+                socket.setClosedCallback(null);
+                socket.close();
+                continue;
+            }
+            if (!socket.isOpen())
+                continue;
+
+            info.openCount++;
+            totalOpenCount++;
+            hitCount++;
+            warmLater(lookup, uri, port);
+            data.request.logd("Reusing keep-alive socket");
+            if (pipelineDepth > 0) {
+                HttpPipeline pipeline = newPipeline(lookup, data);
+                data.connectCallback.onConnectCompleted(null, pipeline.attach(data.request));
+                pipeline.start(socket);
+            }
+            else {
+                data.connectCallback.onConnectCompleted(null, socket);
+            }
+
+            // just a noop/dummy, as this can't actually be cancelled.
+            SimpleCancellable ret = new SimpleCancellable();
+            ret.setComplete();
+            return ret;
+        }
+
+        // a new connection has to fit in the total budget, an idle one can make way.
+        if (totalOpenCount + idleCount + warmingCount >= maxTotalConnectionCount) {
+            if (oldestIdle == null)
+                return enqueue(waiting, data);
+            evictIdle(oldestIdle);
+        }
+
+        info.openCount++;
+        totalOpenCount++;
+        missCount++;
+        warmLater(lookup, uri, port);
+
+        if (http2) {
+            info.http2Connecting = true;
+            data.connectCallback = wrapHttp2Callback(lookup, data);
+        }
+
+        if (pipelineDepth > 0) {
+            data.request.logd("Connecting pipelined socket");
+            HttpPipeline pipeline = newPipeline(lookup, data);
+            data.connectCallback.onConnectCompleted(null, pipeline.attach(data.request));
+            pipeline.connect();
+            SimpleCancellable ret = new SimpleCancellable();
+            ret.setComplete();
+            return ret;
+        }
+
+        return connect(data, uri, port);
+    }
+
+    private Cancellable connect(final GetSocketData data, final Uri uri, final int port) {
         if (!connectAllAddresses || proxyHost != null || data.request.getProxyHost() != null) {
             // just default to connecting to a single address
             data.request.logd("Connecting socket");
@@ -186,43 +636,9 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
                 wrapCallback(data, uri, port, proxied, data.connectCallback));
         }
 
-        // try to connect to everything...
-        data.request.logv("Resolving domain and connecting to all available addresses");
-
-        final SimpleFuture<AsyncSocket> checkedReturnValue = new SimpleFuture<>();
-
-        Future<AsyncSocket> socket = mClient.getServer().getAllByName(uri.getHost())
-        .then(addresses -> Futures.loopUntil(addresses, address -> {
-            SimpleFuture<AsyncSocket> loopResult = new SimpleFuture<>();
-
-            final String inetSockAddress = String.format(Locale.ENGLISH, "%s:%s", address, port);
-            data.request.logv("attempting connection to " + inetSockAddress);
-
-            mClient.getServer().connectSocket(new InetSocketAddress(address, port), loopResult::setComplete);
-            return loopResult;
-        }))
-        // handle failures here (wrap the callback)
-        .fail(e -> wrapCallback(data, uri, port, false, data.connectCallback).onConnectCompleted(e, null));
-
-        checkedReturnValue.setComplete(socket)
-        .setCallback((e, successfulSocket) -> {
-            if (successfulSocket == null)
-                return;
-            // SimpleFuture.setComplete(Future) returns a future as to whether
-            // the completion was successful, or the future has been cancelled,
-            // thus the completion failed.
-            // The exception value will only ever be a CancellationException.
-            if (e == null) {
-                // handle successes here (wrap the callback)
-                wrapCallback(data, uri, port, false, data.connectCallback).onConnectCompleted(null, successfulSocket);
-                return;
-            }
-            data.request.logd("Recycling extra socket leftover from cancelled operation");
-            idleSocket(successfulSocket);
-            recycleSocket(successfulSocket, data.request);
-        });
-
-        return checkedReturnValue;
+        // race the addresses of the host, the first one to connect wins.
+        data.request.logv("Resolving domain and racing connections to all available addresses");
+        return getHappyEyeballs().connect(uri.getHost(), port, wrapCallback(data, uri, port, false, data.connectCallback));
     }
 
     private ConnectionInfo getOrCreateConnectionInfo(String lookup) {
@@ -234,49 +650,138 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         return info;
     }
 
+    private Cancellable enqueue(ArrayDeque<GetSocketData> queue, GetSocketData data) {
+        data.state.put("pool-wait-start", System.currentTimeMillis());
+        queue.add(data);
+        return new SimpleCancellable();
+    }
+
+    private void dequeued(GetSocketData data) {
+        Long start = data.state.get("pool-wait-start");
+        data.state.remove("pool-wait-start");
+        if (start != null)
+            waitTimeMs += System.currentTimeMillis() - start;
+    }
+
+    // retry the requests waiting on the total budget, while there is room or an idle socket to close.
+    private void drainWaiting() {
+        while (!waiting.isEmpty() && (totalOpenCount + idleCount + warmingCount < maxTotalConnectionCount || oldestIdle != null)) {
+            GetSocketData gsd = waiting.remove();
+            dequeued(gsd);
+            SimpleCancellable socketCancellable = (SimpleCancellable)gsd.socketCancellable;
+            if (socketCancellable.isCancelled())
+                continue;
+            Cancellable connect = getSocket(gsd);
+            socketCancellable.setParent(connect);
+        }
+    }
+
+    private void linkIdle(IdleSocketHolder holder) {
+        holder.linked = true;
+        holder.older = newestIdle;
+        holder.newer = null;
+        if (newestIdle != null)
+            newestIdle.newer = holder;
+        else
+            oldestIdle = holder;
+        newestIdle = holder;
+        idleCount++;
+    }
+
+    private void unlinkIdle(IdleSocketHolder holder) {
+        if (!holder.linked)
+            return;
+        holder.linked = false;
+        if (holder.older != null)
+            holder.older.newer = holder.newer;
+        else
+            oldestIdle = holder.newer;
+        if (holder.newer != null)
+            holder.newer.older = holder.older;
+        else
+            newestIdle = holder.older;
+        holder.older = holder.newer = null;
+        idleCount--;
+    }
+
+    private void evictIdle(IdleSocketHolder holder) {
+        unlinkIdle(holder);
+        evictionCount++;
+        ConnectionInfo info = connectionInfo.get(holder.lookup);
+        if (info != null)
+            info.sockets.remove(holder);
+        // remove the callback, prevent reentrancy.
+        holder.socket.setClosedCallback(null);
+        holder.socket.close();
+        maybeCleanupConnectionInfo(holder.lookup);
+    }
+
+    private void scheduleReaper() {
+        if (reaper != null) {
+            if (reaperTimeoutMs == idleTimeoutMs)
+                return;
+            reaper.cancel();
+            reaper = null;
+        }
+        if (oldestIdle == null)
+            return;
+        reaperTimeoutMs = idleTimeoutMs;
+        long delay = Math.max(0, oldestIdle.idleTime + idleTimeoutMs - System.currentTimeMillis());
+        reaper = mClient.getServer().postDelayed(this::reap, delay);
+    }
+
+    // close the sockets that have been idle too long, oldest first, then wait on the next one.
+    private void reap() {
+        reaper = null;
+        long now = System.currentTimeMillis();
+        while (oldestIdle != null && oldestIdle.idleTime + idleTimeoutMs <= now) {
+            IdleSocketHolder expired = oldestIdle;
+            evictIdle(expired);
+            // a host kept warm gets a fresh one
+            warmLater(expired.lookup, expired.uri, expired.port);
+        }
+        scheduleReaper();
+        drainWaiting();
+    }
+
     private void maybeCleanupConnectionInfo(String lookup) {
         ConnectionInfo info = connectionInfo.get(lookup);
         if (info == null)
             return;
-        while (!info.sockets.isEmpty()) {
-            IdleSocketHolder idleSocketHolder = info.sockets.peekLast();
-            AsyncSocket socket = idleSocketHolder.socket;
-            if (idleSocketHolder.idleTime + idleTimeoutMs > System.currentTimeMillis())
-                break;
-            info.sockets.pop();
-            // remove the callback, prevent reentrancy.
-            socket.setClosedCallback(null);
-            socket.close();
-        }
-        if (info.openCount == 0 && info.queue.isEmpty() && info.sockets.isEmpty())
+        if (info.openCount == 0 && info.queue.isEmpty() && info.sockets.isEmpty() && info.pipelines.isEmpty()
+            && info.warmCount == 0 && info.warming == 0
+            && info.http2 == null && !info.http2Connecting && info.http2Queue.isEmpty())
             connectionInfo.remove(lookup);
     }
 
-    private void recycleSocket(final AsyncSocket socket, AsyncHttpRequest request) {
+    void recycleSocket(final AsyncSocket socket, AsyncHttpRequest request) {
         if (socket == null)
             return;
         Uri uri = request.getUri();
         int port = getSchemePort(uri);
         final String lookup = computeLookup(uri, port, request.getProxyHost(), request.getProxyPort());
         final ArrayDeque<IdleSocketHolder> sockets;
-        final IdleSocketHolder idleSocketHolder = new IdleSocketHolder(socket);
-        synchronized (AsyncSocketMiddleware.this) {
-            ConnectionInfo info = getOrCreateConnectionInfo(lookup);
-            sockets = info.sockets;
-            sockets.push(idleSocketHolder);
-        }
+        final IdleSocketHolder idleSocketHolder = new IdleSocketHolder(socket, lookup, uri, port);
+        ConnectionInfo info = getOrCreateConnectionInfo(lookup);
+        sockets = info.sockets;
+        sockets.push(idleSocketHolder);
+        linkIdle(idleSocketHolder);
         socket.setClosedCallback(new CompletedCallback() {
             @Override
             public void onCompleted(Exception ex) {
-                synchronized (AsyncSocketMiddleware.this) {
-                    sockets.remove(idleSocketHolder);
-                    maybeCleanupConnectionInfo(lookup);
-                }
+                sockets.remove(idleSocketHolder);
+                unlinkIdle(idleSocketHolder);
+                warmLater(lookup, uri, port);
+                maybeCleanupConnectionInfo(lookup);
+                drainWaiting();
             }
         });
+        while (idleCount > maxIdleSocketCount)
+            evictIdle(oldestIdle);
+        scheduleReaper();
     }
 
-    private void idleSocket(final AsyncSocket socket) {
+    void idleSocket(final AsyncSocket socket) {
         // must listen for socket close, otherwise log will get spammed.
         socket.setEndCallback(new CompletedCallback() {
             @Override
@@ -303,21 +808,22 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         Uri uri = request.getUri();
         final int port = getSchemePort(uri);
         String key = computeLookup(uri, port, request.getProxyHost(), request.getProxyPort());
-        synchronized (AsyncSocketMiddleware.this) {
-            ConnectionInfo info = connectionInfo.get(key);
-            if (info == null)
-                return;
-            --info.openCount;
-            while (info.openCount < maxConnectionCount && info.queue.size() > 0) {
-                GetSocketData gsd = info.queue.remove();
-                SimpleCancellable socketCancellable = (SimpleCancellable)gsd.socketCancellable;
-                if (socketCancellable.isCancelled())
-                    continue;
-                Cancellable connect = getSocket(gsd);
-                socketCancellable.setParent(connect);
-            }
-            maybeCleanupConnectionInfo(key);
+        ConnectionInfo info = connectionInfo.get(key);
+        if (info == null)
+            return;
+        --info.openCount;
+        --totalOpenCount;
+        while (info.openCount < maxConnectionCount && info.queue.size() > 0) {
+            GetSocketData gsd = info.queue.remove();
+            dequeued(gsd);
+            SimpleCancellable socketCancellable = (SimpleCancellable)gsd.socketCancellable;
+            if (socketCancellable.isCancelled())
+                continue;
+            Cancellable connect = getSocket(gsd);
+            socketCancellable.setParent(connect);
         }
+        maybeCleanupConnectionInfo(key);
+        drainWaiting();
     }
 
     protected boolean isKeepAlive(OnResponseCompleteData data) {
@@ -329,6 +835,26 @@ public class AsyncSocketMiddleware extends SimpleMiddleware {
         if (data.state.get("socket-owner") != this)
             return;
 
+        if (data.socket instanceof Http2Stream) {
+            // the connection stays open for other streams
+            if (data.socket.isOpen())
+                data.socket.close();
+            Uri uri = data.request.getUri();
+            drainHttp2Queue(computeLookup(uri, getSchemePort(uri), data.request.getProxyHost(), data.request.getProxyPort()));
+            return;
+        }
+
+        if (data.socket instanceof HttpPipeline.PipelinedSocket) {
+            try {
+                HttpPipeline.PipelinedSocket ps = (HttpPipeline.PipelinedSocket)data.socket;
+                ps.pipeline.complete(ps, data.exception, data.exception == null && isKeepAlive(data));
+            }
+            finally {
+                nextConnection(data.request);
+            }
+            return;
+        }
+
         try {
             idleSocket(data.socket);
 
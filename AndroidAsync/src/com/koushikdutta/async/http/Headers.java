@@ -52,7 +52,11 @@ public class Headers {
     }
 
     public Headers add(String header, String value) {
-        String lc = header.toLowerCase(Locale.US);
+        return add(header, header.toLowerCase(Locale.US), value);
+    }
+
+    // for callers that already have the lowercase name
+    Headers add(String header, String lc, String value) {
         map.add(lc, value);
         TaggedList<String> list = (TaggedList<String>)map.get(lc);
         list.tagNull(header);
@@ -0,0 +1,128 @@
+package com.koushikdutta.async.http;
+
+import android.net.Uri;
+
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
+import com.koushikdutta.async.http.http2.Http2Stream;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Sends requests over a stream handed out by an HTTP/2 connection, see
+ * AsyncSocketMiddleware.enableHttp2. HTTP/1.x requests are left to HttpTransportMiddleware.
+ */
+public class Http2Middleware extends SimpleMiddleware {
+    // connection specific headers are not allowed in HTTP/2
+    private static final HashSet<String> CONNECTION_HEADERS = new HashSet<String>();
+    static {
+        CONNECTION_HEADERS.add("host");
+        CONNECTION_HEADERS.add("connection");
+        CONNECTION_HEADERS.add("keep-alive");
+        CONNECTION_HEADERS.add("proxy-connection");
+        CONNECTION_HEADERS.add("transfer-encoding");
+        CONNECTION_HEADERS.add("upgrade");
+        CONNECTION_HEADERS.add("te");
+    }
+
+    private static boolean isHttp2(GetSocketData data) {
+        return Protocol.get(data.protocol) == Protocol.HTTP_2;
+    }
+
+    @Override
+    public boolean exchangeHeaders(final OnExchangeHeaderData data) {
+        if (!isHttp2(data) || !(data.socket instanceof Http2Stream))
+            return false;
+
+        final Http2Stream stream = (Http2Stream)data.socket;
+        final AsyncHttpRequest request = data.request;
+        AsyncHttpRequestBody<?> requestBody = request.getBody();
+        Uri uri = request.getUri();
+
+        String path = uri.getEncodedPath();
+        if (path == null || path.length() == 0)
+            path = "/";
+        String query = uri.getEncodedQuery();
+        if (query != null && query.length() != 0)
+            path += "?" + query;
+        String authority = request.getHeaders().get("Host");
+        if (authority == null)
+            authority = uri.getHost();
+
+        Headers headers = new Headers();
+        headers.set(":method", request.getMethod());
+        headers.set(":scheme", uri.getScheme());
+        headers.set(":authority", authority);
+        headers.set(":path", path);
+        for (String name: request.getHeaders().getMultiMap().keySet()) {
+            if (CONNECTION_HEADERS.contains(name))
+                continue;
+            List<String> values = request.getHeaders().getMultiMap().get(name);
+            for (String value: values) {
+                headers.add(name, value);
+            }
+        }
+        // on the copy, the request may still be sent again over HTTP/1.x
+        if (requestBody != null && requestBody.length() >= 0)
+            headers.set("content-length", String.valueOf(requestBody.length()));
+
+        request.logv("\n" + headers);
+
+        stream.setHeadersCallback(new Http2Stream.HeadersCallback() {
+            @Override
+            public void onHeaders(Http2Stream s, Headers received) {
+                try {
+                    int code;
+                    try {
+                        code = Integer.parseInt(received.get(":status"));
+                    }
+                    catch (NumberFormatException e) {
+                        throw new IOException("invalid :status " + received.get(":status"));
+                    }
+                    Headers responseHeaders = new Headers();
+                    for (String name: received.getMultiMap().keySet()) {
+                        if (name.startsWith(":"))
+                            continue;
+                        responseHeaders.addAll(name, received.getMultiMap().get(name));
+                    }
+
+                    data.response.headers(responseHeaders);
+                    data.response.protocol(Protocol.HTTP_2.toString());
+                    data.response.code(code);
+                    data.response.message("");
+                    data.receiveHeadersCallback.onCompleted(null);
+
+                    AsyncSocket socket = data.response.socket();
+                    if (socket == null)
+                        return;
+                    DataEmitter emitter;
+                    if (!data.request.hasBody() || HttpTransportMiddleware.responseIsEmpty(code))
+                        emitter = HttpUtil.EndEmitter.create(socket.getServer(), null);
+                    else
+                        emitter = HttpUtil.getBodyDecoder(socket, Protocol.HTTP_2, responseHeaders, false);
+                    data.response.emitter(emitter);
+                }
+                catch (Exception ex) {
+                    data.receiveHeadersCallback.onCompleted(ex);
+                }
+            }
+        });
+
+        if (requestBody != null)
+            data.response.sink(stream);
+        stream.writeHeaders(headers, requestBody == null);
+        data.sendHeadersCallback.onCompleted(null);
+        return true;
+    }
+
+    @Override
+    public void onRequestSent(OnRequestSentData data) {
+        if (!isHttp2(data) || !(data.socket instanceof Http2Stream))
+            return;
+        if (data.request.getBody() != null)
+            data.socket.end();
+    }
+}
@@ -0,0 +1,270 @@
+package com.koushikdutta.async.http;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.util.Charsets;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Incremental HTTP/1.x head parser. Scans the incoming buffers in place for line ends and
+ * parses the start line and header name/value spans straight into Headers. A line is only
+ * copied when it is split across buffers. Well known header names are interned.
+ * Parsing stops at the blank line that ends the head, and any body bytes are left in the
+ * ByteBufferList for the next data callback.
+ */
+public class HttpHeadParser implements DataCallback {
+    public interface HeadCallback {
+        /**
+         * Called with the request or status line. Return false to stop parsing,
+         * for example if it is not http.
+         */
+        boolean onStartLine(String line);
+
+        void onHeadersReceived(Headers headers);
+    }
+
+    private static class KnownHeader {
+        final String name;
+        final String lowercase;
+        final byte[] bytes;
+
+        KnownHeader(String name) {
+            this.name = name;
+            lowercase = name.toLowerCase(Locale.US);
+            bytes = name.getBytes(Charsets.US_ASCII);
+        }
+    }
+
+    private static final String[] KNOWN_HEADERS = new String[] {
+        "Accept",
+        "Accept-Encoding",
+        "Accept-Language",
+        "Accept-Ranges",
+        "Age",
+        "Authorization",
+        "Cache-Control",
+        "Connection",
+        "Content-Disposition",
+        "Content-Encoding",
+        "Content-Length",
+        "Content-Range",
+        "Content-Type",
+        "Cookie",
+        "Date",
+        "ETag",
+        "Expect",
+        "Expires",
+        "Host",
+        "If-Modified-Since",
+        "If-None-Match",
+        "Keep-Alive",
+        "Last-Modified",
+        "Location",
+        "Origin",
+        "Pragma",
+        "Proxy-Connection",
+        "Range",
+        "Referer",
+        "Sec-WebSocket-Accept",
+        "Sec-WebSocket-Key",
+        "Sec-WebSocket-Protocol",
+        "Sec-WebSocket-Version",
+        "Server",
+        "Set-Cookie",
+        "Transfer-Encoding",
+        "Upgrade",
+        "User-Agent",
+        "Vary",
+        "Via",
+        "WWW-Authenticate",
+        "X-Forwarded-For",
+    };
+
+    // known headers bucketed by name length
+    private static final KnownHeader[][] known;
+    static {
+        int max = 0;
+        for (String name: KNOWN_HEADERS) {
+            max = Math.max(max, name.length());
+        }
+        known = new KnownHeader[max + 1][];
+        for (String name: KNOWN_HEADERS) {
+            KnownHeader[] bucket = known[name.length()];
+            KnownHeader[] grown = new KnownHeader[bucket == null ? 1 : bucket.length + 1];
+            if (bucket != null)
+                System.arraycopy(bucket, 0, grown, 0, bucket.length);
+            grown[grown.length - 1] = new KnownHeader(name);
+            known[name.length()] = grown;
+        }
+    }
+
+    private static KnownHeader findKnown(byte[] bytes, int offset, int length) {
+        if (length >= known.length || known[length] == null)
+            return null;
+        for (KnownHeader header: known[length]) {
+            int i = 0;
+            for (; i < length; i++) {
+                byte b = bytes[offset + i];
+                if (b >= 'A' && b <= 'Z')
+                    b += 'a' - 'A';
+                if (b != header.lowercase.charAt(i))
+                    break;
+            }
+            if (i == length)
+                return header;
+        }
+        return null;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private final Headers headers;
+    private final HeadCallback callback;
+    private boolean started;
+    private boolean done;
+    // holds a line that spans buffers
+    private byte[] partial = new byte[0];
+    private int partialLength;
+
+    public HttpHeadParser(Headers headers, HeadCallback callback) {
+        this.headers = headers;
+        this.callback = callback;
+    }
+
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+        if (done) {
+            bb.recycle();
+            return;
+        }
+        while (bb.size() > 0) {
+            ByteBuffer b = bb.remove();
+            boolean stop = parse(b);
+            if (b.hasRemaining())
+                bb.addFirst(b);
+            else
+                ByteBufferList.reclaim(b);
+            if (stop)
+                return;
+        }
+    }
+
+    // returns true once parsing is done, leaving anything unread in b.
+    private boolean parse(ByteBuffer b) {
+        while (b.hasRemaining()) {
+            int start = b.position();
+            int limit = b.limit();
+            int end = indexOfNewline(b, start, limit);
+            if (end < 0) {
+                appendPartial(b, start, limit);
+                b.position(limit);
+                return false;
+            }
+            b.position(end + 1);
+
+            if (partialLength == 0 && b.hasArray()) {
+                if (onLine(b.array(), b.arrayOffset() + start, end - start))
+                    return true;
+                continue;
+            }
+
+            appendPartial(b, start, end);
+            int length = partialLength;
+            partialLength = 0;
+            if (onLine(partial, 0, length))
+                return true;
+        }
+        return false;
+    }
+
+    private static int indexOfNewline(ByteBuffer b, int start, int limit) {
+        if (b.hasArray()) {
+            byte[] array = b.array();
+            int offset = b.arrayOffset();
+            for (int i = start; i < limit; i++) {
+                if (array[offset + i] == '\n')
+                    return i;
+            }
+            return -1;
+        }
+        for (int i = start; i < limit; i++) {
+            if (b.get(i) == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private void appendPartial(ByteBuffer b, int start, int end) {
+        int length = end - start;
+        if (partialLength + length > partial.length) {
+            byte[] grown = new byte[Math.max(partial.length * 2, partialLength + length)];
+            System.arraycopy(partial, 0, grown, 0, partialLength);
+            partial = grown;
+        }
+        ByteBuffer dup = b.duplicate();
+        dup.limit(end);
+        dup.position(start);
+        dup.get(partial, partialLength, length);
+        partialLength += length;
+    }
+
+    private boolean onLine(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        while (offset < end && isWhitespace(bytes[offset]))
+            offset++;
+        while (end > offset && isWhitespace(bytes[end - 1]))
+            end--;
+
+        if (!started) {
+            started = true;
+            if (!callback.onStartLine(new String(bytes, offset, end - offset, Charsets.UTF_8))) {
+                done = true;
+                return true;
+            }
+            return false;
+        }
+
+        if (offset == end) {
+            done = true;
+            callback.onHeadersReceived(headers);
+            return true;
+        }
+
+        int colon = offset;
+        while (colon < end && bytes[colon] != ':')
+            colon++;
+
+        int nameEnd = colon;
+        while (nameEnd > offset && isWhitespace(bytes[nameEnd - 1]))
+            nameEnd--;
+        int valueStart = Math.min(colon + 1, end);
+        while (valueStart < end && isWhitespace(bytes[valueStart]))
+            valueStart++;
+        String value = new String(bytes, valueStart, end - valueStart, Charsets.UTF_8);
+
+        KnownHeader header = findKnown(bytes, offset, nameEnd - offset);
+        if (header == null) {
+            headers.add(new String(bytes, offset, nameEnd - offset, Charsets.UTF_8), value);
+            return false;
+        }
+        // keep the casing that was sent, but only allocate a name when it differs from the usual one
+        String name = header.name;
+        for (int i = 0; i < header.bytes.length; i++) {
+            if (bytes[offset + i] != header.bytes[i]) {
+                name = new String(bytes, offset, nameEnd - offset, Charsets.US_ASCII);
+                break;
+            }
+        }
+        headers.add(name, header.lowercase, value);
+        return false;
+    }
+}
@@ -0,0 +1,407 @@
+package com.koushikdutta.async.http;
+
+import android.net.Uri;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.DataEmitterBase;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.util.ArrayDeque;
+import com.koushikdutta.async.wrapper.AsyncSocketWrapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Several HTTP/1.1 requests written back to back on one keep-alive connection, with the
+ * responses handed out in the same order. Each request gets its own PipelinedSocket, which
+ * only sees data once the responses ahead of it are complete.
+ * Only idempotent requests without a body are pipelined, so a request whose response has not
+ * started can be written again on a new connection if this one is reset or closed.
+ */
+class HttpPipeline {
+    final AsyncSocketMiddleware middleware;
+    final String lookup;
+    // the request that opened the connection, used to connect again
+    final AsyncHttpClientMiddleware.GetSocketData data;
+    final AsyncServer server;
+    final ArrayDeque<PipelinedSocket> inFlight = new ArrayDeque<PipelinedSocket>();
+    private final ByteBufferList pending = new ByteBufferList();
+    private final ByteBufferList outgoing = new ByteBufferList();
+    AsyncSocket socket;
+    boolean closed;
+    private boolean delivering;
+    private boolean ended;
+    private Exception endException;
+
+    HttpPipeline(AsyncSocketMiddleware middleware, String lookup, AsyncHttpClientMiddleware.GetSocketData data) {
+        this.middleware = middleware;
+        this.lookup = lookup;
+        this.data = data;
+        this.server = middleware.mClient.getServer();
+    }
+
+    boolean canJoin(int depth) {
+        return !closed && inFlight.size() < depth;
+    }
+
+    PipelinedSocket attach(AsyncHttpRequest request) {
+        PipelinedSocket ps = new PipelinedSocket(request);
+        adopt(ps);
+        return ps;
+    }
+
+    private void adopt(PipelinedSocket ps) {
+        ps.pipeline = this;
+        // whatever went out on the last connection goes out again, ahead of anything new
+        ps.unsent.get(ps.sent);
+        ps.sent.get(ps.unsent);
+        inFlight.add(ps);
+        flush();
+    }
+
+    void connect() {
+        Uri uri = data.request.getUri();
+        int port = middleware.getSchemePort(uri);
+        server.connectSocket(uri.getHost(), port, middleware.wrapCallback(data, uri, port, false, (ex, socket) -> {
+            if (ex != null) {
+                fail(ex);
+                return;
+            }
+            start(socket);
+        }));
+    }
+
+    void start(AsyncSocket socket) {
+        if (closed) {
+            socket.close();
+            return;
+        }
+        this.socket = socket;
+        socket.setDataCallback((emitter, bb) -> {
+            bb.get(pending);
+            deliver();
+        });
+        socket.setEndCallback(this::onEnd);
+        socket.setClosedCallback(this::onEnd);
+        socket.setWriteableCallback(this::flush);
+        flush();
+        advance();
+    }
+
+    private void flush() {
+        if (socket == null || closed)
+            return;
+        // requests go out in order, and each one is written in one go.
+        for (PipelinedSocket ps: inFlight) {
+            if (!ps.written)
+                break;
+            while (ps.unsent.size() > 0) {
+                // the socket may pool what it writes, the original is kept in case of a replay
+                ByteBuffer b = ps.unsent.remove();
+                outgoing.add(ByteBufferList.deepCopy(b));
+                ps.sent.add(b);
+            }
+        }
+        if (outgoing.hasRemaining())
+            socket.write(outgoing);
+    }
+
+    private void deliver() {
+        if (delivering)
+            return;
+        delivering = true;
+        try {
+            while (pending.hasRemaining() && !closed) {
+                PipelinedSocket ps = inFlight.peek();
+                if (ps == null) {
+                    // a response that no request is waiting for
+                    pending.recycle();
+                    abort(new IOException("unexpected data on pipelined connection"));
+                    return;
+                }
+                DataCallback callback = ps.getDataCallback();
+                if (callback == null || ps.paused)
+                    break;
+                int remaining = pending.remaining();
+                if (!ps.received) {
+                    // the request can't be replayed once its response has started
+                    ps.received = true;
+                    ps.sent.recycle();
+                }
+                callback.onDataAvailable(ps, pending);
+                if (remaining == pending.remaining() && ps == inFlight.peek() && callback == ps.getDataCallback() && !ps.paused)
+                    break;
+            }
+        }
+        finally {
+            delivering = false;
+        }
+        PipelinedSocket head = inFlight.peek();
+        if (ended && !closed && (!pending.hasRemaining() || head == null || !head.paused))
+            finishEnd();
+    }
+
+    // the response at the head of the line is done, hand the connection to the next one.
+    private void advance() {
+        if (closed || socket == null)
+            return;
+        PipelinedSocket head = inFlight.peek();
+        if (head == null) {
+            if (ended || pending.hasRemaining()) {
+                abort(null);
+                return;
+            }
+            // nothing left in flight, the connection goes back to the idle pool.
+            closed = true;
+            middleware.removePipeline(this);
+            socket.setEndCallback(null);
+            socket.setClosedCallback(null);
+            middleware.idleSocket(socket);
+            middleware.recycleSocket(socket, data.request);
+            return;
+        }
+        if (head.closed) {
+            // abandoned before its response came in, and there is no skipping a response.
+            abort(null);
+            return;
+        }
+        if (head.paused)
+            socket.pause();
+        else
+            socket.resume();
+        deliver();
+    }
+
+    void complete(PipelinedSocket ps, Exception ex, boolean keepAlive) {
+        if (ps.closed)
+            return;
+        ps.closed = true;
+        ps.sent.recycle();
+        boolean head = ps == inFlight.peek();
+        inFlight.remove(ps);
+        if (!head || ex != null || !keepAlive) {
+            abort(ex);
+            return;
+        }
+        advance();
+    }
+
+    void close(PipelinedSocket ps) {
+        ps.closed = true;
+        if (closed)
+            return;
+        if (socket == null || (!ps.sent.hasRemaining() && !ps.received)) {
+            // never made it onto the wire
+            ps.unsent.recycle();
+            inFlight.remove(ps);
+            advance();
+            return;
+        }
+        // otherwise it is skipped over by abort once it reaches the head of the line
+        if (ps == inFlight.peek())
+            abort(null);
+    }
+
+    private void onEnd(Exception ex) {
+        if (closed || ended)
+            return;
+        ended = true;
+        endException = ex;
+        deliver();
+    }
+
+    private void finishEnd() {
+        PipelinedSocket head = inFlight.peek();
+        // the response that was being read ends with the connection, the rest start over.
+        if (head != null && head.received) {
+            inFlight.remove();
+            head.fail(endException);
+        }
+        abort(endException);
+    }
+
+    private void abort(Exception ex) {
+        if (closed)
+            return;
+        closed = true;
+        middleware.removePipeline(this);
+        pending.recycle();
+        outgoing.recycle();
+        if (socket != null) {
+            socket.setDataCallback(new DataCallback.NullDataCallback());
+            socket.setEndCallback(null);
+            socket.setClosedCallback(null);
+            socket.setWriteableCallback(null);
+            socket.close();
+        }
+        replay(ex);
+    }
+
+    private void fail(Exception ex) {
+        closed = true;
+        middleware.removePipeline(this);
+        ArrayList<PipelinedSocket> left = new ArrayList<PipelinedSocket>(inFlight);
+        inFlight.clear();
+        for (PipelinedSocket ps: left) {
+            if (!ps.closed)
+                ps.fail(ex);
+        }
+    }
+
+    private void replay(Exception ex) {
+        ArrayList<PipelinedSocket> left = new ArrayList<PipelinedSocket>(inFlight);
+        inFlight.clear();
+        HttpPipeline next = null;
+        for (PipelinedSocket ps: left) {
+            if (ps.closed)
+                continue;
+            // a request is only written again once, and never after its response has started.
+            if (ps.received || ps.replayed) {
+                ps.fail(ex);
+                continue;
+            }
+            ps.replayed = true;
+            ps.request.logd("Retrying pipelined request on a new connection");
+            if (next == null)
+                next = middleware.newPipeline(lookup, data);
+            next.adopt(ps);
+        }
+        if (next != null)
+            next.connect();
+    }
+
+    static class PipelinedSocket extends DataEmitterBase implements AsyncSocketWrapper {
+        final AsyncHttpRequest request;
+        HttpPipeline pipeline;
+        // written by the request but not yet handed to the connection
+        final ByteBufferList unsent = new ByteBufferList();
+        // handed to the connection, kept until the response starts in case of a replay
+        final ByteBufferList sent = new ByteBufferList();
+        boolean written;
+        boolean received;
+        boolean replayed;
+        boolean closed;
+        boolean paused;
+        WritableCallback writableCallback;
+        CompletedCallback closedCallback;
+
+        PipelinedSocket(AsyncHttpRequest request) {
+            this.request = request;
+        }
+
+        private boolean isHead() {
+            return pipeline.inFlight.peek() == this;
+        }
+
+        void fail(Exception ex) {
+            closed = true;
+            report(ex);
+            if (closedCallback != null)
+                closedCallback.onCompleted(ex);
+        }
+
+        @Override
+        public AsyncSocket getSocket() {
+            return pipeline.socket;
+        }
+
+        @Override
+        public DataEmitter getDataEmitter() {
+            return pipeline.socket;
+        }
+
+        @Override
+        public AsyncServer getServer() {
+            return pipeline.server;
+        }
+
+        @Override
+        public void write(ByteBufferList bb) {
+            if (closed) {
+                bb.recycle();
+                return;
+            }
+            bb.get(unsent);
+            written = true;
+            pipeline.flush();
+        }
+
+        @Override
+        public void setWriteableCallback(WritableCallback handler) {
+            writableCallback = handler;
+        }
+
+        @Override
+        public WritableCallback getWriteableCallback() {
+            return writableCallback;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void setClosedCallback(CompletedCallback handler) {
+            closedCallback = handler;
+        }
+
+        @Override
+        public CompletedCallback getClosedCallback() {
+            return closedCallback;
+        }
+
+        @Override
+        public void setDataCallback(DataCallback callback) {
+            super.setDataCallback(callback);
+            // a new callback may take data the last one left behind
+            if (callback != null && !closed && isHead())
+                pipeline.server.post(pipeline::deliver);
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+            if (!closed && isHead() && pipeline.socket != null)
+                pipeline.socket.pause();
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+            if (closed || !isHead() || pipeline.socket == null)
+                return;
+            pipeline.socket.resume();
+            pipeline.server.post(pipeline::deliver);
+        }
+
+        @Override
+        public boolean isPaused() {
+            return paused;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            pipeline.close(this);
+            if (closedCallback != null)
+                closedCallback.onCompleted(null);
+        }
+    }
+}
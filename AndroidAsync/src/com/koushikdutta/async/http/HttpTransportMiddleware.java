@@ -1,12 +1,10 @@
 package com.koushikdutta.async.http;
 
-import android.text.TextUtils;
 
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.BufferedDataSink;
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.DataSink;
-import com.koushikdutta.async.LineEmitter;
 import com.koushikdutta.async.Util;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
@@ -78,50 +76,46 @@ public class HttpTransportMiddleware extends SimpleMiddleware {
             }
         });
 
-        LineEmitter.StringCallback headerCallback = new LineEmitter.StringCallback() {
-            Headers mRawHeaders = new Headers();
+        HttpHeadParser.HeadCallback headerCallback = new HttpHeadParser.HeadCallback() {
             String statusLine;
 
             @Override
-            public void onStringAvailable(String s) {
+            public boolean onStartLine(String line) {
+                statusLine = line;
+                return true;
+            }
+
+            @Override
+            public void onHeadersReceived(Headers headers) {
                 try {
-                    s = s.trim();
-                    if (statusLine == null) {
-                        statusLine = s;
+                    String[] parts = statusLine.split(" ", 3);
+                    if (parts.length < 2)
+                        throw new Exception(new IOException("Not HTTP"));
+
+                    data.response.headers(headers);
+                    String protocol = parts[0];
+                    data.response.protocol(protocol);
+                    data.response.code(Integer.parseInt(parts[1]));
+                    data.response.message(parts.length == 3 ? parts[2] : "");
+                    data.receiveHeadersCallback.onCompleted(null);
+
+                    // socket may get detached after headers (websocket)
+                    AsyncSocket socket = data.response.socket();
+                    if (socket == null)
+                        return;
+                    DataEmitter emitter;
+                    // HEAD requests must not return any data. They still may
+                    // return content length, etc, which will confuse the body decoder
+                    if (!data.request.hasBody()) {
+                        emitter = HttpUtil.EndEmitter.create(socket.getServer(), null);
                     }
-                    else if (!TextUtils.isEmpty(s)) {
-                        mRawHeaders.addLine(s);
+                    else if (responseIsEmpty(data.response.code())) {
+                        emitter = HttpUtil.EndEmitter.create(socket.getServer(), null);
                     }
                     else {
-                        String[] parts = statusLine.split(" ", 3);
-                        if (parts.length < 2)
-                            throw new Exception(new IOException("Not HTTP"));
-
-                        data.response.headers(mRawHeaders);
-                        String protocol = parts[0];
-                        data.response.protocol(protocol);
-                        data.response.code(Integer.parseInt(parts[1]));
-                        data.response.message(parts.length == 3 ? parts[2] : "");
-                        data.receiveHeadersCallback.onCompleted(null);
-
-                        // socket may get detached after headers (websocket)
-                        AsyncSocket socket = data.response.socket();
-                        if (socket == null)
-                            return;
-                        DataEmitter emitter;
-                        // HEAD requests must not return any data. They still may
-                        // return content length, etc, which will confuse the body decoder
-                        if (!data.request.hasBody()) {
-                            emitter = HttpUtil.EndEmitter.create(socket.getServer(), null);
-                        }
-                        else if (responseIsEmpty(data.response.code())) {
-                            emitter = HttpUtil.EndEmitter.create(socket.getServer(), null);
-                        }
-                        else {
-                            emitter = HttpUtil.getBodyDecoder(socket, Protocol.get(protocol), mRawHeaders, false);
-                        }
-                        data.response.emitter(emitter);
+                        emitter = HttpUtil.getBodyDecoder(socket, Protocol.get(protocol), headers, false);
                     }
+                    data.response.emitter(emitter);
                 }
                 catch (Exception ex) {
                     data.receiveHeadersCallback.onCompleted(ex);
@@ -129,9 +123,7 @@ public class HttpTransportMiddleware extends SimpleMiddleware {
             }
         };
 
-        LineEmitter liner = new LineEmitter();
-        data.socket.setDataCallback(liner);
-        liner.setLineCallback(headerCallback);
+        data.socket.setDataCallback(new HttpHeadParser(new Headers(), headerCallback));
         return true;
     }
 
@@ -53,14 +53,10 @@ public enum Protocol {
      * multiplexing multiple requests on the same socket, and server-push.
      * HTTP/1.1 semantics are layered on HTTP/2.
      * <p/>
-     * <p>This version of OkHttp implements HTTP/2 <a
-     * href="http://tools.ietf.org/html/draft-ietf-httpbis-http2-13">draft 12</a>
-     * with HPACK <a
-     * href="http://tools.ietf.org/html/draft-ietf-httpbis-header-compression-08">draft
-     * 6</a>. Future releases of OkHttp may use this identifier for a newer draft
-     * of these specs.
+     * <p>AndroidAsync implements <a href="https://tools.ietf.org/html/rfc7540">RFC 7540</a>
+     * with HPACK <a href="https://tools.ietf.org/html/rfc7541">RFC 7541</a>.
      */
-    HTTP_2("h2-13") {
+    HTTP_2("h2") {
         @Override
         public boolean needsSpdyConnection() {
             return true;
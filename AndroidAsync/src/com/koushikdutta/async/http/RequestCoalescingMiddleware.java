@@ -0,0 +1,520 @@
+package com.koushikdutta.async.http;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.DataEmitterBase;
+import com.koushikdutta.async.FilteredDataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.future.SimpleCancellable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Collapses identical GETs that are in flight at the same time into one exchange with the server.
+ * The first request goes out as usual, and the ones that come in while it waits on its headers
+ * share its response: each gets the headers and its own copy of the decoded body, read at its own
+ * pace. A response that falls too far behind pauses the exchange until it catches up.
+ *
+ * Requests are identical when the uri and the request headers that responses commonly vary on
+ * match. If the response varies on another header, the requests that differ on it are sent on
+ * their own. If the first request fails or is cancelled before its headers arrive, the next one
+ * in line goes out in its place. Closing the first response early ends the others with an error.
+ *
+ * Conditional requests, and requests that ask to bypass caches with no-cache or no-store, are
+ * always sent on their own. Credentials carried in a header other than Authorization or Cookie,
+ * such as an api key, must be added with {@link #setKeyHeaders}, or requests made with different
+ * credentials will share a response.
+ */
+public class RequestCoalescingMiddleware extends SimpleMiddleware {
+    public static final int DEFAULT_MAX_BUFFER = 256 * 1024;
+    static final String[] DEFAULT_KEY_HEADERS = new String[] { "Accept", "Accept-Encoding", "Accept-Language", "Authorization", "Cookie", "Range" };
+    // a response to one of these only makes sense to the request that sent them
+    static final String[] CONDITIONAL_HEADERS = new String[] { "If-None-Match", "If-Modified-Since", "If-Match", "If-Unmodified-Since", "If-Range" };
+
+    final AsyncHttpClient client;
+    // only touched on the server thread
+    final HashMap<String, Exchange> inFlight = new HashMap<String, Exchange>();
+    String[] keyHeaders = DEFAULT_KEY_HEADERS;
+    int maxBuffer = DEFAULT_MAX_BUFFER;
+    int exchangeCount;
+    int coalescedCount;
+
+    private RequestCoalescingMiddleware(AsyncHttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Adds coalescing to the client, behind any response cache so that cache hits are served
+     * without waiting on the network.
+     */
+    public static RequestCoalescingMiddleware addCoalescing(AsyncHttpClient client) {
+        for (AsyncHttpClientMiddleware middleware: client.getMiddleware()) {
+            if (middleware instanceof RequestCoalescingMiddleware)
+                throw new IllegalStateException("Request coalescing already added to http client");
+        }
+        RequestCoalescingMiddleware ret = new RequestCoalescingMiddleware(client);
+        client.mMiddleware.add(Math.max(0, client.mMiddleware.indexOf(client.http2Middleware)), ret);
+        return ret;
+    }
+
+    /**
+     * The request headers that must match for two requests to share a response, in
+     * addition to the uri. Replaces the defaults, so include them to keep them.
+     */
+    public void setKeyHeaders(String... keyHeaders) {
+        this.keyHeaders = keyHeaders;
+    }
+
+    public String[] getKeyHeaders() {
+        return keyHeaders;
+    }
+
+    /**
+     * How much of the body a response may have yet to read before the exchange is paused.
+     */
+    public void setMaxBuffer(int maxBuffer) {
+        this.maxBuffer = maxBuffer;
+    }
+
+    public int getMaxBuffer() {
+        return maxBuffer;
+    }
+
+    /**
+     * Requests that were sent to the server.
+     */
+    public int getExchangeCount() {
+        return exchangeCount;
+    }
+
+    /**
+     * Requests that waited on an identical one, rather than being sent themselves.
+     */
+    public int getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    String getKey(AsyncHttpRequest request) {
+        StringBuilder key = new StringBuilder(request.getUri().toString());
+        for (String header: keyHeaders) {
+            String value = request.getHeaders().getMultiMap().getAllString(header.toLowerCase(Locale.US), ",");
+            if (value != null)
+                key.append('\n').append(header).append(": ").append(value);
+        }
+        return key.toString();
+    }
+
+    static boolean isShareable(AsyncHttpRequest request) {
+        if (!AsyncHttpGet.METHOD.equals(request.getMethod()) || request.getBody() != null)
+            return false;
+        Headers headers = request.getHeaders();
+        for (String header: CONDITIONAL_HEADERS) {
+            if (headers.get(header) != null)
+                return false;
+        }
+        String cacheControl = headers.getMultiMap().getAllString("cache-control", ",");
+        if (cacheControl != null) {
+            cacheControl = cacheControl.toLowerCase(Locale.US);
+            if (cacheControl.contains("no-cache") || cacheControl.contains("no-store"))
+                return false;
+        }
+        String pragma = headers.get("Pragma");
+        return pragma == null || !pragma.toLowerCase(Locale.US).contains("no-cache");
+    }
+
+    @Override
+    public Cancellable getSocket(GetSocketData data) {
+        if (!isShareable(data.request))
+            return null;
+
+        String key = getKey(data.request);
+        Exchange exchange = inFlight.get(key);
+        Waiter waiter = new Waiter(data);
+        if (exchange == null) {
+            exchange = new Exchange(key);
+            inFlight.put(key, exchange);
+            exchange.lead(waiter);
+        }
+        else {
+            coalescedCount++;
+            data.request.logd("Waiting on an identical request in flight");
+            waiter.exchange = exchange;
+            exchange.waiting.add(waiter);
+        }
+        return waiter;
+    }
+
+    // hand the request to the middleware that follows, as the client would have
+    Cancellable connect(GetSocketData data) {
+        boolean after = false;
+        for (AsyncHttpClientMiddleware middleware: client.getMiddleware()) {
+            if (!after) {
+                after = middleware == this;
+                continue;
+            }
+            Cancellable ret = middleware.getSocket(data);
+            if (ret != null)
+                return ret;
+        }
+        data.connectCallback.onConnectCompleted(new IllegalArgumentException("invalid uri=" + data.request.getUri()), null);
+        return null;
+    }
+
+    @Override
+    public void onBodyDecoder(OnBodyDecoderData data) {
+        Waiter waiter = data.state.get("coalescing-waiter");
+        if (waiter == null || waiter.exchange == null || waiter.exchange.leader != waiter)
+            return;
+        Exchange exchange = waiter.exchange;
+        exchange.finish();
+        waiter.setComplete();
+
+        ArrayList<Waiter> sharing = new ArrayList<Waiter>();
+        for (Waiter follower: exchange.waiting) {
+            if (follower.isDone())
+                continue;
+            if (varies(data.response.headers(), data.request, follower.data.request)) {
+                // the response does not apply, so this one goes on its own
+                follower.exchange = null;
+                follower.setParent(connect(follower.data));
+                continue;
+            }
+            sharing.add(follower);
+        }
+        exchange.waiting.clear();
+        if (sharing.isEmpty())
+            return;
+
+        Headers headers = new Headers().addAll(data.response.headers());
+        // the body is shared after it is decoded
+        headers.removeAll("Transfer-Encoding");
+        if (headers.removeAll("Content-Encoding") != null)
+            headers.removeAll("Content-Length");
+        byte[] head = headers.toPrefixString("HTTP/1.1 " + data.response.code() + " " + data.response.message()).getBytes();
+
+        Tee tee = new Tee();
+        tee.setDataEmitter(data.bodyEmitter);
+        data.bodyEmitter = tee;
+        for (Waiter follower: sharing) {
+            follower.setComplete();
+            SharedSocket socket = new SharedSocket(tee);
+            socket.pending.add(ByteBuffer.wrap(head));
+            tee.sockets.add(socket);
+            follower.data.state.put("socket-owner", this);
+            follower.data.request.logi("Response shared with an identical request");
+            final ConnectCallback callback = follower.data.connectCallback;
+            client.getServer().post(() -> {
+                socket.connected = true;
+                callback.onConnectCompleted(null, socket);
+                socket.emit();
+            });
+        }
+    }
+
+    @Override
+    public void onResponseComplete(OnResponseCompleteData data) {
+        Waiter waiter = data.state.get("coalescing-waiter");
+        // failed before the headers came back
+        if (waiter != null && waiter.exchange != null && waiter.exchange.leader == waiter)
+            waiter.exchange.abandon();
+    }
+
+    static boolean varies(Headers response, AsyncHttpRequest request, AsyncHttpRequest other) {
+        List<String> vary = response.getAll("Vary");
+        if (vary == null)
+            return false;
+        for (String fields: vary) {
+            for (String field: fields.split(",")) {
+                field = field.trim().toLowerCase(Locale.US);
+                if (field.length() == 0)
+                    continue;
+                if ("*".equals(field))
+                    return true;
+                String value = request.getHeaders().getMultiMap().getAllString(field, ",");
+                String otherValue = other.getHeaders().getMultiMap().getAllString(field, ",");
+                if (value == null ? otherValue != null : !value.equals(otherValue))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    class Exchange {
+        final String key;
+        Waiter leader;
+        final ArrayList<Waiter> waiting = new ArrayList<Waiter>();
+
+        Exchange(String key) {
+            this.key = key;
+        }
+
+        void lead(final Waiter waiter) {
+            exchangeCount++;
+            leader = waiter;
+            waiter.exchange = this;
+            waiter.data.state.put("coalescing-waiter", waiter);
+            final ConnectCallback callback = waiter.data.connectCallback;
+            waiter.data.connectCallback = (ex, socket) -> {
+                callback.onConnectCompleted(ex, socket);
+                if (ex != null && leader == waiter)
+                    abandon();
+            };
+            waiter.setParent(connect(waiter.data));
+        }
+
+        // the headers are in, later requests start a new exchange
+        void finish() {
+            leader = null;
+            if (inFlight.get(key) == this)
+                inFlight.remove(key);
+        }
+
+        // the leader is gone without a response, send the next one in line instead
+        void abandon() {
+            leader = null;
+            while (!waiting.isEmpty()) {
+                Waiter next = waiting.remove(0);
+                if (next.isDone())
+                    continue;
+                next.data.request.logd("Identical request in flight failed, sending this one");
+                lead(next);
+                return;
+            }
+            finish();
+        }
+    }
+
+    class Waiter extends SimpleCancellable {
+        final GetSocketData data;
+        Exchange exchange;
+
+        Waiter(GetSocketData data) {
+            this.data = data;
+        }
+
+        @Override
+        protected void cancelCleanup() {
+            super.cancelCleanup();
+            if (exchange == null)
+                return;
+            if (exchange.leader == this)
+                exchange.abandon();
+            else
+                exchange.waiting.remove(this);
+        }
+    }
+
+    // the body of the exchange, which it copies out to every response that shares it
+    class Tee extends FilteredDataEmitter {
+        final ArrayList<SharedSocket> sockets = new ArrayList<SharedSocket>();
+        // what the first response has yet to read
+        final ByteBufferList held = new ByteBufferList();
+        boolean paused;
+        boolean throttled;
+        boolean ended;
+        Exception endException;
+
+        @Override
+        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+            ByteBufferList copy = new ByteBufferList();
+            while (!bb.isEmpty()) {
+                ByteBuffer b = bb.remove();
+                for (SharedSocket socket: sockets) {
+                    socket.pending.add(ByteBufferList.deepCopy(b));
+                }
+                copy.add(b);
+            }
+            copy.get(held);
+            for (SharedSocket socket: new ArrayList<SharedSocket>(sockets)) {
+                socket.emit();
+            }
+            flush();
+        }
+
+        void flush() {
+            if (held.hasRemaining())
+                super.onDataAvailable(this, held);
+            if (ended && !held.hasRemaining())
+                super.report(endException);
+            throttle();
+        }
+
+        // pause the exchange while anyone has too much to catch up on
+        void throttle() {
+            boolean over = held.remaining() > maxBuffer;
+            for (SharedSocket socket: sockets) {
+                over |= socket.pending.remaining() > maxBuffer;
+            }
+            if (over == throttled || getDataEmitter() == null)
+                return;
+            throttled = over;
+            if (over)
+                getDataEmitter().pause();
+            else
+                getDataEmitter().resume();
+        }
+
+        @Override
+        protected void report(Exception e) {
+            ended = true;
+            endException = e;
+            for (SharedSocket socket: new ArrayList<SharedSocket>(sockets)) {
+                socket.end(e);
+            }
+            flush();
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+            getServer().post(this::flush);
+        }
+
+        @Override
+        public boolean isPaused() {
+            return paused;
+        }
+
+        @Override
+        public void close() {
+            held.recycle();
+            // the rest of the body will not come
+            if (!ended) {
+                for (SharedSocket socket: new ArrayList<SharedSocket>(sockets)) {
+                    socket.end(new ConnectionClosedException("shared response was closed"));
+                }
+            }
+            super.close();
+        }
+    }
+
+    // stands in for the connection of a response that shares the body of another
+    class SharedSocket extends DataEmitterBase implements AsyncSocket {
+        final Tee tee;
+        final ByteBufferList pending = new ByteBufferList();
+        boolean connected;
+        boolean paused;
+        boolean open = true;
+        boolean ended;
+        boolean closed;
+        Exception endException;
+        CompletedCallback closedCallback;
+
+        SharedSocket(Tee tee) {
+            this.tee = tee;
+        }
+
+        void emit() {
+            if (!connected || !open)
+                return;
+            if (pending.hasRemaining())
+                Util.emitAllData(this, pending);
+            if (ended && !pending.hasRemaining()) {
+                tee.sockets.remove(this);
+                report(endException);
+            }
+            tee.throttle();
+        }
+
+        void end(Exception e) {
+            if (ended)
+                return;
+            ended = true;
+            endException = e;
+            emit();
+        }
+
+        @Override
+        protected void report(Exception e) {
+            super.report(e);
+            if (closed)
+                return;
+            closed = true;
+            if (closedCallback != null)
+                closedCallback.onCompleted(e);
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            paused = false;
+            getServer().post(this::emit);
+        }
+
+        @Override
+        public boolean isPaused() {
+            return paused;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            pending.recycle();
+            tee.sockets.remove(this);
+            tee.throttle();
+        }
+
+        @Override
+        public void write(ByteBufferList bb) {
+            // the request was already sent by the one that leads the exchange
+            bb.recycle();
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void setWriteableCallback(WritableCallback handler) {
+        }
+
+        @Override
+        public WritableCallback getWriteableCallback() {
+            return null;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void setClosedCallback(CompletedCallback handler) {
+            closedCallback = handler;
+        }
+
+        @Override
+        public CompletedCallback getClosedCallback() {
+            return closedCallback;
+        }
+
+        @Override
+        public AsyncServer getServer() {
+            return client.getServer();
+        }
+    }
+}
@@ -23,10 +23,12 @@ import com.koushikdutta.async.http.SimpleMiddleware;
 import com.koushikdutta.async.util.Allocator;
 import com.koushikdutta.async.util.Charsets;
 import com.koushikdutta.async.util.FileCache;
+import com.koushikdutta.async.util.LruCache;
 import com.koushikdutta.async.util.StreamUtility;
 
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -55,6 +57,8 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
     public static final String SERVED_FROM = "X-Served-From";
     public static final String CONDITIONAL_CACHE = "conditional-cache";
     public static final String CACHE = "cache";
+    public static final long DEFAULT_MEMORY_CACHE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_MEMORY_ENTRY_SIZE = 16 * 1024;
     private static final String LOGTAG = "AsyncHttpCache";
     private boolean caching = true;
     private int writeSuccessCount;
@@ -65,6 +69,10 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
     private int cacheHitCount;
     private int networkCount;
     private int cacheStoreCount;
+    private int memoryHitCount;
+    private int demoteCount;
+    private final MemoryCache memoryCache = new MemoryCache();
+    private int maxMemoryEntrySize = DEFAULT_MAX_MEMORY_ENTRY_SIZE;
 
     private ResponseCacheMiddleware() {
     }
@@ -93,8 +101,35 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
         this.caching = caching;
     }
 
+    /**
+     * The size in bytes of the in-memory tier, which holds the small entries that are hit
+     * most, in front of the files.
+     */
+    public void setMemoryCacheSize(long size) {
+        memoryCache.setMaxSize(size);
+    }
+
+    public long getMemoryCacheSize() {
+        return memoryCache.maxSize();
+    }
+
+    /**
+     * Entries with a larger body are only ever served from the files. 0 turns off the
+     * in-memory tier.
+     */
+    public void setMaxMemoryEntrySize(int size) {
+        maxMemoryEntrySize = size;
+        if (size <= 0)
+            memoryCache.evictAll();
+    }
+
+    public int getMaxMemoryEntrySize() {
+        return maxMemoryEntrySize;
+    }
+
     public void removeFromCache(Uri uri) {
         String key = FileCache.toKeyString(uri);
+        memoryCache.remove(key);
         getFileCache().remove(key);
     }
 
@@ -114,6 +149,15 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
         FileInputStream[] snapshot = null;
         long contentLength;
         Entry entry;
+        // memory hits don't touch the files at all
+        MemoryEntry memoryEntry = memoryCache.get(key);
+        if (memoryEntry != null) {
+            if (memoryEntry.entry.matches(data.request.getUri(), data.request.getMethod(), data.request.getHeaders().getMultiMap()))
+                return getSocket(data, requestHeaders, memoryEntry.entry, null, memoryEntry.copyBody(), memoryEntry.contentLength, true);
+            networkCount++;
+            return null;
+        }
+
         try {
             snapshot = cache.get(key, ENTRY_COUNT);
             if (snapshot == null) {
@@ -137,7 +181,23 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
             return null;
         }
 
-        EntryCacheResponse candidate = new EntryCacheResponse(entry, snapshot[ENTRY_BODY]);
+        // a small entry that gets hit is moved up to memory, and this hit is served from there
+        if (maxMemoryEntrySize > 0 && contentLength <= maxMemoryEntrySize) {
+            ByteBufferList body = promote(key, entry, snapshot[ENTRY_BODY], (int)contentLength);
+            StreamUtility.closeQuietly(snapshot);
+            if (body == null) {
+                networkCount++;
+                return null;
+            }
+            return getSocket(data, requestHeaders, entry, null, body, contentLength, false);
+        }
+
+        return getSocket(data, requestHeaders, entry, snapshot, null, contentLength, false);
+    }
+
+    // serve from either tier, the body is in the snapshot or in memory
+    private Cancellable getSocket(final GetSocketData data, RequestHeaders requestHeaders, Entry entry, FileInputStream[] snapshot, ByteBufferList body, long contentLength, boolean memoryHit) {
+        EntryCacheResponse candidate = new EntryCacheResponse(entry, snapshot == null ? null : snapshot[ENTRY_BODY]);
 
         Map<String, List<String>> responseHeadersMap;
         FileInputStream cachedResponseBody;
@@ -150,7 +210,7 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
             StreamUtility.closeQuietly(snapshot);
             return null;
         }
-        if (responseHeadersMap == null || cachedResponseBody == null) {
+        if (responseHeadersMap == null || (cachedResponseBody == null && body == null)) {
             networkCount++;
             StreamUtility.closeQuietly(snapshot);
             return null;
@@ -170,6 +230,10 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
             data.request.logi("Response retrieved from cache");
             final CachedSocket socket = entry.isHttps() ? new CachedSSLSocket(candidate, contentLength) : new CachedSocket(candidate, contentLength);
             socket.pending.add(ByteBuffer.wrap(rawResponseHeaders.toHeaderString().getBytes()));
+            if (body != null)
+                body.get(socket.pending);
+            if (memoryHit)
+                memoryHitCount++;
 
             server.post(new Runnable() {
                 @Override
@@ -191,6 +255,8 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
             cacheData.contentLength = contentLength;
             cacheData.cachedResponseHeaders = cachedResponseHeaders;
             cacheData.candidate = candidate;
+            cacheData.body = body;
+            cacheData.memoryHit = memoryHit;
             data.state.put("cache-data", cacheData);
             return null;
         }
@@ -199,8 +265,42 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
             // NETWORK or other
             networkCount++;
             StreamUtility.closeQuietly(snapshot);
+            if (body != null)
+                body.recycle();
+            return null;
+        }
+    }
+
+    private ByteBufferList promote(String key, Entry entry, FileInputStream in, int contentLength) {
+        ByteBuffer buffer = ByteBuffer.allocate(contentLength);
+        try {
+            new DataInputStream(in).readFully(buffer.array());
+        }
+        catch (IOException e) {
             return null;
         }
+        MemoryEntry memoryEntry = new MemoryEntry(entry, new ByteBufferList(buffer));
+        memoryCache.put(key, memoryEntry);
+        return memoryEntry.copyBody();
+    }
+
+    // put an entry evicted from memory back on disk, if the files are gone by now
+    private void demote(String key, MemoryEntry memoryEntry) {
+        if (cache == null || cache.exists(key))
+            return;
+        EntryEditor editor = new EntryEditor(key);
+        try {
+            memoryEntry.entry.writeTo(editor);
+            OutputStream out = editor.newOutputStream(ENTRY_BODY);
+            for (ByteBuffer b: memoryEntry.copyBody().getAllArray()) {
+                ByteBufferList.writeOutputStream(out, b);
+            }
+            editor.commit();
+            demoteCount++;
+        }
+        catch (IOException e) {
+            editor.abort();
+        }
     }
 
     public int getConditionalCacheHitCount() {
@@ -219,6 +319,20 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
         return cacheStoreCount;
     }
 
+    /**
+     * Cache hits, conditional ones included, that were served from memory.
+     */
+    public int getMemoryHitCount() {
+        return memoryHitCount;
+    }
+
+    /**
+     * Entries that were written back to disk when they were evicted from memory.
+     */
+    public int getDemoteCount() {
+        return demoteCount;
+    }
+
     // step 2) if this is a conditional cache request, serve it from the cache if necessary
     // otherwise, see if it is cacheable
     @Override
@@ -247,6 +361,10 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
                 conditionalCacheHitCount++;
 
                 CachedBodyEmitter bodySpewer = new CachedBodyEmitter(cacheData.candidate, cacheData.contentLength);
+                if (cacheData.body != null)
+                    cacheData.body.get(bodySpewer.pending);
+                if (cacheData.memoryHit)
+                    memoryHitCount++;
                 bodySpewer.setDataEmitter(data.bodyEmitter);
                 data.bodyEmitter = bodySpewer;
                 bodySpewer.sendCachedData();
@@ -256,6 +374,8 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
             // did not validate, so fall through and cache the response
             data.state.remove("cache-data");
             StreamUtility.closeQuietly(cacheData.snapshot);
+            if (cacheData.body != null)
+                cacheData.body.recycle();
         }
 
         if (!caching)
@@ -274,6 +394,8 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
         }
 
         String key = FileCache.toKeyString(data.request.getUri());
+        // the copy in memory is stale now, the new one makes its way up on its next hit
+        memoryCache.remove(key);
         RawHeaders varyHeaders = requestHeaders.getHeaders().getAll(networkResponse.getVaryFields());
         Entry entry = new Entry(data.request.getUri(), varyHeaders, data.request, networkResponse.getHeaders());
         BodyCacher cacher = new BodyCacher();
@@ -305,6 +427,8 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
         CacheData cacheData = data.state.get("cache-data");
         if (cacheData != null && cacheData.snapshot != null)
             StreamUtility.closeQuietly(cacheData.snapshot);
+        if (cacheData != null && cacheData.body != null)
+            cacheData.body.recycle();
 
         CachedSocket cachedSocket = Util.getWrappedSocket(data.socket, CachedSocket.class);
         if (cachedSocket != null)
@@ -320,6 +444,7 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
     }
     
     public void clear() {
+        memoryCache.clear();
         if (cache != null) {
             cache.clear();
         }
@@ -330,6 +455,64 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
         EntryCacheResponse candidate;
         long contentLength;
         ResponseHeaders cachedResponseHeaders;
+        // the body, when the entry is in memory rather than in the snapshot
+        ByteBufferList body;
+        boolean memoryHit;
+    }
+
+    private static class MemoryEntry {
+        final Entry entry;
+        // never handed out, every hit gets a copy
+        final ByteBufferList body;
+        final long contentLength;
+        final long size;
+
+        MemoryEntry(Entry entry, ByteBufferList body) {
+            this.entry = entry;
+            this.body = body;
+            contentLength = body.remaining();
+            size = contentLength + entry.uri.length() + entry.varyHeaders.toHeaderString().length() + entry.responseHeaders.toHeaderString().length();
+        }
+
+        synchronized ByteBufferList copyBody() {
+            ByteBuffer[] buffers = body.getAllArray();
+            body.addAll(buffers);
+            ByteBufferList ret = new ByteBufferList();
+            for (ByteBuffer b: buffers) {
+                ret.add(ByteBufferList.deepCopy(b));
+            }
+            return ret;
+        }
+    }
+
+    private class MemoryCache extends LruCache<String, MemoryEntry> {
+        boolean clearing;
+
+        MemoryCache() {
+            super(DEFAULT_MEMORY_CACHE_SIZE);
+        }
+
+        @Override
+        protected long sizeOf(String key, MemoryEntry value) {
+            return value.size;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, MemoryEntry oldValue, MemoryEntry newValue) {
+            super.entryRemoved(evicted, key, oldValue, newValue);
+            if (evicted && !clearing)
+                demote(key, oldValue);
+        }
+
+        void clear() {
+            clearing = true;
+            try {
+                evictAll();
+            }
+            finally {
+                clearing = false;
+            }
+        }
     }
     
     private static class BodyCacher extends FilteredDataEmitter {
@@ -411,7 +594,7 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
         }
     }
 
-    private static class CachedBodyEmitter extends FilteredDataEmitter {
+    private class CachedBodyEmitter extends FilteredDataEmitter {
         EntryCacheResponse cacheResponse;
         ByteBufferList pending = new ByteBufferList();
         private boolean paused;
@@ -436,10 +619,17 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
                     return;
             }
 
+            // served from memory, the whole body was pending
+            FileInputStream din = cacheResponse.getBody();
+            if (din == null) {
+                allowEnd = true;
+                report(null);
+                return;
+            }
+
             // fill pending
             try {
                 ByteBuffer buffer = allocator.allocate();
-                FileInputStream din = cacheResponse.getBody();
                 int read = din.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
                 if (read == -1) {
                     ByteBufferList.reclaim(buffer);
@@ -468,6 +658,12 @@ public class ResponseCacheMiddleware extends SimpleMiddleware {
             getServer().post(sendCachedDataRunnable);
         }
 
+        // a 304 has nothing upstream to ask
+        @Override
+        public AsyncServer getServer() {
+            return server;
+        }
+
         @Override
         public void resume() {
             paused = false;
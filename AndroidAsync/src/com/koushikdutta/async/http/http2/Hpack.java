@@ -0,0 +1,477 @@
+package com.koushikdutta.async.http.http2;
+
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.util.Charsets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * HPACK header compression for HTTP/2, as specified in RFC 7541.
+ * Header names are always lowercase.
+ */
+public class Hpack {
+    static final String[][] STATIC_TABLE = new String[][] {
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    // index of the first static entry with a name, and of each name and value pair
+    private static final HashMap<String, Integer> staticNames = new HashMap<String, Integer>();
+    private static final HashMap<String, Integer> staticEntries = new HashMap<String, Integer>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            staticNames.put(STATIC_TABLE[i][0], i + 1);
+            staticEntries.put(key(STATIC_TABLE[i][0], STATIC_TABLE[i][1]), i + 1);
+        }
+    }
+
+    private static String key(String name, String value) {
+        return name + '\0' + value;
+    }
+
+    // huffman code lengths from RFC 7541 appendix B. The code is canonical, so the codes
+    // themselves follow from the lengths. The last entry is EOS.
+    private static final byte[] CODE_LENGTHS = new byte[] {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30,
+    };
+    private static final int EOS = 256;
+    private static final int[] CODES = new int[CODE_LENGTHS.length];
+    // decoding tree, node 0 is the root. a leaf holds its symbol, other nodes hold -1.
+    private static final int[] zeros = new int[2 * 257 - 1];
+    private static final int[] ones = new int[2 * 257 - 1];
+    private static final int[] symbols = new int[2 * 257 - 1];
+    private static int nodeCount = 1;
+
+    static {
+        Integer[] order = new Integer[CODE_LENGTHS.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> CODE_LENGTHS[a] != CODE_LENGTHS[b] ? CODE_LENGTHS[a] - CODE_LENGTHS[b] : a - b);
+        int code = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0)
+                code = (code + 1) << (CODE_LENGTHS[order[i]] - CODE_LENGTHS[order[i - 1]]);
+            CODES[order[i]] = code;
+        }
+
+        Arrays.fill(symbols, -1);
+        for (int symbol = 0; symbol < CODES.length; symbol++) {
+            int node = 0;
+            for (int bit = CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+                int[] next = ((CODES[symbol] >>> bit) & 1) == 0 ? zeros : ones;
+                if (next[node] == 0)
+                    next[node] = nodeCount++;
+                node = next[node];
+            }
+            symbols[node] = symbol;
+        }
+    }
+
+    static byte[] huffmanDecode(byte[] bytes, int offset, int length) throws IOException {
+        byte[] out = new byte[length * 8 / 5 + 1];
+        int count = 0;
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = bytes[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                boolean one = ((b >>> bit) & 1) == 1;
+                node = one ? ones[node] : zeros[node];
+                depth++;
+                allOnes &= one;
+                if (node == 0)
+                    throw new IOException("invalid huffman code");
+                int symbol = symbols[node];
+                if (symbol < 0)
+                    continue;
+                if (symbol == EOS)
+                    throw new IOException("huffman EOS in string");
+                out[count++] = (byte)symbol;
+                node = 0;
+                depth = 0;
+                allOnes = true;
+            }
+        }
+        // the string ends with at most 7 bits of the EOS code for padding
+        if (depth > 7 || !allOnes)
+            throw new IOException("invalid huffman padding");
+        return Arrays.copyOf(out, count);
+    }
+
+    static int huffmanLength(byte[] bytes) {
+        long bits = 0;
+        for (byte b: bytes) {
+            bits += CODE_LENGTHS[b & 0xff];
+        }
+        return (int)((bits + 7) / 8);
+    }
+
+    static void huffmanEncode(byte[] bytes, Output out) {
+        long current = 0;
+        int bits = 0;
+        for (byte b: bytes) {
+            int symbol = b & 0xff;
+            current = (current << CODE_LENGTHS[symbol]) | CODES[symbol];
+            bits += CODE_LENGTHS[symbol];
+            while (bits >= 8) {
+                bits -= 8;
+                out.write((int)(current >>> bits));
+            }
+        }
+        if (bits > 0)
+            out.write((int)((current << (8 - bits)) | (0xff >>> bits)));
+    }
+
+    static class Output {
+        byte[] bytes = new byte[256];
+        int count;
+
+        void write(int b) {
+            if (count == bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            bytes[count++] = (byte)b;
+        }
+
+        void write(byte[] b) {
+            if (count + b.length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + b.length));
+            System.arraycopy(b, 0, bytes, count, b.length);
+            count += b.length;
+        }
+
+        // an integer with an n bit prefix, the high bits of the first byte are the flags
+        void writeInt(int value, int prefixBits, int flags) {
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                write(flags | value);
+                return;
+            }
+            write(flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeString(String string) {
+            byte[] b = string.getBytes(Charsets.UTF_8);
+            int huffman = huffmanLength(b);
+            if (huffman < b.length) {
+                writeInt(huffman, 7, 0x80);
+                huffmanEncode(b, this);
+                return;
+            }
+            writeInt(b.length, 7, 0);
+            write(b);
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final String value;
+        final int size;
+        long number;
+
+        Entry(String name, String value) {
+            this.name = name;
+            this.value = value;
+            size = name.getBytes(Charsets.UTF_8).length + value.getBytes(Charsets.UTF_8).length + 32;
+        }
+    }
+
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    public static class Decoder {
+        // oldest first
+        private final ArrayList<Entry> dynamic = new ArrayList<Entry>();
+        private int tableSize;
+        private int maxTableSize = DEFAULT_TABLE_SIZE;
+        private byte[] block;
+        private int position;
+        private int limit;
+
+        private void evict(int max) {
+            while (tableSize > max && !dynamic.isEmpty()) {
+                tableSize -= dynamic.remove(0).size;
+            }
+        }
+
+        private Entry entry(int index) throws IOException {
+            if (index >= 1 && index <= STATIC_TABLE.length)
+                return new Entry(STATIC_TABLE[index - 1][0], STATIC_TABLE[index - 1][1]);
+            int dynamicIndex = dynamic.size() - 1 - (index - STATIC_TABLE.length - 1);
+            if (dynamicIndex < 0 || dynamicIndex >= dynamic.size())
+                throw new IOException("invalid header index " + index);
+            return dynamic.get(dynamicIndex);
+        }
+
+        private int readByte() throws IOException {
+            if (position == limit)
+                throw new IOException("truncated header block");
+            return block[position++] & 0xff;
+        }
+
+        private int readInt(int first, int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = first & max;
+            if (value < max)
+                return value;
+            for (int shift = 0; shift < 28; shift += 7) {
+                int b = readByte();
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("header integer overflow");
+        }
+
+        private String readString() throws IOException {
+            int first = readByte();
+            int length = readInt(first, 7);
+            if (length < 0 || length > limit - position)
+                throw new IOException("truncated header block");
+            byte[] bytes;
+            if ((first & 0x80) != 0)
+                bytes = huffmanDecode(block, position, length);
+            else
+                bytes = Arrays.copyOfRange(block, position, position + length);
+            position += length;
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        public Headers decode(byte[] block, int offset, int length) throws IOException {
+            this.block = block;
+            position = offset;
+            limit = offset + length;
+            Headers headers = new Headers();
+            try {
+                while (position < limit) {
+                    int b = readByte();
+                    if ((b & 0x80) != 0) {
+                        Entry entry = entry(readInt(b, 7));
+                        headers.add(entry.name, entry.value);
+                    }
+                    else if ((b & 0xc0) == 0x40) {
+                        int index = readInt(b, 6);
+                        String name = index == 0 ? readString() : entry(index).name;
+                        Entry entry = new Entry(name, readString());
+                        headers.add(entry.name, entry.value);
+                        evict(maxTableSize - entry.size);
+                        if (entry.size <= maxTableSize) {
+                            dynamic.add(entry);
+                            tableSize += entry.size;
+                        }
+                    }
+                    else if ((b & 0xe0) == 0x20) {
+                        int size = readInt(b, 5);
+                        if (size > DEFAULT_TABLE_SIZE)
+                            throw new IOException("header table size update too large");
+                        maxTableSize = size;
+                        evict(maxTableSize);
+                    }
+                    else {
+                        // literal without indexing, or never indexed
+                        int index = readInt(b, 4);
+                        String name = index == 0 ? readString() : entry(index).name;
+                        headers.add(name, readString());
+                    }
+                }
+            }
+            finally {
+                this.block = null;
+            }
+            return headers;
+        }
+    }
+
+    public static class Encoder {
+        // oldest first
+        private final ArrayList<Entry> dynamic = new ArrayList<Entry>();
+        private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+        private long inserted;
+        private int tableSize;
+        private int maxTableSize = DEFAULT_TABLE_SIZE;
+        private int pendingSizeUpdate = -1;
+
+        /**
+         * The peer's SETTINGS_HEADER_TABLE_SIZE. The table never grows past the default size.
+         */
+        public void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size == maxTableSize)
+                return;
+            maxTableSize = size;
+            pendingSizeUpdate = size;
+            evict(size);
+        }
+
+        private void evict(int max) {
+            while (tableSize > max && !dynamic.isEmpty()) {
+                Entry oldest = dynamic.remove(0);
+                tableSize -= oldest.size;
+                String key = key(oldest.name, oldest.value);
+                if (entries.get(key) == oldest)
+                    entries.remove(key);
+            }
+        }
+
+        private int index(Entry entry) {
+            return STATIC_TABLE.length + 1 + (int)(inserted - 1 - entry.number);
+        }
+
+        private static boolean isSensitive(String name) {
+            return "authorization".equals(name) || "proxy-authorization".equals(name) || "cookie".equals(name) || "set-cookie".equals(name);
+        }
+
+        // values that change from one message to the next are not worth a table entry
+        private static boolean isVolatile(String name) {
+            return ":path".equals(name) || "content-length".equals(name) || "date".equals(name) || "etag".equals(name) || "last-modified".equals(name);
+        }
+
+        public byte[] encode(Headers headers) {
+            Output out = new Output();
+            if (pendingSizeUpdate >= 0) {
+                out.writeInt(pendingSizeUpdate, 5, 0x20);
+                pendingSizeUpdate = -1;
+            }
+            for (String name: headers.getMultiMap().keySet()) {
+                List<String> values = headers.getMultiMap().get(name);
+                for (String value: values) {
+                    encode(out, name, value == null ? "" : value);
+                }
+            }
+            return Arrays.copyOf(out.bytes, out.count);
+        }
+
+        private void encode(Output out, String name, String value) {
+            String key = key(name, value);
+            Integer staticIndex = staticEntries.get(key);
+            if (staticIndex != null) {
+                out.writeInt(staticIndex, 7, 0x80);
+                return;
+            }
+            Entry existing = entries.get(key);
+            if (existing != null) {
+                out.writeInt(index(existing), 7, 0x80);
+                return;
+            }
+
+            Integer nameIndex = staticNames.get(name);
+            if (isSensitive(name) || isVolatile(name)) {
+                // never indexed for secrets, so intermediaries don't either
+                int flags = isSensitive(name) ? 0x10 : 0;
+                if (nameIndex != null) {
+                    out.writeInt(nameIndex, 4, flags);
+                }
+                else {
+                    out.writeInt(0, 4, flags);
+                    out.writeString(name);
+                }
+                out.writeString(value);
+                return;
+            }
+
+            if (nameIndex != null) {
+                out.writeInt(nameIndex, 6, 0x40);
+            }
+            else {
+                out.writeInt(0, 6, 0x40);
+                out.writeString(name);
+            }
+            out.writeString(value);
+
+            Entry entry = new Entry(name, value);
+            evict(maxTableSize - entry.size);
+            if (entry.size > maxTableSize)
+                return;
+            entry.number = inserted++;
+            dynamic.add(entry);
+            tableSize += entry.size;
+            entries.put(key, entry);
+        }
+    }
+}
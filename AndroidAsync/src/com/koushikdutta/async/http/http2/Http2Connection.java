@@ -0,0 +1,631 @@
+package com.koushikdutta.async.http.http2;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.util.Charsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * One HTTP/2 connection, RFC 7540, carrying many concurrent Http2Streams over a single socket.
+ * The client side opens streams with newStream. The server side hands each stream the peer opens
+ * to the StreamHandler once its headers arrive. Server push is disabled.
+ * All calls must be made on the socket's AsyncServer thread.
+ */
+public class Http2Connection {
+    public interface StreamHandler {
+        void onStream(Http2Stream stream);
+    }
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charsets.US_ASCII);
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_PRIORITY = 0x2;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    static final int DEFAULT_WINDOW = 65535;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    // the window granted to the peer, for each stream and for the connection as a whole
+    static final int RECEIVE_WINDOW = 1024 * 1024;
+    // stop handing DATA frames to the socket once this much is waiting to be written
+    static final int MAX_BUFFERED = 256 * 1024;
+    // streams the peer may have open at once, any more are refused
+    static final int MAX_CONCURRENT_STREAMS = 100;
+    // the largest header block accepted, counted before decoding, across any CONTINUATION frames
+    static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+    final AsyncSocket socket;
+    final AsyncServer server;
+    final boolean client;
+    private final Hashtable<Integer, Http2Stream> streams = new Hashtable<Integer, Http2Stream>();
+    private final ByteBufferList input = new ByteBufferList();
+    private final ByteBufferList output = new ByteBufferList();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private int nextStreamId;
+    private int lastPeerStreamId;
+    private boolean prefaceReceived;
+    private boolean goingAway;
+    private boolean closed;
+    private StreamHandler streamHandler;
+    private CompletedCallback closedCallback;
+
+    // header blocks split across CONTINUATION frames
+    private int continuationStreamId;
+    private int continuationFlags;
+    private byte[] headerBlock;
+    private int headerBlockLength;
+
+    // peer settings
+    int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+    int peerInitialWindow = DEFAULT_WINDOW;
+    int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+    long sendWindow = DEFAULT_WINDOW;
+    private long receiveWindow = RECEIVE_WINDOW;
+    private int unacknowledged;
+
+    public Http2Connection(AsyncSocket socket, boolean client) {
+        this.socket = socket;
+        this.server = socket.getServer();
+        this.client = client;
+        nextStreamId = client ? 1 : 2;
+        prefaceReceived = client;
+
+        socket.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                bb.get(input);
+                try {
+                    readFrames();
+                }
+                catch (IOException e) {
+                    goAway(PROTOCOL_ERROR, e);
+                }
+            }
+        });
+        socket.setEndCallback(this::onClosed);
+        socket.setClosedCallback(this::onClosed);
+        socket.setWriteableCallback(this::flush);
+
+        if (client)
+            writeRaw(PREFACE);
+        ByteBuffer settings = frame(TYPE_SETTINGS, 0, 0, 30);
+        settings.putShort((short)SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short)SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short)SETTINGS_INITIAL_WINDOW_SIZE).putInt(RECEIVE_WINDOW);
+        settings.putShort((short)SETTINGS_MAX_FRAME_SIZE).putInt(DEFAULT_MAX_FRAME_SIZE);
+        settings.putShort((short)SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+        send(settings);
+        writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW);
+    }
+
+    /**
+     * Whether data read from a new connection starts with the client connection preface:
+     * 1 if it does, -1 if it does not, or 0 if there is not enough data yet to tell.
+     */
+    public static int matchPreface(ByteBufferList data) {
+        int length = Math.min(data.remaining(), PREFACE.length);
+        byte[] start = data.peekBytes(length);
+        for (int i = 0; i < length; i++) {
+            if (start[i] != PREFACE[i])
+                return -1;
+        }
+        return length == PREFACE.length ? 1 : 0;
+    }
+
+    public AsyncServer getServer() {
+        return server;
+    }
+
+    public AsyncSocket getSocket() {
+        return socket;
+    }
+
+    public void setStreamHandler(StreamHandler handler) {
+        streamHandler = handler;
+    }
+
+    /**
+     * Called once the connection is closed, or once it has been told to go away and is no
+     * longer usable for new streams.
+     */
+    public void setClosedCallback(CompletedCallback callback) {
+        closedCallback = callback;
+    }
+
+    /**
+     * Whether new streams may still be opened. False after a GOAWAY in either direction.
+     */
+    public boolean isOpen() {
+        return !closed && !goingAway;
+    }
+
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    public boolean canCreateStream() {
+        return isOpen() && streams.size() < peerMaxConcurrentStreams;
+    }
+
+    public Http2Stream newStream() {
+        if (!client)
+            throw new IllegalStateException("only the client opens streams");
+        if (!isOpen())
+            throw new IllegalStateException("connection is closed");
+        Http2Stream stream = new Http2Stream(this, nextStreamId);
+        nextStreamId += 2;
+        streams.put(stream.id, stream);
+        return stream;
+    }
+
+    public void close() {
+        goAway(NO_ERROR, null);
+    }
+
+    private void readFrames() throws IOException {
+        if (!prefaceReceived) {
+            if (input.remaining() < PREFACE.length)
+                return;
+            byte[] preface = new byte[PREFACE.length];
+            input.get(preface);
+            if (!Arrays.equals(preface, PREFACE))
+                throw new IOException("invalid HTTP/2 connection preface");
+            prefaceReceived = true;
+        }
+        while (!closed && input.remaining() >= 9) {
+            int length = input.peekInt() >>> 8;
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                goAway(FRAME_SIZE_ERROR, new IOException("frame too large: " + length));
+                return;
+            }
+            if (input.remaining() < 9 + length)
+                return;
+            int type = input.getInt() & 0xff;
+            int flags = input.get() & 0xff;
+            int streamId = input.getInt() & 0x7fffffff;
+
+            if (continuationStreamId != 0 && (type != TYPE_CONTINUATION || streamId != continuationStreamId))
+                throw new IOException("expected CONTINUATION frame");
+
+            if (type == TYPE_DATA) {
+                readData(length, flags, streamId);
+                continue;
+            }
+            byte[] payload = new byte[length];
+            input.get(payload);
+            switch (type) {
+                case TYPE_HEADERS:
+                    readHeaders(payload, flags, streamId);
+                    break;
+                case TYPE_CONTINUATION:
+                    if (continuationStreamId == 0)
+                        throw new IOException("unexpected CONTINUATION frame");
+                    if (!appendHeaderBlock(payload, 0, payload.length))
+                        return;
+                    if ((flags & FLAG_END_HEADERS) != 0)
+                        onHeaderBlock(continuationStreamId, continuationFlags);
+                    break;
+                case TYPE_SETTINGS:
+                    readSettings(payload, flags);
+                    break;
+                case TYPE_PING:
+                    if ((flags & FLAG_ACK) == 0) {
+                        ByteBuffer pong = frame(TYPE_PING, FLAG_ACK, 0, payload.length);
+                        pong.put(payload);
+                        send(pong);
+                    }
+                    break;
+                case TYPE_WINDOW_UPDATE:
+                    readWindowUpdate(payload, streamId);
+                    break;
+                case TYPE_RST_STREAM: {
+                    Http2Stream stream = streams.remove(streamId);
+                    if (stream != null)
+                        stream.onReset(new IOException("stream reset by peer: " + ByteBuffer.wrap(payload).getInt()));
+                    break;
+                }
+                case TYPE_GOAWAY:
+                    readGoAway(payload);
+                    break;
+                case TYPE_PUSH_PROMISE:
+                    throw new IOException("push is disabled");
+                default:
+                    // PRIORITY and unknown frame types are ignored
+                    break;
+            }
+        }
+    }
+
+    private void readData(int length, int flags, int streamId) throws IOException {
+        ByteBufferList data = new ByteBufferList();
+        input.get(data, length);
+        receiveWindow -= length;
+        if (receiveWindow < 0)
+            throw new IOException("connection flow control window exceeded");
+        int padding = 0;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length < 1)
+                throw new IOException("invalid padding");
+            padding = (data.get() & 0xff) + 1;
+            if (padding > length)
+                throw new IOException("invalid padding");
+            ByteBufferList body = new ByteBufferList();
+            data.get(body, length - padding);
+            data.recycle();
+            data = body;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteEnded) {
+            // a stream that has already been closed or reset, only the connection window matters
+            data.recycle();
+            consumed(null, length);
+            return;
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0)
+            throw new IOException("stream flow control window exceeded");
+        // padding is never read, so it is handed straight back
+        consumed(stream, padding);
+        stream.onData(data, (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private boolean appendHeaderBlock(byte[] bytes, int offset, int length) {
+        if (headerBlockLength + length > MAX_HEADER_LIST_SIZE) {
+            // an endless run of CONTINUATION frames would otherwise be buffered without limit
+            headerBlock = null;
+            headerBlockLength = 0;
+            goAway(ENHANCE_YOUR_CALM, new IOException("header block too large"));
+            return false;
+        }
+        if (headerBlock == null)
+            headerBlock = new byte[Math.max(length, 1024)];
+        if (headerBlockLength + length > headerBlock.length)
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length * 2, headerBlockLength + length));
+        System.arraycopy(bytes, offset, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+        return true;
+    }
+
+    private void readHeaders(byte[] payload, int flags, int streamId) throws IOException {
+        int offset = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (end < 1)
+                throw new IOException("invalid padding");
+            end -= payload[offset++] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0)
+            offset += 5;
+        if (offset > end)
+            throw new IOException("invalid HEADERS frame");
+        headerBlockLength = 0;
+        if (!appendHeaderBlock(payload, offset, end - offset))
+            return;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, flags);
+            return;
+        }
+        continuationStreamId = streamId;
+        continuationFlags = flags;
+    }
+
+    private void onHeaderBlock(int streamId, int flags) throws IOException {
+        continuationStreamId = 0;
+        Headers headers;
+        try {
+            // always decoded, the table has to stay in sync even for streams that are gone
+            headers = decoder.decode(headerBlock, 0, headerBlockLength);
+        }
+        catch (IOException e) {
+            goAway(COMPRESSION_ERROR, e);
+            return;
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (client || streamId <= lastPeerStreamId || (streamId & 1) == 0)
+                return;
+            lastPeerStreamId = streamId;
+            if (goingAway || streams.size() >= MAX_CONCURRENT_STREAMS) {
+                writeRstStream(streamId, REFUSED_STREAM);
+                return;
+            }
+            stream = new Http2Stream(this, streamId);
+            streams.put(streamId, stream);
+            stream.onHeaders(headers);
+            if (streamHandler == null) {
+                stream.close();
+                return;
+            }
+            streamHandler.onStream(stream);
+        }
+        else {
+            stream.onHeaders(headers);
+        }
+        if (endStream)
+            stream.onData(new ByteBufferList(), true);
+    }
+
+    private void readSettings(byte[] payload, int flags) throws IOException {
+        if ((flags & FLAG_ACK) != 0)
+            return;
+        if (payload.length % 6 != 0)
+            throw new IOException("invalid SETTINGS frame");
+        ByteBuffer settings = ByteBuffer.wrap(payload);
+        while (settings.hasRemaining()) {
+            int id = settings.getShort() & 0xffff;
+            int value = settings.getInt();
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value);
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    peerMaxConcurrentStreams = value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0)
+                        throw new IOException("invalid initial window size");
+                    // applies to every open stream, as a delta
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Http2Stream stream: new ArrayList<Http2Stream>(streams.values())) {
+                        stream.sendWindow += delta;
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 16777215)
+                        throw new IOException("invalid max frame size");
+                    peerMaxFrameSize = value;
+                    break;
+            }
+        }
+        send(frame(TYPE_SETTINGS, FLAG_ACK, 0, 0));
+        notifyWritable();
+    }
+
+    private void readWindowUpdate(byte[] payload, int streamId) throws IOException {
+        if (payload.length != 4)
+            throw new IOException("invalid WINDOW_UPDATE frame");
+        int increment = ByteBuffer.wrap(payload).getInt() & 0x7fffffff;
+        if (streamId == 0) {
+            sendWindow += increment;
+            notifyWritable();
+            return;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null)
+            return;
+        stream.sendWindow += increment;
+        stream.notifyWritable();
+    }
+
+    private void readGoAway(byte[] payload) throws IOException {
+        if (payload.length < 8)
+            throw new IOException("invalid GOAWAY frame");
+        ByteBuffer b = ByteBuffer.wrap(payload);
+        int lastStreamId = b.getInt() & 0x7fffffff;
+        int error = b.getInt();
+        goingAway = true;
+        // streams the peer never saw can be sent again elsewhere
+        for (Http2Stream stream: new ArrayList<Http2Stream>(streams.values())) {
+            if (stream.id > lastStreamId && (stream.id & 1) == (nextStreamId & 1)) {
+                streams.remove(stream.id);
+                stream.onReset(new IOException("stream refused by GOAWAY: " + error));
+            }
+        }
+        reportClosed(null);
+        if (streams.isEmpty())
+            socket.close();
+    }
+
+    private void goAway(int error, Exception ex) {
+        if (closed)
+            return;
+        if (!goingAway) {
+            goingAway = true;
+            ByteBuffer b = frame(TYPE_GOAWAY, 0, 0, 8);
+            b.putInt(lastPeerStreamId).putInt(error);
+            send(b);
+        }
+        if (ex != null || streams.isEmpty()) {
+            failStreams(ex);
+            socket.close();
+            onClosed(ex);
+        }
+        else {
+            reportClosed(null);
+        }
+    }
+
+    private void failStreams(Exception ex) {
+        ArrayList<Http2Stream> open = new ArrayList<Http2Stream>(streams.values());
+        streams.clear();
+        for (Http2Stream stream: open) {
+            stream.onReset(ex != null ? ex : new IOException("connection closed"));
+        }
+    }
+
+    private void onClosed(Exception ex) {
+        if (closed)
+            return;
+        closed = true;
+        input.recycle();
+        output.recycle();
+        failStreams(ex);
+        reportClosed(ex);
+    }
+
+    private void reportClosed(Exception ex) {
+        CompletedCallback callback = closedCallback;
+        closedCallback = null;
+        if (callback != null)
+            callback.onCompleted(ex);
+    }
+
+    void removeStream(Http2Stream stream) {
+        streams.remove(stream.id);
+        if (goingAway && streams.isEmpty() && !closed) {
+            socket.close();
+            onClosed(null);
+        }
+    }
+
+    // credit the peer for data that has been read by a stream, or dropped.
+    void consumed(Http2Stream stream, int length) {
+        if (closed || length <= 0)
+            return;
+        receiveWindow += length;
+        unacknowledged += length;
+        if (unacknowledged >= RECEIVE_WINDOW / 2) {
+            writeWindowUpdate(0, unacknowledged);
+            unacknowledged = 0;
+        }
+        if (stream == null || stream.remoteEnded)
+            return;
+        stream.receiveWindow += length;
+        stream.unacknowledged += length;
+        if (stream.unacknowledged >= RECEIVE_WINDOW / 2) {
+            writeWindowUpdate(stream.id, stream.unacknowledged);
+            stream.unacknowledged = 0;
+        }
+    }
+
+    static ByteBuffer frame(int type, int flags, int streamId, int length) {
+        ByteBuffer b = ByteBufferList.obtain(9 + length).order(ByteOrder.BIG_ENDIAN);
+        b.putInt((length << 8) | type);
+        b.put((byte)flags);
+        b.putInt(streamId);
+        return b;
+    }
+
+    private void send(ByteBuffer frame) {
+        frame.flip();
+        if (closed) {
+            ByteBufferList.reclaim(frame);
+            return;
+        }
+        output.add(frame);
+        socket.write(output);
+    }
+
+    private void writeRaw(byte[] bytes) {
+        ByteBuffer b = ByteBufferList.obtain(bytes.length);
+        b.put(bytes);
+        send(b);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) {
+        if (increment <= 0)
+            return;
+        ByteBuffer b = frame(TYPE_WINDOW_UPDATE, 0, streamId, 4);
+        b.putInt(increment);
+        send(b);
+    }
+
+    void writeRstStream(int streamId, int error) {
+        ByteBuffer b = frame(TYPE_RST_STREAM, 0, streamId, 4);
+        b.putInt(error);
+        send(b);
+    }
+
+    void writeHeaders(Http2Stream stream, Headers headers, boolean endStream) {
+        byte[] block = encoder.encode(headers);
+        int offset = 0;
+        int type = TYPE_HEADERS;
+        do {
+            int length = Math.min(block.length - offset, peerMaxFrameSize);
+            boolean last = offset + length == block.length;
+            int flags = last ? FLAG_END_HEADERS : 0;
+            if (type == TYPE_HEADERS && endStream)
+                flags |= FLAG_END_STREAM;
+            ByteBuffer b = frame(type, flags, stream.id, length);
+            b.put(block, offset, length);
+            send(b);
+            offset += length;
+            type = TYPE_CONTINUATION;
+        }
+        while (offset < block.length);
+    }
+
+    /**
+     * Frame as much of the data as the flow control windows allow, leaving the rest in bb.
+     */
+    void writeData(Http2Stream stream, ByteBufferList bb) {
+        while (bb.hasRemaining() && !closed && output.remaining() < MAX_BUFFERED) {
+            int length = (int)Math.min(Math.min(bb.remaining(), peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+            if (length <= 0)
+                break;
+            ByteBuffer b = frame(TYPE_DATA, 0, stream.id, length);
+            bb.get(b.array(), b.arrayOffset() + b.position(), length);
+            b.position(b.position() + length);
+            sendWindow -= length;
+            stream.sendWindow -= length;
+            send(b);
+        }
+    }
+
+    void writeEndStream(Http2Stream stream) {
+        send(frame(TYPE_DATA, FLAG_END_STREAM, stream.id, 0));
+    }
+
+    boolean canWrite(Http2Stream stream) {
+        return !closed && output.remaining() < MAX_BUFFERED && sendWindow > 0 && stream.sendWindow > 0;
+    }
+
+    private void flush() {
+        if (closed)
+            return;
+        if (output.hasRemaining())
+            socket.write(output);
+        if (output.remaining() < MAX_BUFFERED)
+            notifyWritable();
+    }
+
+    private void notifyWritable() {
+        for (Http2Stream stream: new ArrayList<Http2Stream>(streams.values())) {
+            stream.notifyWritable();
+        }
+    }
+}
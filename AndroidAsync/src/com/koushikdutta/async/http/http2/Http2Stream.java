@@ -0,0 +1,234 @@
+package com.koushikdutta.async.http.http2;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitterBase;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.http.Headers;
+
+/**
+ * A single request and response exchange on an Http2Connection. Reads and writes carry the
+ * message body only, headers are sent with writeHeaders and received through the HeadersCallback.
+ * Writes consume only as much data as the flow control windows allow, the writeable callback
+ * is invoked once more may be written.
+ */
+public class Http2Stream extends DataEmitterBase implements AsyncSocket {
+    public interface HeadersCallback {
+        void onHeaders(Http2Stream stream, Headers headers);
+    }
+
+    final Http2Connection connection;
+    final int id;
+    long sendWindow;
+    long receiveWindow = Http2Connection.RECEIVE_WINDOW;
+    int unacknowledged;
+    boolean localEnded;
+    boolean remoteEnded;
+    private boolean reset;
+    private boolean paused;
+    private boolean delivering;
+    private Headers headers;
+    private HeadersCallback headersCallback;
+    private WritableCallback writableCallback;
+    private CompletedCallback closedCallback;
+    private final ByteBufferList pending = new ByteBufferList();
+
+    Http2Stream(Http2Connection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+        sendWindow = connection.peerInitialWindow;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Http2Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * The headers received from the peer, including pseudo headers such as :status or :path.
+     */
+    public Headers getHeaders() {
+        return headers;
+    }
+
+    public void setHeadersCallback(HeadersCallback callback) {
+        headersCallback = callback;
+        if (callback != null && headers != null)
+            callback.onHeaders(this, headers);
+    }
+
+    public void writeHeaders(Headers headers, boolean endStream) {
+        if (localEnded || reset)
+            return;
+        connection.writeHeaders(this, headers, endStream);
+        if (endStream)
+            endLocal();
+    }
+
+    void onHeaders(Headers received) {
+        String status = received.get(":status");
+        if (this.headers == null && status != null && status.startsWith("1")) {
+            // informational, the real response follows
+        }
+        else if (this.headers == null) {
+            this.headers = received;
+            if (headersCallback != null)
+                headersCallback.onHeaders(this, received);
+        }
+        // anything later is trailers, which are dropped
+    }
+
+    void onData(ByteBufferList data, boolean endStream) {
+        data.get(pending);
+        if (endStream)
+            remoteEnded = true;
+        deliver();
+    }
+
+    private void deliver() {
+        if (delivering)
+            return;
+        delivering = true;
+        try {
+            int remaining = pending.remaining();
+            if (remaining > 0 && !paused && getDataCallback() != null) {
+                Util.emitAllData(this, pending);
+                connection.consumed(this, remaining - pending.remaining());
+            }
+        }
+        finally {
+            delivering = false;
+        }
+        if (remoteEnded && !pending.hasRemaining() && !reset) {
+            if (localEnded)
+                connection.removeStream(this);
+            report(null);
+        }
+    }
+
+    void onReset(Exception e) {
+        if (reset)
+            return;
+        reset = true;
+        pending.recycle();
+        report(e);
+        if (closedCallback != null)
+            closedCallback.onCompleted(e);
+    }
+
+    private void endLocal() {
+        localEnded = true;
+        if (remoteEnded)
+            connection.removeStream(this);
+    }
+
+    void notifyWritable() {
+        if (localEnded || reset || writableCallback == null || !connection.canWrite(this))
+            return;
+        writableCallback.onWriteable();
+    }
+
+    @Override
+    public void write(ByteBufferList bb) {
+        if (localEnded || reset) {
+            bb.recycle();
+            return;
+        }
+        connection.writeData(this, bb);
+    }
+
+    @Override
+    public void end() {
+        if (localEnded || reset)
+            return;
+        connection.writeEndStream(this);
+        endLocal();
+    }
+
+    @Override
+    public void setWriteableCallback(WritableCallback handler) {
+        writableCallback = handler;
+    }
+
+    @Override
+    public WritableCallback getWriteableCallback() {
+        return writableCallback;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !reset && !(localEnded && remoteEnded);
+    }
+
+    @Override
+    public void setClosedCallback(CompletedCallback handler) {
+        closedCallback = handler;
+    }
+
+    @Override
+    public CompletedCallback getClosedCallback() {
+        return closedCallback;
+    }
+
+    @Override
+    public AsyncServer getServer() {
+        return connection.server;
+    }
+
+    @Override
+    public void setDataCallback(DataCallback callback) {
+        super.setDataCallback(callback);
+        // a new callback may take data the last one left behind
+        if (callback != null && pending.hasRemaining())
+            connection.server.post(this::deliver);
+    }
+
+    @Override
+    public boolean isChunked() {
+        return false;
+    }
+
+    @Override
+    public void pause() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        connection.server.post(this::deliver);
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Abandon the stream. The peer is told to stop with RST_STREAM unless the exchange
+     * already finished.
+     */
+    @Override
+    public void close() {
+        if (reset)
+            return;
+        reset = true;
+        pending.recycle();
+        if (isExchangeOpen())
+            connection.writeRstStream(id, Http2Connection.CANCEL);
+        connection.removeStream(this);
+        if (closedCallback != null)
+            closedCallback.onCompleted(null);
+    }
+
+    private boolean isExchangeOpen() {
+        return !(localEnded && remoteEnded);
+    }
+}
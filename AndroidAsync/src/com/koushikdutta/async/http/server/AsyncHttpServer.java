@@ -7,25 +7,32 @@ import android.util.Log;
 import com.koushikdutta.async.AsyncSSLSocket;
 import com.koushikdutta.async.AsyncSSLSocketWrapper;
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerGroup;
 import com.koushikdutta.async.AsyncServerSocket;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.ByteBufferList;
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.Util;
 import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.callback.ListenCallback;
 import com.koushikdutta.async.callback.ValueCallback;
+import com.koushikdutta.async.http.Alpn;
 import com.koushikdutta.async.http.Headers;
 import com.koushikdutta.async.http.HttpUtil;
 import com.koushikdutta.async.http.Multimap;
+import com.koushikdutta.async.http.Protocol;
 import com.koushikdutta.async.http.WebSocket;
 import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
+import com.koushikdutta.async.http.http2.Http2Connection;
+import com.koushikdutta.async.http.http2.Http2Stream;
 
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Hashtable;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 
 @TargetApi(Build.VERSION_CODES.ECLAIR)
 public class AsyncHttpServer extends AsyncHttpServerRouter {
@@ -71,19 +78,144 @@ public class AsyncHttpServer extends AsyncHttpServerRouter {
         return res.code() == 101;
     }
 
+    private static boolean hasBody(Headers headers) {
+        return HttpUtil.contentLength(headers) > 0 || "chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"));
+    }
+
+    boolean http2Enabled;
+
+    /**
+     * Serve HTTP/2 as well as HTTP/1.x. Plain connections are checked for the HTTP/2 connection
+     * preface (h2c with prior knowledge), secure connections offer h2 through ALPN where the
+     * platform supports it. Each stream is routed like an HTTP/1.x request.
+     */
+    public void setHttp2Enabled(boolean enabled) {
+        http2Enabled = enabled;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    // a request routed by this server, read from HTTP/1.x or an HTTP/2 stream.
+    // the unchecked warning is the raw getBody inherited from AsyncHttpServerRequestImpl.
+    @SuppressWarnings("unchecked")
+    private abstract class RoutedRequest extends AsyncHttpServerRequestImpl {
+        HttpServerRequestCallback requestCallback;
+        String fullPath;
+        String path;
+        boolean requestComplete;
+        AsyncHttpServerResponseImpl res;
+        boolean handled;
+
+        void onRequest() {
+            AsyncHttpServer.this.onRequest(requestCallback, this, res);
+        }
+
+        // finds the route once the method and full path are known
+        AsyncHttpRequestBody<?> routeBody(Headers headers) {
+            path = URLDecoder.decode(fullPath.split("\\?")[0]);
+            RouteMatch route = route(method, path);
+            if (route == null)
+                return null;
+
+            matcher = route.matcher;
+            requestCallback = route.callback;
+
+            if (route.bodyCallback == null)
+                return null;
+            return route.bodyCallback.getBody(headers);
+        }
+
+        // once the response exists, hand the request off now or after its body is read.
+        void dispatch() {
+            handled = AsyncHttpServer.this.onRequest(this, res);
+            if (handled)
+                return;
+
+            if (requestCallback == null) {
+                res.code(404);
+                res.end();
+                return;
+            }
+
+            if (!getBody().readFullyOnRequest() || requestComplete)
+                onRequest();
+        }
+
+        @Override
+        protected AsyncHttpRequestBody<?> onUnknownBody(Headers headers) {
+            return AsyncHttpServer.this.onUnknownBody(headers);
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public Multimap getQuery() {
+            String[] parts = fullPath.split("\\?", 2);
+            if (parts.length < 2)
+                return new Multimap();
+            return Multimap.parseQuery(parts[1]);
+        }
+
+        @Override
+        public String getUrl() {
+            return fullPath;
+        }
+    }
+
     ListenCallback mListenCallback = new ListenCallback() {
         @Override
         public void onAccepted(final AsyncSocket socket) {
-            final AsyncHttpServerRequestImpl req = new AsyncHttpServerRequestImpl() {
+            if (!http2Enabled) {
+                onHttp1(socket, null);
+                return;
+            }
+            if (socket instanceof AsyncSSLSocket) {
+                if (Protocol.HTTP_2.toString().equals(Alpn.getProtocol(((AsyncSSLSocket)socket).getSSLEngine())))
+                    onHttp2(socket, null);
+                else
+                    onHttp1(socket, null);
+                return;
+            }
+            final ByteBufferList read = new ByteBufferList();
+            socket.setDataCallback(new DataCallback() {
+                @Override
+                public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                    bb.get(read);
+                    int match = Http2Connection.matchPreface(read);
+                    if (match == 0)
+                        return;
+                    if (match > 0) {
+                        onHttp2(socket, read);
+                        return;
+                    }
+                    onHttp1(socket, read);
+                }
+            });
+        }
+
+        private void onHttp1(final AsyncSocket socket, ByteBufferList read) {
+            HttpServerPipeline pipeline = new HttpServerPipeline(socket) {
+                @Override
+                void readRequest() {
+                    onHttp1Request(socket, this);
+                }
+            };
+            if (read != null)
+                read.get(pipeline.held);
+            pipeline.readRequest();
+        }
+
+        private void onHttp1Request(final AsyncSocket socket, final HttpServerPipeline pipeline) {
+            @SuppressWarnings("unchecked")
+            final RoutedRequest req = new RoutedRequest() {
                 AsyncHttpServerRequestImpl self = this;
-                HttpServerRequestCallback requestCallback;
-                String fullPath;
-                String path;
-                boolean responseComplete;
-                boolean requestComplete;
-                AsyncHttpServerResponseImpl res;
+                HttpServerPipeline.Exchange exchange;
                 boolean hasContinued;
-                boolean handled;
 
                 final Runnable onFinally = new Runnable() {
                     @Override
@@ -99,41 +231,29 @@ public class AsyncHttpServer extends AsyncHttpServerRouter {
                     }
                 };
 
-                void onRequest() {
-                    AsyncHttpServer.this.onRequest(requestCallback, this, res);
-                }
-
                 @Override
-                protected AsyncHttpRequestBody onBody(Headers headers) {
+                protected AsyncHttpRequestBody<?> onBody(Headers headers) {
                     String statusLine = getStatusLine();
                     String[] parts = statusLine.split(" ");
                     fullPath = parts[1];
-                    path = URLDecoder.decode(fullPath.split("\\?")[0]);
                     method = parts[0];
-                    RouteMatch route = route(method, path);
-                    if (route == null)
-                        return null;
-
-                    matcher = route.matcher;
-                    requestCallback = route.callback;
-
-                    if (route.bodyCallback == null)
-                        return null;
-                    return route.bodyCallback.getBody(headers);
-                }
-
-                @Override
-                protected AsyncHttpRequestBody onUnknownBody(Headers headers) {
-                    return AsyncHttpServer.this.onUnknownBody(headers);
+                    return routeBody(headers);
                 }
 
                 @Override
                 protected void onHeadersReceived() {
                     Headers headers = getHeaders();
 
+                    // without a body, what follows the head is the next request,
+                    // which is not read until this one is done.
+                    if (!hasBody(headers) && headers.get("Upgrade") == null)
+                        pipeline.pause();
+
                     // should the negotiation of 100 continue be here, or in the request impl?
                     // probably here, so AsyncResponse can negotiate a 100 continue.
-                    if (!hasContinued && "100-continue".equals(headers.get("Expect"))) {
+                    // a 100 continue can't be slipped in ahead of pending responses,
+                    // the client sends the body anyway once it is tired of waiting.
+                    if (!hasContinued && "100-continue".equals(headers.get("Expect")) && pipeline.isIdle()) {
                         pause();
 //                        System.out.println("continuing...");
                         Util.writeAll(mSocket, "HTTP/1.1 100 Continue\r\n\r\n".getBytes(), new CompletedCallback() {
@@ -152,42 +272,31 @@ public class AsyncHttpServer extends AsyncHttpServerRouter {
                     }
 //                    System.out.println(headers.toHeaderString());
                     
-                    res = new AsyncHttpServerResponseImpl(socket, this) {
+                    // responses behind others write to a socket that holds them until their turn
+                    exchange = pipeline.begin();
+                    res = new AsyncHttpServerResponseImpl(exchange.sink, this) {
                         @Override
                         protected void report(Exception e) {
                             super.report(e);
                             if (e != null) {
-                                socket.setDataCallback(new NullDataCallback());
                                 socket.setEndCallback(new NullCompletedCallback());
-                                socket.close();
+                                pipeline.close();
                             }
                         }
 
                         @Override
                         protected void onEnd() {
-                            responseComplete = true;
                             super.onEnd();
                             mSocket.setEndCallback(null);
 
                             onResponseCompleted(getRequest(), res);
 
                             // reuse the socket for a subsequent request.
-                            handleOnCompleted();
+                            pipeline.responseDone(exchange, isKeepAlive(self, res));
                         }
                     };
-
-                    handled = AsyncHttpServer.this.onRequest(this, res);
-                    if (handled)
-                        return;
-
-                    if (requestCallback == null) {
-                        res.code(404);
-                        res.end();
-                        return;
-                    }
-
-                    if (!getBody().readFullyOnRequest() || requestComplete)
-                        onRequest();
+                    applyHeaders(path, res);
+                    dispatch();
                 }
 
                 @Override
@@ -197,64 +306,27 @@ public class AsyncHttpServer extends AsyncHttpServerRouter {
 
                     requestComplete = true;
                     super.onCompleted(e);
-                    // no http pipelining, gc trashing if the socket dies
-                    // while the request is being sent and is paused or something
-                    mSocket.setDataCallback(new NullDataCallback() {
-                        @Override
-                        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
-                            super.onDataAvailable(emitter, bb);
-                            mSocket.close();
-                        }
-                    });
 
-                    if (e != null) {
-                        mSocket.close();
+                    if (e != null || exchange == null) {
+                        pipeline.close();
                         return;
                     }
 
-                    handleOnCompleted();
-
                     if (getBody().readFullyOnRequest() && !handled) {
                         onRequest();
                     }
-                }
-                
-                private void handleOnCompleted() {
-                    // response may complete before request. the request may have a body, and
-                    // the response may be sent before it is fully sent.
-
-                    // if the protocol was switched off http, abandon the socket,
-                    // otherwise attempt to recycle it.
-                    if (requestComplete && responseComplete && !isSwitchingProtocols(res)) {
-                        if (isKeepAlive(self, res)) {
-                            onAccepted(socket);
-                        }
-                        else {
-                            socket.close();
-                        }
-                    }
-                }
-
-                @Override
-                public String getPath() {
-                    return path;
-                }
-
-                @Override
-                public Multimap getQuery() {
-                    String[] parts = fullPath.split("\\?", 2);
-                    if (parts.length < 2)
-                        return new Multimap();
-                    return Multimap.parseQuery(parts[1]);
-                }
 
-                @Override
-                public String getUrl() {
-                    return fullPath;
+                    // the response may complete before the request, which may have a body
+                    // the response did not wait for. either way, the next request is read
+                    // now, unless the connection is done or may be switching protocols.
+                    pipeline.requestDone(exchange, isKeepAlive(self, res) && getHeaders().get("Upgrade") == null);
                 }
             };
             req.setSocket(socket);
-            socket.resume();
+            pipeline.reading = true;
+            pipeline.drain();
+            if (pipeline.reading)
+                socket.resume();
         }
 
         @Override
@@ -268,10 +340,69 @@ public class AsyncHttpServer extends AsyncHttpServerRouter {
         }
     };
 
+    private void onHttp2(AsyncSocket socket, ByteBufferList read) {
+        Http2Connection connection = new Http2Connection(socket, false);
+        connection.setStreamHandler(this::onHttp2Stream);
+        if (read != null)
+            Util.emitAllData(socket, read);
+    }
+
+    private void onHttp2Stream(final Http2Stream stream) {
+        @SuppressWarnings("unchecked")
+        final RoutedRequest req = new RoutedRequest() {
+            @Override
+            protected AsyncHttpRequestBody<?> onBody(Headers headers) {
+                fullPath = stream.getHeaders().get(":path");
+                if (fullPath == null)
+                    fullPath = "/";
+                return routeBody(headers);
+            }
+
+            @Override
+            protected void onHeadersReceived() {
+                res = new AsyncHttpServerResponseImpl(stream, this) {
+                    @Override
+                    protected void report(Exception e) {
+                        super.report(e);
+                        if (e != null)
+                            stream.close();
+                    }
+
+                    @Override
+                    protected void onEnd() {
+                        super.onEnd();
+                        stream.end();
+                        onResponseCompleted(getRequest(), res);
+                    }
+                };
+                res.setHttpVersion("HTTP/2");
+                applyHeaders(path, res);
+                dispatch();
+            }
+
+            @Override
+            public void onCompleted(Exception e) {
+                requestComplete = true;
+                super.onCompleted(e);
+                if (e != null) {
+                    stream.close();
+                    return;
+                }
+                if (getBody().readFullyOnRequest() && !handled)
+                    onRequest();
+            }
+        };
+        req.setStream(stream);
+    }
+
     public AsyncServerSocket listen(AsyncServer server, int port) {
         return server.listen(null, port, mListenCallback);
     }
 
+    public AsyncServerSocket listen(AsyncServerGroup group, int port) {
+        return group.listen(null, port, mListenCallback);
+    }
+
     private void report(Exception ex) {
         if (mCompletedCallback != null)
             mCompletedCallback.onCompleted(ex);
@@ -285,7 +416,10 @@ public class AsyncHttpServer extends AsyncHttpServerRouter {
         AsyncServer.getDefault().listen(null, port, new ListenCallback() {
             @Override
             public void onAccepted(AsyncSocket socket) {
-                AsyncSSLSocketWrapper.handshake(socket, null, port, sslContext.createSSLEngine(), null, null, false,
+                SSLEngine engine = sslContext.createSSLEngine();
+                if (http2Enabled)
+                    Alpn.setProtocols(engine, Protocol.HTTP_2.toString(), Protocol.HTTP_1_1.toString());
+                AsyncSSLSocketWrapper.handshake(socket, null, port, engine, null, null, false,
                 new AsyncSSLSocketWrapper.HandshakeCallback() {
                     @Override
                     public void onHandshakeCompleted(Exception e, AsyncSSLSocket socket) {
@@ -344,6 +478,7 @@ public class AsyncHttpServer extends AsyncHttpServerRouter {
 
     public static void addResponseCodeDescription( int code, String description ) {
         mCodes.put(code, description);
+        ResponseHeadEncoder.clearStatusLines();
     }
 
     public static interface WebSocketRequestCallback {
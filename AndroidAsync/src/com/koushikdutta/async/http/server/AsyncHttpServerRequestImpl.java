@@ -3,15 +3,15 @@ package com.koushikdutta.async.http.server;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.FilteredDataEmitter;
-import com.koushikdutta.async.LineEmitter;
-import com.koushikdutta.async.LineEmitter.StringCallback;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.http.HttpHeadParser;
 import com.koushikdutta.async.http.HttpUtil;
 import com.koushikdutta.async.http.Multimap;
 import com.koushikdutta.async.http.Protocol;
 import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
+import com.koushikdutta.async.http.http2.Http2Stream;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -61,38 +61,39 @@ public abstract class AsyncHttpServerRequestImpl extends FilteredDataEmitter imp
     }
 
     
-    StringCallback mHeaderCallback = new StringCallback() {
+    HttpHeadParser.HeadCallback mHeaderCallback = new HttpHeadParser.HeadCallback() {
         @Override
-        public void onStringAvailable(String s) {
-            if (statusLine == null) {
-                statusLine = s;
-                if (!statusLine.contains("HTTP/")) {
-                    onNotHttp();
-                    mSocket.setDataCallback(new NullDataCallback());
-                    report(new IOException("data/header received was not not http"));
-                }
-
-                return;
-            }
-            if (!"\r".equals(s)){
-                mRawHeaders.addLine(s);
-                return;
+        public boolean onStartLine(String line) {
+            statusLine = line;
+            if (!statusLine.contains("HTTP/")) {
+                onNotHttp();
+                mSocket.setDataCallback(new NullDataCallback());
+                report(new IOException("data/header received was not not http"));
+                return false;
             }
+            return true;
+        }
 
+        @Override
+        public void onHeadersReceived(Headers headers) {
             DataEmitter emitter = HttpUtil.getBodyDecoder(mSocket, Protocol.HTTP_1_1, mRawHeaders, true);
-            mBody = onBody(mRawHeaders);
+            onHead(emitter);
+        }
+    };
+
+    private void onHead(DataEmitter emitter) {
+        mBody = onBody(mRawHeaders);
+        if (mBody == null) {
+            mBody = HttpUtil.getBody(emitter, mReporter, mRawHeaders);
             if (mBody == null) {
-                mBody = HttpUtil.getBody(emitter, mReporter, mRawHeaders);
-                if (mBody == null) {
-                    mBody = onUnknownBody(mRawHeaders);
-                    if (mBody == null)
-                        mBody = new UnknownRequestBody(mRawHeaders.get("Content-Type"));
-                }
+                mBody = onUnknownBody(mRawHeaders);
+                if (mBody == null)
+                    mBody = new UnknownRequestBody(mRawHeaders.get("Content-Type"));
             }
-            mBody.parse(emitter, mReporter);
-            onHeadersReceived();
         }
-    };
+        mBody.parse(emitter, mReporter);
+        onHeadersReceived();
+    }
 
     String method;
     @Override
@@ -103,12 +104,28 @@ public abstract class AsyncHttpServerRequestImpl extends FilteredDataEmitter imp
     void setSocket(AsyncSocket socket) {
         mSocket = socket;
 
-        LineEmitter liner = new LineEmitter();
-        mSocket.setDataCallback(liner);
-        liner.setLineCallback(mHeaderCallback);
+        mSocket.setDataCallback(new HttpHeadParser(mRawHeaders, mHeaderCallback));
         mSocket.setEndCallback(new NullCompletedCallback());
     }
     
+    void setStream(Http2Stream stream) {
+        mSocket = stream;
+        Headers received = stream.getHeaders();
+        method = received.get(":method");
+        statusLine = method + " " + received.get(":path") + " HTTP/2";
+        for (String name: received.getMultiMap().keySet()) {
+            if (!name.startsWith(":"))
+                mRawHeaders.addAll(name, received.getMultiMap().get(name));
+        }
+        if (mRawHeaders.get("Host") == null && received.get(":authority") != null)
+            mRawHeaders.set("Host", received.get(":authority"));
+        // the body ends with the stream, unless there is a content length to check
+        if (mRawHeaders.get("Content-Length") != null)
+            onHead(HttpUtil.getBodyDecoder(stream, Protocol.HTTP_2, mRawHeaders, true));
+        else
+            onHead(stream);
+    }
+
     @Override
     public AsyncSocket getSocket() {
         return mSocket;
@@ -2,6 +2,7 @@ package com.koushikdutta.async.http.server;
 
 import android.text.TextUtils;
 
+import com.koushikdutta.async.AsyncNetworkSocket;
 import com.koushikdutta.async.AsyncServer;
 import com.koushikdutta.async.AsyncSocket;
 import com.koushikdutta.async.ByteBufferList;
@@ -16,6 +17,7 @@ import com.koushikdutta.async.http.Headers;
 import com.koushikdutta.async.http.HttpUtil;
 import com.koushikdutta.async.http.Protocol;
 import com.koushikdutta.async.http.filter.ChunkedOutputFilter;
+import com.koushikdutta.async.http.http2.Http2Stream;
 import com.koushikdutta.async.parser.AsyncParser;
 import com.koushikdutta.async.util.StreamUtility;
 
@@ -29,6 +31,7 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Locale;
 
 public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
@@ -84,12 +87,30 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
 
     boolean headWritten = false;
     DataSink mSink;
+    ArrayList<HeaderBlock> mHeaderBlocks;
+
+    /**
+     * Add a block of headers to the response. Headers set on the response itself win over the block.
+     */
+    public void addHeaderBlock(HeaderBlock block) {
+        if (mHeaderBlocks == null)
+            mHeaderBlocks = new ArrayList<HeaderBlock>();
+        mHeaderBlocks.add(block);
+    }
+
     void initFirstWrite() {
         if (headWritten)
             return;
 
         headWritten = true;
 
+        if (mSocket instanceof Http2Stream) {
+            // HTTP/2 frames the body itself, there is no chunking or keep alive to negotiate
+            ((Http2Stream)mSocket).writeHeaders(ResponseHeadEncoder.http2Headers(code, mRawHeaders, mHeaderBlocks), false);
+            onHeadWritten(mSocket);
+            return;
+        }
+
         final boolean isChunked;
         String currentEncoding = mRawHeaders.get("Transfer-Encoding");
         if ("".equals(currentEncoding))
@@ -109,10 +130,7 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
             isChunked = false;
         }
 
-        String statusLine = String.format(Locale.ENGLISH, "%s %s %s", httpVersion, code, AsyncHttpServer.getResponseCodeDescription(code));
-        String rh = mRawHeaders.toPrefixString(statusLine);
-
-        Util.writeAll(mSocket, rh.getBytes(), ex -> {
+        Util.writeAll(mSocket, ResponseHeadEncoder.encode(httpVersion, code, mRawHeaders, mHeaderBlocks), ex -> {
             if (ex != null) {
                 report(ex);
                 return;
@@ -120,26 +138,29 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
             if (isChunked) {
                 ChunkedOutputFilter chunked = new ChunkedOutputFilter(mSocket);
                 chunked.setMaxBuffer(0);
-                mSink = chunked;
+                onHeadWritten(chunked);
             }
             else {
-                mSink = mSocket;
+                onHeadWritten(mSocket);
             }
+        });
+    }
 
-            mSink.setClosedCallback(closedCallback);
-            closedCallback = null;
-            mSink.setWriteableCallback(writable);
-            writable = null;
-            if (ended) {
-                // the response ended while headers were written
-                end();
-                return;
-            }
-            getServer().post(() -> {
-                WritableCallback wb = getWriteableCallback();
-                if (wb != null)
-                    wb.onWriteable();
-            });
+    private void onHeadWritten(DataSink sink) {
+        mSink = sink;
+        mSink.setClosedCallback(closedCallback);
+        closedCallback = null;
+        mSink.setWriteableCallback(writable);
+        writable = null;
+        if (ended) {
+            // the response ended while headers were written
+            end();
+            return;
+        }
+        getServer().post(() -> {
+            WritableCallback wb = getWriteableCallback();
+            if (wb != null)
+                wb.onWriteable();
         });
     }
 
@@ -267,8 +288,8 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
         send("application/json; charset=utf-8", jsonArray.toString());
     }
 
-    @Override
-    public void sendStream(final InputStream inputStream, long totalLength) {
+    // returns the inclusive byte range to send, or null if a 416 was sent.
+    private long[] parseRange(long totalLength) {
         long start = 0;
         long end = totalLength - 1;
 
@@ -279,7 +300,7 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
                 // Requested range not satisfiable
                 code(416);
                 end();
-                return;
+                return null;
             }
 
             parts = parts[1].split("-");
@@ -299,9 +320,19 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
             catch (Exception e) {
                 code(416);
                 end();
-                return;
+                return null;
             }
         }
+        return new long[] { start, end };
+    }
+
+    @Override
+    public void sendStream(final InputStream inputStream, long totalLength) {
+        long[] range = parseRange(totalLength);
+        if (range == null)
+            return;
+        long start = range[0];
+        long end = range[1];
         try {
             if (start != inputStream.skip(start))
                 throw new StreamSkipException("skip failed to skip requested amount");
@@ -338,7 +369,11 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
             if (mRawHeaders.get("Content-Type") == null)
                 mRawHeaders.set("Content-Type", AsyncHttpServer.getContentType(file.getAbsolutePath()));
             FileInputStream fin = new FileInputStream(file);
-            sendStream(new BufferedInputStream(fin, 64000), file.length());
+            // plain sockets can have the kernel copy the file, tls has to go through the heap.
+            if (mSocket instanceof AsyncNetworkSocket)
+                transferFile(fin, file.length());
+            else
+                sendStream(new BufferedInputStream(fin, 64000), file.length());
         }
         catch (FileNotFoundException e) {
             code(404);
@@ -346,6 +381,41 @@ public class AsyncHttpServerResponseImpl implements AsyncHttpServerResponse {
         }
     }
 
+    private void transferFile(final FileInputStream fin, long totalLength) {
+        long[] range = parseRange(totalLength);
+        if (range == null) {
+            StreamUtility.closeQuietly(fin);
+            return;
+        }
+        final long start = range[0];
+        mContentLength = range[1] - start + 1;
+        mRawHeaders.set("Content-Length", String.valueOf(mContentLength));
+        mRawHeaders.set("Accept-Ranges", "bytes");
+        if (mRequest.getMethod().equals(AsyncHttpHead.METHOD) || mContentLength == 0) {
+            writeHead();
+            StreamUtility.closeQuietly(fin);
+            onEnd();
+            return;
+        }
+
+        getServer().post(() -> {
+            // the transfer starts once the head is flushed and the sink is ready for the body.
+            setWriteableCallback(() -> {
+                setWriteableCallback(null);
+                // with a Content-Length the sink is the socket itself, not a chunked filter.
+                ((AsyncNetworkSocket)mSocket).sendFile(fin.getChannel(), start, mContentLength, ex -> {
+                    StreamUtility.closeQuietly(fin);
+                    if (ex != null) {
+                        report(ex);
+                        return;
+                    }
+                    onEnd();
+                });
+            });
+            writeHead();
+        });
+    }
+
     @Override
     public void proxy(final AsyncHttpResponse remoteResponse) {
         code(remoteResponse.code());
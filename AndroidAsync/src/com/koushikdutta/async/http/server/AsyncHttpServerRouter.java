@@ -12,6 +12,7 @@ import com.koushikdutta.async.future.SimpleFuture;
 import com.koushikdutta.async.http.AsyncHttpGet;
 import com.koushikdutta.async.http.AsyncHttpHead;
 import com.koushikdutta.async.http.AsyncHttpPost;
+import com.koushikdutta.async.http.Headers;
 import com.koushikdutta.async.http.WebSocket;
 import com.koushikdutta.async.http.WebSocketImpl;
 import com.koushikdutta.async.util.StreamUtility;
@@ -32,27 +33,34 @@ import java.util.zip.ZipFile;
 
 public class AsyncHttpServerRouter implements RouteMatcher {
 
-    private static class RouteInfo {
+    static class RouteInfo {
         String method;
+        String path;
         Pattern regex;
         HttpServerRequestCallback callback;
         AsyncHttpRequestBodyProvider bodyCallback;
     }
 
     final ArrayList<RouteInfo> routes = new ArrayList<>();
+    // rebuilt on every change, so route() needs no lock.
+    volatile RouteTable routeTable = new RouteTable(routes);
 
     public void removeAction(String action, String regex) {
-        for (int i = 0; i < routes.size(); i++) {
-            RouteInfo p = routes.get(i);
-            if (TextUtils.equals(p.method, action) && regex.equals(p.regex.toString())) {
-                routes.remove(i);
-                return;
+        synchronized (routes) {
+            for (int i = 0; i < routes.size(); i++) {
+                RouteInfo p = routes.get(i);
+                if (TextUtils.equals(p.method, action) && regex.equals(p.path)) {
+                    routes.remove(i);
+                    routeTable = new RouteTable(routes);
+                    return;
+                }
             }
         }
     }
 
     public void addAction(String action, String regex, HttpServerRequestCallback callback, AsyncHttpRequestBodyProvider bodyCallback) {
         RouteInfo p = new RouteInfo();
+        p.path = regex;
         p.regex = Pattern.compile("^" + regex);
         p.callback = callback;
         p.method = action;
@@ -60,6 +68,7 @@ public class AsyncHttpServerRouter implements RouteMatcher {
 
         synchronized (routes) {
             routes.add(p);
+            routeTable = new RouteTable(routes);
         }
     }
 
@@ -67,6 +76,38 @@ public class AsyncHttpServerRouter implements RouteMatcher {
         addAction(action, regex, callback, null);
     }
 
+    private static class HeaderRule {
+        Pattern regex;
+        HeaderBlock block;
+    }
+
+    final ArrayList<HeaderRule> headerRules = new ArrayList<>();
+
+    /**
+     * Add headers to every response for a path matching the regex. The headers are
+     * encoded once, up front. Headers set by the request callback take precedence.
+     */
+    public void addHeaders(String regex, Headers headers) {
+        HeaderRule rule = new HeaderRule();
+        rule.regex = Pattern.compile("^" + regex);
+        rule.block = new HeaderBlock(headers);
+
+        synchronized (headerRules) {
+            headerRules.add(rule);
+        }
+    }
+
+    void applyHeaders(String path, AsyncHttpServerResponseImpl response) {
+        if (path == null)
+            return;
+        synchronized (headerRules) {
+            for (HeaderRule rule: headerRules) {
+                if (rule.regex.matcher(path).matches())
+                    response.addHeaderBlock(rule.block);
+            }
+        }
+    }
+
     public void websocket(String regex, final AsyncHttpServer.WebSocketRequestCallback callback) {
         websocket(regex, null, callback);
     }
@@ -394,21 +435,15 @@ public class AsyncHttpServerRouter implements RouteMatcher {
 
     @Override
     public RouteMatch route(String method, String path) {
-        synchronized (routes) {
-            for (RouteInfo p: routes) {
-                // a null method is wildcard. used for nesting routers.
-                if (!TextUtils.equals(method, p.method) && p.method != null)
-                    continue;
-                Matcher m = p.regex.matcher(path);
-                if (m.matches()) {
-                    if (p.callback instanceof RouteMatcher) {
-                        String subPath = m.group(1);
-                        return ((RouteMatcher)p.callback).route(method, subPath);
-                    }
-                    return new RouteMatch(method, path, m, p.callback, p.bodyCallback);
-                }
-            }
+        // a null method is wildcard. used for nesting routers.
+        RouteTable.Match match = routeTable.route(method, path);
+        if (match == null)
+            return null;
+        RouteInfo p = match.route;
+        if (p.callback instanceof RouteMatcher) {
+            String subPath = match.matcher.group(1);
+            return ((RouteMatcher)p.callback).route(method, subPath);
         }
-        return null;
+        return new RouteMatch(method, path, match.matcher, p.callback, p.bodyCallback);
     }
 }
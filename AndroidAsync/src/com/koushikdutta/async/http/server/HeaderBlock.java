@@ -0,0 +1,44 @@
+package com.koushikdutta.async.http.server;
+
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.util.TaggedList;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Response headers that are the same on every response, like Server, CORS or caching policy,
+ * encoded to bytes once. Headers set on the response itself take precedence over a block.
+ */
+public class HeaderBlock {
+    // lowercase name, value and the encoded "Name: value\r\n" of each line
+    final String[] names;
+    final String[] values;
+    final byte[][] lines;
+
+    public HeaderBlock(Headers headers) {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<String> values = new ArrayList<String>();
+        ArrayList<byte[]> lines = new ArrayList<byte[]>();
+        for (String key: headers.getMultiMap().keySet()) {
+            TaggedList<String> list = (TaggedList<String>)headers.getMultiMap().get(key);
+            for (String value: list) {
+                names.add(key);
+                values.add(String.valueOf(value));
+                lines.add(ResponseHeadEncoder.encodeLine((String)list.tag(), value));
+            }
+        }
+        this.names = names.toArray(new String[names.size()]);
+        this.values = values.toArray(new String[values.size()]);
+        this.lines = lines.toArray(new byte[lines.size()][]);
+    }
+
+    boolean contains(String header) {
+        String lc = header.toLowerCase(Locale.US);
+        for (String name: names) {
+            if (name.equals(lc))
+                return true;
+        }
+        return false;
+    }
+}
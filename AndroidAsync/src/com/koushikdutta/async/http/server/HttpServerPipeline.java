@@ -0,0 +1,268 @@
+package com.koushikdutta.async.http.server;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.DataEmitterBase;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.util.ArrayDeque;
+import com.koushikdutta.async.wrapper.AsyncSocketWrapper;
+
+/**
+ * The requests read from one HTTP/1.1 connection that are still owed a response. The next
+ * request is read as soon as the last one has been read in full, so a client that pipelines
+ * does not wait on each response, up to MAX_DEPTH requests ahead.
+ * Responses go out in request order: the response at the head of the line writes to the socket,
+ * the ones behind it write to a ResponseSocket, which holds their output until they get there.
+ */
+abstract class HttpServerPipeline {
+    static final int MAX_DEPTH = 16;
+    // output held by a response that is not at the head of the line yet
+    static final int MAX_HELD = 64 * 1024;
+
+    final AsyncSocket socket;
+    final ArrayDeque<Exchange> inFlight = new ArrayDeque<Exchange>();
+    // read past the end of a request, handed to the next one by drain
+    final ByteBufferList held = new ByteBufferList();
+    // whether the socket is being read, it is paused between requests
+    boolean reading;
+    private boolean stalled;
+    private boolean closed;
+
+    HttpServerPipeline(AsyncSocket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Start reading the next request off the socket.
+     */
+    abstract void readRequest();
+
+    static class Exchange {
+        AsyncSocket sink;
+        boolean requestDone;
+        boolean responseDone;
+        boolean keepAlive = true;
+
+        boolean isDone() {
+            if (!requestDone || !responseDone)
+                return false;
+            return !(sink instanceof ResponseSocket) || ((ResponseSocket)sink).passthrough;
+        }
+    }
+
+    Exchange begin() {
+        Exchange exchange = new Exchange();
+        exchange.sink = inFlight.isEmpty() ? socket : new ResponseSocket(this);
+        inFlight.add(exchange);
+        return exchange;
+    }
+
+    boolean isIdle() {
+        return inFlight.isEmpty();
+    }
+
+    // stop reading until readRequest is called again, anything read meanwhile waits in the socket.
+    void pause() {
+        reading = false;
+        socket.pause();
+    }
+
+    // hands what was held to the request being read, before the socket is resumed.
+    // the socket is still paused at this point, so this does not go through Util.emitAllData.
+    void drain() {
+        DataCallback callback;
+        while (reading && held.hasRemaining() && (callback = socket.getDataCallback()) != null) {
+            int remaining = held.remaining();
+            callback.onDataAvailable(socket, held);
+            if (remaining == held.remaining() && callback == socket.getDataCallback())
+                break;
+        }
+    }
+
+    void requestDone(Exchange exchange, boolean keepAlive) {
+        exchange.requestDone = true;
+        if (!keepAlive) {
+            exchange.keepAlive = false;
+            pause();
+        }
+        else if (inFlight.size() < MAX_DEPTH) {
+            readRequest();
+        }
+        else {
+            stalled = true;
+            pause();
+        }
+        advance();
+    }
+
+    void responseDone(Exchange exchange, boolean keepAlive) {
+        exchange.responseDone = true;
+        if (!keepAlive)
+            exchange.keepAlive = false;
+        advance();
+    }
+
+    private void advance() {
+        if (closed)
+            return;
+        Exchange head;
+        while ((head = inFlight.peek()) != null && head.isDone()) {
+            inFlight.remove();
+            if (!head.keepAlive) {
+                close();
+                return;
+            }
+        }
+        if (stalled && inFlight.size() < MAX_DEPTH) {
+            stalled = false;
+            readRequest();
+        }
+        head = inFlight.peek();
+        if (head != null && head.sink instanceof ResponseSocket)
+            ((ResponseSocket)head.sink).promote();
+    }
+
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        held.recycle();
+        socket.setDataCallback(new DataCallback.NullDataCallback());
+        socket.close();
+        for (Exchange exchange: inFlight) {
+            if (exchange.sink instanceof ResponseSocket)
+                ((ResponseSocket)exchange.sink).onClosed();
+        }
+        inFlight.clear();
+    }
+
+    static class ResponseSocket extends DataEmitterBase implements AsyncSocketWrapper {
+        final HttpServerPipeline pipeline;
+        final ByteBufferList output = new ByteBufferList();
+        boolean passthrough;
+        boolean closed;
+        WritableCallback writableCallback;
+        CompletedCallback closedCallback;
+
+        ResponseSocket(HttpServerPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        // at the head of the line, write out what was held and then get out of the way.
+        void promote() {
+            if (passthrough || closed)
+                return;
+            AsyncSocket socket = pipeline.socket;
+            if (output.hasRemaining())
+                socket.write(output);
+            if (output.hasRemaining()) {
+                socket.setWriteableCallback(this::promote);
+                return;
+            }
+            passthrough = true;
+            socket.setWriteableCallback(writableCallback);
+            if (closedCallback != null)
+                socket.setClosedCallback(closedCallback);
+            pipeline.advance();
+            if (writableCallback != null && !pipeline.closed)
+                writableCallback.onWriteable();
+        }
+
+        void onClosed() {
+            closed = true;
+            output.recycle();
+            if (closedCallback != null)
+                closedCallback.onCompleted(null);
+        }
+
+        @Override
+        public AsyncSocket getSocket() {
+            return pipeline.socket;
+        }
+
+        @Override
+        public DataEmitter getDataEmitter() {
+            return pipeline.socket;
+        }
+
+        @Override
+        public AsyncServer getServer() {
+            return pipeline.socket.getServer();
+        }
+
+        @Override
+        public void write(ByteBufferList bb) {
+            if (closed) {
+                bb.recycle();
+                return;
+            }
+            if (passthrough) {
+                pipeline.socket.write(bb);
+                return;
+            }
+            // anything past the limit waits for the writeable callback.
+            if (output.remaining() < MAX_HELD)
+                bb.get(output);
+        }
+
+        @Override
+        public void setWriteableCallback(WritableCallback handler) {
+            writableCallback = handler;
+            if (passthrough)
+                pipeline.socket.setWriteableCallback(handler);
+        }
+
+        @Override
+        public WritableCallback getWriteableCallback() {
+            return writableCallback;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed && pipeline.socket.isOpen();
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public void setClosedCallback(CompletedCallback handler) {
+            closedCallback = handler;
+            if (passthrough)
+                pipeline.socket.setClosedCallback(handler);
+        }
+
+        @Override
+        public CompletedCallback getClosedCallback() {
+            return closedCallback;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return false;
+        }
+
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void resume() {
+        }
+
+        @Override
+        public boolean isPaused() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            pipeline.close();
+        }
+    }
+}
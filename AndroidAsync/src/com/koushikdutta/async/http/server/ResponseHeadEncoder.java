@@ -0,0 +1,186 @@
+package com.koushikdutta.async.http.server;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.util.Charsets;
+import com.koushikdutta.async.util.TaggedList;
+
+import java.nio.ByteBuffer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Writes a response head straight into a pooled buffer, without building a String first.
+ * HTTP/1.1 status lines and the Date header are cached, the Date line for one second at a time.
+ */
+class ResponseHeadEncoder {
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+    private static final AtomicReferenceArray<byte[]> statusLines = new AtomicReferenceArray<byte[]>(600);
+
+    static void clearStatusLines() {
+        for (int i = 0; i < statusLines.length(); i++) {
+            statusLines.set(i, null);
+        }
+    }
+
+    private static byte[] statusLine(String httpVersion, int code) {
+        boolean cacheable = HTTP_1_1.equals(httpVersion) && code >= 0 && code < statusLines.length();
+        if (cacheable) {
+            byte[] line = statusLines.get(code);
+            if (line != null)
+                return line;
+        }
+        byte[] line = (httpVersion + " " + code + " " + AsyncHttpServer.getResponseCodeDescription(code) + "\r\n").getBytes(Charsets.UTF_8);
+        if (cacheable)
+            statusLines.set(code, line);
+        return line;
+    }
+
+    private static class DateLine {
+        final long second;
+        final byte[] line;
+
+        DateLine(long second, byte[] line) {
+            this.second = second;
+            this.line = line;
+        }
+    }
+
+    private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            rfc1123.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return rfc1123;
+        }
+    };
+
+    private static volatile DateLine dateLine = new DateLine(-1, null);
+
+    static String date() {
+        return DATE_FORMAT.get().format(new Date());
+    }
+
+    static byte[] dateLine() {
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        DateLine current = dateLine;
+        if (current.second == second)
+            return current.line;
+        current = new DateLine(second, encodeLine("Date", DATE_FORMAT.get().format(new Date(second * 1000))));
+        dateLine = current;
+        return current.line;
+    }
+
+    static byte[] encodeLine(String name, String value) {
+        return (name + ": " + value + "\r\n").getBytes(Charsets.UTF_8);
+    }
+
+    // connection specific headers are not allowed in HTTP/2
+    private static final HashSet<String> HTTP2_EXCLUDED = new HashSet<String>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+    /**
+     * The response head as an HTTP/2 header list, :status first and all names lowercase.
+     */
+    static Headers http2Headers(int code, Headers headers, ArrayList<HeaderBlock> blocks) {
+        Headers ret = new Headers();
+        ret.set(":status", String.valueOf(code));
+        for (String key: headers.getMultiMap().keySet()) {
+            if (HTTP2_EXCLUDED.contains(key))
+                continue;
+            for (String value: headers.getMultiMap().get(key)) {
+                ret.add(key, String.valueOf(value));
+            }
+        }
+        if (blocks != null) {
+            for (HeaderBlock block: blocks) {
+                for (int i = 0; i < block.names.length; i++) {
+                    if (headers.get(block.names[i]) == null && !HTTP2_EXCLUDED.contains(block.names[i]))
+                        ret.add(block.names[i], block.values[i]);
+                }
+            }
+        }
+        if (ret.get("date") == null)
+            ret.set("date", date());
+        return ret;
+    }
+
+    private ByteBuffer buffer = ByteBufferList.obtain(1024);
+
+    private void ensure(int length) {
+        if (buffer.remaining() >= length)
+            return;
+        ByteBuffer grown = ByteBufferList.obtain(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        grown.put(buffer);
+        ByteBufferList.reclaim(buffer);
+        buffer = grown;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void putAscii(String string) {
+        int length = string.length();
+        ensure(length);
+        int position = buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c >= 0x80) {
+                // not plain ascii, start over with the real encoder
+                buffer.position(position);
+                put(string.getBytes(Charsets.UTF_8));
+                return;
+            }
+            buffer.put((byte)c);
+        }
+    }
+
+    private void putLine(String name, String value) {
+        putAscii(name);
+        ensure(2);
+        buffer.put((byte)':').put((byte)' ');
+        // same as the StringBuilder that Headers.toString uses
+        putAscii(String.valueOf(value));
+        put(CRLF);
+    }
+
+    static ByteBufferList encode(String httpVersion, int code, Headers headers, ArrayList<HeaderBlock> blocks) {
+        ResponseHeadEncoder encoder = new ResponseHeadEncoder();
+        encoder.put(statusLine(httpVersion, code));
+        for (String key: headers.getMultiMap().keySet()) {
+            TaggedList<String> list = (TaggedList<String>)headers.getMultiMap().get(key);
+            for (String value: list) {
+                encoder.putLine((String)list.tag(), value);
+            }
+        }
+        boolean hasDate = headers.get("Date") != null;
+        if (blocks != null) {
+            for (HeaderBlock block: blocks) {
+                for (int i = 0; i < block.lines.length; i++) {
+                    if (headers.get(block.names[i]) != null)
+                        continue;
+                    encoder.put(block.lines[i]);
+                }
+                hasDate |= block.contains("Date");
+            }
+        }
+        if (!hasDate)
+            encoder.put(dateLine());
+        encoder.put(CRLF);
+        encoder.buffer.flip();
+        return new ByteBufferList(encoder.buffer);
+    }
+}
@@ -0,0 +1,209 @@
+package com.koushikdutta.async.http.server;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Immutable lookup table for the routes of an AsyncHttpServerRouter, rebuilt whenever a route
+ * is added or removed. Routes are grouped by method and put in a tree keyed by path segment
+ * when their regex is a plain path. A segment may also be one of the parameter groups
+ * ([^/]+) or (\d+). Any other regex is matched the old way, in order.
+ * The first route added that matches still wins.
+ */
+class RouteTable {
+    private static class Node {
+        HashMap<String, Node> literals;
+        Node param;
+        Node intParam;
+        AsyncHttpServerRouter.RouteInfo route;
+        int index = Integer.MAX_VALUE;
+
+        Node child(String segment) {
+            if (literals == null)
+                literals = new HashMap<String, Node>();
+            Node node = literals.get(segment);
+            if (node == null) {
+                node = new Node();
+                literals.put(segment, node);
+            }
+            return node;
+        }
+    }
+
+    static class Match {
+        final AsyncHttpServerRouter.RouteInfo route;
+        final Matcher matcher;
+
+        Match(AsyncHttpServerRouter.RouteInfo route, Matcher matcher) {
+            this.route = route;
+            this.matcher = matcher;
+        }
+    }
+
+    private static final String PARAM = "([^/]+)";
+    private static final String INT_PARAM = "(\\d+)";
+    private static final String INT_PARAM_CLASS = "([0-9]+)";
+
+    // a null method is wildcard, those routes go in the any tree.
+    private final HashMap<String, Node> methods = new HashMap<String, Node>();
+    private final Node any = new Node();
+    private final AsyncHttpServerRouter.RouteInfo[] regexRoutes;
+    private final int[] regexIndexes;
+
+    RouteTable(List<AsyncHttpServerRouter.RouteInfo> routes) {
+        ArrayList<AsyncHttpServerRouter.RouteInfo> regex = new ArrayList<AsyncHttpServerRouter.RouteInfo>();
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < routes.size(); i++) {
+            AsyncHttpServerRouter.RouteInfo route = routes.get(i);
+            String[] segments = compile(route.path);
+            if (segments == null) {
+                regex.add(route);
+                indexes.add(i);
+                continue;
+            }
+            Node node;
+            if (route.method == null) {
+                node = any;
+            }
+            else {
+                node = methods.get(route.method);
+                if (node == null) {
+                    node = new Node();
+                    methods.put(route.method, node);
+                }
+            }
+            for (String segment: segments) {
+                if (segment == PARAM) {
+                    if (node.param == null)
+                        node.param = new Node();
+                    node = node.param;
+                }
+                else if (segment == INT_PARAM) {
+                    if (node.intParam == null)
+                        node.intParam = new Node();
+                    node = node.intParam;
+                }
+                else {
+                    node = node.child(segment);
+                }
+            }
+            if (node.route == null) {
+                node.route = route;
+                node.index = i;
+            }
+        }
+        regexRoutes = regex.toArray(new AsyncHttpServerRouter.RouteInfo[regex.size()]);
+        regexIndexes = new int[indexes.size()];
+        for (int i = 0; i < regexIndexes.length; i++) {
+            regexIndexes[i] = indexes.get(i);
+        }
+    }
+
+    /**
+     * Split a route regex into literal path segments and parameter markers,
+     * or return null if it has to be matched as a regex.
+     */
+    static String[] compile(String regex) {
+        if (regex.endsWith("$") && !regex.endsWith("\\$"))
+            regex = regex.substring(0, regex.length() - 1);
+        String[] segments = regex.split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (PARAM.equals(segment)) {
+                segments[i] = PARAM;
+                continue;
+            }
+            if (INT_PARAM.equals(segment) || INT_PARAM_CLASS.equals(segment)) {
+                segments[i] = INT_PARAM;
+                continue;
+            }
+            segment = unescape(segment);
+            if (segment == null)
+                return null;
+            segments[i] = segment;
+        }
+        return segments;
+    }
+
+    private static String unescape(String segment) {
+        StringBuilder literal = null;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == segment.length() || Character.isLetterOrDigit(segment.charAt(i + 1)))
+                    return null;
+                if (literal == null)
+                    literal = new StringBuilder(segment.substring(0, i));
+                literal.append(segment.charAt(++i));
+                continue;
+            }
+            if (".^$|?*+()[]{}".indexOf(c) != -1)
+                return null;
+            if (literal != null)
+                literal.append(c);
+        }
+        return literal == null ? segment : literal.toString();
+    }
+
+    private static boolean isDigits(String segment) {
+        if (segment.length() == 0)
+            return false;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    private static Node find(Node node, String[] segments, int i) {
+        if (node == null)
+            return null;
+        if (i == segments.length)
+            return node.route == null ? null : node;
+        String segment = segments[i];
+        Node best = null;
+        if (node.literals != null)
+            best = find(node.literals.get(segment), segments, i + 1);
+        if (segment.length() > 0) {
+            if (node.intParam != null && isDigits(segment))
+                best = better(best, find(node.intParam, segments, i + 1));
+            best = better(best, find(node.param, segments, i + 1));
+        }
+        return best;
+    }
+
+    private static Node better(Node a, Node b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return a.index <= b.index ? a : b;
+    }
+
+    Match route(String method, String path) {
+        String[] segments = path.split("/", -1);
+        Node best = better(find(methods.get(method), segments, 0), find(any, segments, 0));
+        int bestIndex = best == null ? Integer.MAX_VALUE : best.index;
+
+        for (int i = 0; i < regexRoutes.length && regexIndexes[i] < bestIndex; i++) {
+            AsyncHttpServerRouter.RouteInfo route = regexRoutes[i];
+            if (!TextUtils.equals(method, route.method) && route.method != null)
+                continue;
+            Matcher m = route.regex.matcher(path);
+            if (m.matches())
+                return new Match(route, m);
+        }
+
+        if (best == null)
+            return null;
+        // still hand out a Matcher, callbacks use it to read the groups.
+        Matcher m = best.route.regex.matcher(path);
+        m.matches();
+        return new Match(best.route, m);
+    }
+}
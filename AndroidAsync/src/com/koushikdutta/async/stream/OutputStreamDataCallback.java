@@ -24,7 +24,7 @@ public class OutputStreamDataCallback implements DataCallback, CompletedCallback
         try {
             while (bb.size() > 0) {
                 ByteBuffer b = bb.remove();
-                mOutput.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                ByteBufferList.writeOutputStream(mOutput, b);
                 ByteBufferList.reclaim(b);
             }
         }
@@ -47,7 +47,7 @@ public class OutputStreamDataSink implements DataSink {
         try {
             while (bb.size() > 0) {
                 ByteBuffer b = bb.remove();
-                getOutputStream().write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                ByteBufferList.writeOutputStream(getOutputStream(), b);
                 ByteBufferList.reclaim(b);
             }
         }
@@ -25,7 +25,10 @@ public class Allocator {
     }
 
     public ByteBuffer allocate(int currentAlloc) {
-        return ByteBufferList.obtain(Math.min(Math.max(currentAlloc, minAlloc), maxAlloc));
+        int size = Math.min(Math.max(currentAlloc, minAlloc), maxAlloc);
+        if (direct)
+            return ByteBufferList.obtainDirect(size);
+        return ByteBufferList.obtain(size);
     }
 
     public void track(long read) {
@@ -48,5 +51,19 @@ public class Allocator {
         this.minAlloc = Math.max(0, minAlloc);
         return this;
     }
+
+    boolean direct;
+    /**
+     * Allocate from the direct buffer pool, so channel I/O skips the copy through the JDK's
+     * temporary direct buffers.
+     */
+    public Allocator setDirect(boolean direct) {
+        this.direct = direct;
+        return this;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
 }
 
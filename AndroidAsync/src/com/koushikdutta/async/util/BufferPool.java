@@ -0,0 +1,237 @@
+package com.koushikdutta.async.util;
+
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of ByteBuffers bucketed into power of two size classes, so obtain and reclaim
+ * never scan. Each thread keeps a small cache per class that is used without locking, and
+ * overflow goes to a shared pool striped across several locks.
+ * The max size is a budget for every pooled byte, thread caches included.
+ * The Android main thread only uses its own cache, it never waits on a shared lock.
+ * A pool holds either heap or direct buffers, never both. A view of a direct buffer can't
+ * be told apart from the buffer itself, so pooled direct buffers must stay inside the
+ * library, where no views of them are made. A direct pool only takes back buffers whose
+ * capacity is exactly a size class.
+ */
+public class BufferPool {
+    public static final int MIN_CLASS_SIZE = 4096;
+    private static final int MIN_CLASS = 31 - Integer.numberOfLeadingZeros(MIN_CLASS_SIZE);
+    private static final int CLASSES = 32;
+    // a miss in the class a request maps to may take a buffer up to this many classes larger
+    private static final int LARGER_CLASSES = 2;
+    private static final int THREAD_CACHE_ITEMS = 4;
+    private static final int THREAD_CACHE_SIZE = 256 * 1024;
+
+    private static class ThreadCache {
+        final Thread thread = Thread.currentThread();
+        final ByteBuffer[][] classes = new ByteBuffer[CLASSES][];
+        final int[] counts = new int[CLASSES];
+        final Stripe stripe;
+        final boolean shared;
+        int size;
+
+        ThreadCache(Stripe stripe, boolean shared) {
+            this.stripe = stripe;
+            this.shared = shared;
+        }
+
+        ByteBuffer poll(int index) {
+            if (counts[index] == 0)
+                return null;
+            ByteBuffer[] buffers = classes[index];
+            ByteBuffer ret = buffers[--counts[index]];
+            buffers[counts[index]] = null;
+            size -= ret.capacity();
+            return ret;
+        }
+
+        boolean offer(int index, ByteBuffer b) {
+            if (counts[index] == THREAD_CACHE_ITEMS || size + b.capacity() > THREAD_CACHE_SIZE)
+                return false;
+            if (classes[index] == null)
+                classes[index] = new ByteBuffer[THREAD_CACHE_ITEMS];
+            classes[index][counts[index]++] = b;
+            size += b.capacity();
+            return true;
+        }
+    }
+
+    private static class Stripe {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayDeque<ByteBuffer>[] classes = new ArrayDeque[CLASSES];
+
+        synchronized ByteBuffer poll(int index) {
+            ArrayDeque<ByteBuffer> buffers = classes[index];
+            if (buffers == null)
+                return null;
+            return buffers.poll();
+        }
+
+        synchronized void offer(int index, ByteBuffer b) {
+            ArrayDeque<ByteBuffer> buffers = classes[index];
+            if (buffers == null)
+                buffers = classes[index] = new ArrayDeque<ByteBuffer>();
+            buffers.addFirst(b);
+        }
+    }
+
+    private final AtomicLong size = new AtomicLong();
+    private volatile long maxSize;
+    private volatile int maxItemSize;
+    private final boolean direct;
+    private final Stripe[] stripes;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final ArrayList<ThreadCache> caches = new ArrayList<ThreadCache>();
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return newThreadCache();
+        }
+    };
+
+    public BufferPool(long maxSize, int maxItemSize) {
+        this(maxSize, maxItemSize, false);
+    }
+
+    public BufferPool(long maxSize, int maxItemSize, boolean direct) {
+        this.maxSize = maxSize;
+        this.maxItemSize = maxItemSize;
+        this.direct = direct;
+        int count = Integer.highestOneBit(Math.max(2, Math.min(16, Runtime.getRuntime().availableProcessors())));
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    private ByteBuffer allocate(int size) {
+        if (direct)
+            return ByteBuffer.allocateDirect(size);
+        return ByteBuffer.allocate(size);
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setMaxItemSize(int maxItemSize) {
+        this.maxItemSize = maxItemSize;
+    }
+
+    /**
+     * Bytes currently held by the pool.
+     */
+    public long size() {
+        return size.get();
+    }
+
+    private ThreadCache newThreadCache() {
+        Looper mainLooper = Looper.getMainLooper();
+        boolean shared = mainLooper == null || Thread.currentThread() != mainLooper.getThread();
+        ThreadCache cache = new ThreadCache(stripes[nextStripe.getAndIncrement() & (stripes.length - 1)], shared);
+        synchronized (caches) {
+            // give back the budget held by threads that have died.
+            // termination happens-before isAlive returning false, so their caches are safe to read.
+            for (int i = caches.size() - 1; i >= 0; i--) {
+                ThreadCache dead = caches.get(i);
+                if (dead.thread.isAlive())
+                    continue;
+                size.addAndGet(-dead.size);
+                caches.remove(i);
+            }
+            caches.add(cache);
+        }
+        return cache;
+    }
+
+    // the class a buffer of this capacity can satisfy: every buffer in class i has capacity >= 2^i
+    private static int reclaimClass(int capacity) {
+        return 31 - Integer.numberOfLeadingZeros(capacity);
+    }
+
+    // the class that can satisfy a request of this size
+    private static int obtainClass(int size) {
+        if (size <= MIN_CLASS_SIZE)
+            return MIN_CLASS;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Get a buffer with at least size bytes remaining. Sizes up to the max item size are
+     * rounded up to their class and at least minAlloc bytes, since that is what gets
+     * allocated and later reclaimed. A pooled buffer from a slightly larger class is used
+     * before allocating.
+     */
+    public ByteBuffer obtain(int size, int minAlloc) {
+        int max = maxItemSize;
+        if (size > max)
+            return allocate(size);
+
+        int index = obtainClass(Math.max(size, minAlloc));
+        int last = Math.min(index + LARGER_CLASSES, CLASSES - 1);
+        ThreadCache cache = threadCache.get();
+        ByteBuffer ret = null;
+        for (int c = index; ret == null && c <= last; c++) {
+            ret = cache.poll(c);
+        }
+        if (ret == null && cache.shared) {
+            for (int c = index; ret == null && c <= last; c++) {
+                ret = cache.stripe.poll(c);
+            }
+            for (int i = 0; ret == null && i < stripes.length; i++) {
+                if (stripes[i] == cache.stripe)
+                    continue;
+                for (int c = index; ret == null && c <= last; c++) {
+                    ret = stripes[i].poll(c);
+                }
+            }
+        }
+        if (ret != null) {
+            this.size.addAndGet(-ret.capacity());
+            return ret;
+        }
+
+        int alloc = Math.max(minAlloc, 1 << index);
+        if (alloc > max)
+            alloc = Math.max(size, minAlloc);
+        return allocate(alloc);
+    }
+
+    public void reclaim(ByteBuffer b) {
+        if (b == null || b.isDirect() != direct || b.isReadOnly())
+            return;
+        if (!direct && (b.arrayOffset() != 0 || b.array().length != b.capacity()))
+            return;
+        int capacity = b.capacity();
+        if (capacity < MIN_CLASS_SIZE || capacity > maxItemSize)
+            return;
+        // whatever the pool allocates for a size class is a power of two
+        if (direct && Integer.bitCount(capacity) != 1)
+            return;
+
+        if (size.addAndGet(capacity) > maxSize) {
+            size.addAndGet(-capacity);
+            return;
+        }
+
+        b.clear();
+        int index = reclaimClass(capacity);
+        ThreadCache cache = threadCache.get();
+        if (cache.offer(index, b))
+            return;
+        if (cache.shared) {
+            cache.stripe.offer(index, b);
+            return;
+        }
+        size.addAndGet(-capacity);
+    }
+}
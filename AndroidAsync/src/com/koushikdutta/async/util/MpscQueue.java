@@ -0,0 +1,75 @@
+package com.koushikdutta.async.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free, unbounded, multi-producer single-consumer linked queue.
+ * offer may be called from any thread; poll, isEmpty and close only from the consumer.
+ * Once closed, offer fails so producers can fall back to another queue.
+ */
+public class MpscQueue<T> {
+    private static class Node<T> {
+        volatile Node<T> next;
+        T value;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private static final Node<?> CLOSED = new Node<Object>(null);
+
+    private final AtomicReference<Node<T>> tail;
+    // consumer owned. head is the last consumed node; its value has been cleared.
+    private Node<T> head;
+
+    public MpscQueue() {
+        head = new Node<T>(null);
+        tail = new AtomicReference<Node<T>>(head);
+    }
+
+    public boolean offer(T value) {
+        Node<T> node = new Node<T>(value);
+        while (true) {
+            Node<T> last = tail.get();
+            if (last == CLOSED)
+                return false;
+            if (tail.compareAndSet(last, node)) {
+                last.next = node;
+                return true;
+            }
+        }
+    }
+
+    public T poll() {
+        // a null next with a moved tail means a producer is mid-offer; treat it as empty for now.
+        Node<T> next = head.next;
+        if (next == null)
+            return null;
+        head = next;
+        T value = next.value;
+        next.value = null;
+        return value;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * Close the queue so further offers fail. Unless forced, this only succeeds if the queue
+     * is empty. A forced close drops anything still queued.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean close(boolean force) {
+        while (true) {
+            Node<T> last = tail.get();
+            if (last == CLOSED)
+                return true;
+            if (!force && last != head)
+                return false;
+            if (tail.compareAndSet(last, (Node<T>)CLOSED))
+                return true;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.koushikdutta.async.util;
+
+import java.util.Collection;
+
+/**
+ * Hashed timer wheel with millisecond ticks. Each slot holds an intrusive, circular, doubly
+ * linked list of the timers whose deadline hashes to it, so add and remove are O(1).
+ * Timers more than one revolution out stay in their slot until their deadline comes around.
+ * Not thread safe; callers provide their own locking.
+ */
+public class TimerWheel<T extends TimerWheel.Timer> {
+    public static class Timer {
+        long deadline;
+        Timer prev;
+        Timer next;
+        TimerWheel<?> wheel;
+        int slot;
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isScheduled() {
+            return wheel != null;
+        }
+    }
+
+    private static final long UNKNOWN = -1;
+
+    private final Timer[] slots;
+    private final int mask;
+    // every timer with a deadline at or before this tick has been expired.
+    private long current;
+    // lower bound of the next tick with a pending timer, or UNKNOWN.
+    private long nextTick = UNKNOWN;
+    private int size;
+
+    public TimerWheel(int slotCount, long now) {
+        int count = 1;
+        while (count < slotCount)
+            count <<= 1;
+        slots = new Timer[count];
+        mask = count - 1;
+        current = now;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(T timer, long deadline) {
+        if (timer.wheel != null)
+            throw new IllegalStateException("timer is already scheduled");
+        // a deadline that has already passed lands in the next slot to be visited.
+        long tick = Math.max(deadline, current + 1);
+        int slot = (int)(tick & mask);
+        timer.deadline = deadline;
+        timer.slot = slot;
+        timer.wheel = this;
+
+        Timer head = slots[slot];
+        if (head == null) {
+            timer.prev = timer.next = timer;
+            slots[slot] = timer;
+        }
+        else {
+            // append to the tail so timers sharing a tick fire in insertion order.
+            Timer tail = head.prev;
+            timer.prev = tail;
+            timer.next = head;
+            tail.next = timer;
+            head.prev = timer;
+        }
+        size++;
+
+        if (nextTick != UNKNOWN && tick < nextTick)
+            nextTick = tick;
+        else if (size == 1)
+            nextTick = tick;
+    }
+
+    public boolean remove(T timer) {
+        if (timer.wheel != this)
+            return false;
+        unlink(timer);
+        return true;
+    }
+
+    private void unlink(Timer timer) {
+        int slot = timer.slot;
+        if (timer.next == timer) {
+            slots[slot] = null;
+        }
+        else {
+            timer.prev.next = timer.next;
+            timer.next.prev = timer.prev;
+            if (slots[slot] == timer)
+                slots[slot] = timer.next;
+        }
+        timer.prev = timer.next = null;
+        timer.wheel = null;
+        size--;
+    }
+
+    /**
+     * Remove every timer whose deadline is at or before now, adding them to expired in
+     * roughly deadline order.
+     */
+    @SuppressWarnings("unchecked")
+    public void expire(long now, Collection<? super T> expired) {
+        if (now <= current)
+            return;
+        if (size == 0) {
+            current = now;
+            nextTick = UNKNOWN;
+            return;
+        }
+
+        // after a long sleep, visiting each slot once is enough.
+        long ticks = Math.min(now - current, slots.length);
+        for (long i = 1; i <= ticks && size > 0; i++) {
+            int slot = (int)((current + i) & mask);
+            Timer timer = slots[slot];
+            if (timer == null)
+                continue;
+            Timer last = timer.prev;
+            while (true) {
+                Timer next = timer.next;
+                boolean done = timer == last;
+                if (timer.deadline <= now) {
+                    unlink(timer);
+                    expired.add((T)timer);
+                }
+                if (done)
+                    break;
+                timer = next;
+            }
+        }
+        current = now;
+        if (nextTick <= current)
+            nextTick = UNKNOWN;
+    }
+
+    /**
+     * Milliseconds from now until the earliest slot holding a pending timer. This is a lower
+     * bound on the next deadline: waking at that point may find nothing due yet.
+     */
+    public long getWait(long now) {
+        if (size == 0)
+            return Long.MAX_VALUE;
+        if (nextTick == UNKNOWN) {
+            for (int i = 1; i <= slots.length; i++) {
+                long tick = current + i;
+                if (slots[(int)(tick & mask)] != null) {
+                    nextTick = tick;
+                    break;
+                }
+            }
+        }
+        return Math.max(0, nextTick - now);
+    }
+}
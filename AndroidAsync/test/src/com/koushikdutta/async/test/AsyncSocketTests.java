@@ -0,0 +1,263 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncNetworkSocket;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.FairnessPolicy;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+
+import junit.framework.TestCase;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncSocketTests extends TestCase {
+    AsyncServer server = new AsyncServer();
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        server.stop();
+    }
+
+    interface AcceptedCallback {
+        void onAccepted(AsyncNetworkSocket socket);
+    }
+
+    AsyncServerSocket listen(final AcceptedCallback callback) {
+        return server.listen(InetAddress.getLoopbackAddress(), 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                callback.onAccepted((AsyncNetworkSocket)socket);
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+                fail();
+            }
+        });
+    }
+
+    public void testScatterReads() throws Exception {
+        final int length = 4 * 1024 * 1024;
+        final Semaphore done = new Semaphore(0);
+        final int[] received = new int[1];
+        final int[] checksum = new int[1];
+        AsyncServerSocket listener = listen(new AcceptedCallback() {
+            @Override
+            public void onAccepted(AsyncNetworkSocket socket) {
+                socket.setReadBudget(256 * 1024);
+                socket.setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        while (bb.hasRemaining()) {
+                            checksum[0] += bb.get() & 0xff;
+                            received[0]++;
+                        }
+                    }
+                });
+                socket.setEndCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        done.release();
+                    }
+                });
+            }
+        });
+
+        byte[] data = new byte[length];
+        new Random(0).nextBytes(data);
+        int expected = 0;
+        for (byte b: data) {
+            expected += b & 0xff;
+        }
+
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        try {
+            client.getOutputStream().write(data);
+            client.close();
+            assertTrue(done.tryAcquire(10000, TimeUnit.MILLISECONDS));
+            assertEquals(length, received[0]);
+            assertEquals(expected, checksum[0]);
+        }
+        finally {
+            listener.stop();
+        }
+    }
+
+    public void testFairnessPolicy() throws Exception {
+        final int length = 1024 * 1024;
+        final Semaphore done = new Semaphore(0);
+        final int[] received = new int[2];
+        server.setFairnessPolicy(new FairnessPolicy().setKeyByteBudget(16 * 1024));
+        AsyncServerSocket listener = listen(new AcceptedCallback() {
+            @Override
+            public void onAccepted(AsyncNetworkSocket socket) {
+                socket.setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        // budgeted sockets never see more than a budget per callback.
+                        assertTrue(bb.remaining() <= 16 * 1024);
+                        while (bb.hasRemaining()) {
+                            received[0] += bb.get() & 0xff;
+                            received[1]++;
+                        }
+                    }
+                });
+                socket.setEndCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        done.release();
+                    }
+                });
+            }
+        });
+
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+        int expected = 0;
+        for (byte b: data) {
+            expected += b & 0xff;
+        }
+
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        try {
+            client.getOutputStream().write(data);
+            client.close();
+            assertTrue(done.tryAcquire(10000, TimeUnit.MILLISECONDS));
+            assertEquals(length, received[1]);
+            assertEquals(expected, received[0]);
+            assertTrue(server.getOverBudgetIterations() > 0);
+        }
+        finally {
+            listener.stop();
+        }
+    }
+
+    public void testDirectBuffers() throws Exception {
+        final int length = 1024 * 1024;
+        final Semaphore done = new Semaphore(0);
+        final int[] received = new int[2];
+        final boolean[] heap = new boolean[] { true };
+        server.setDirectBuffers(true);
+        AsyncServerSocket listener = listen(new AcceptedCallback() {
+            @Override
+            public void onAccepted(AsyncNetworkSocket socket) {
+                assertTrue(socket.isDirectBuffers());
+                socket.setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        while (bb.size() > 0) {
+                            ByteBuffer b = bb.remove();
+                            // the socket reads into direct buffers, but hands out heap ones
+                            heap[0] &= b.hasArray();
+                            while (b.hasRemaining()) {
+                                received[0] += b.get() & 0xff;
+                                received[1]++;
+                            }
+                            ByteBufferList.reclaim(b);
+                        }
+                    }
+                });
+                socket.setEndCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        done.release();
+                    }
+                });
+            }
+        });
+
+        byte[] data = new byte[length];
+        new Random(2).nextBytes(data);
+        int expected = 0;
+        for (byte b: data) {
+            expected += b & 0xff;
+        }
+
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        try {
+            client.getOutputStream().write(data);
+            client.close();
+            assertTrue(done.tryAcquire(10000, TimeUnit.MILLISECONDS));
+            assertEquals(length, received[1]);
+            assertEquals(expected, received[0]);
+            assertTrue(heap[0]);
+        }
+        finally {
+            listener.stop();
+        }
+    }
+
+    public void testNonBlockingWrites() throws Exception {
+        final int threads = 4;
+        final int writes = 2000;
+        final Semaphore accepted = new Semaphore(0);
+        final AsyncNetworkSocket[] holder = new AsyncNetworkSocket[1];
+        AsyncServerSocket listener = listen(new AcceptedCallback() {
+            @Override
+            public void onAccepted(AsyncNetworkSocket socket) {
+                socket.setNonBlockingWrites(true);
+                holder[0] = socket;
+                accepted.release();
+            }
+        });
+
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        try {
+            assertTrue(accepted.tryAcquire(5000, TimeUnit.MILLISECONDS));
+            final AsyncNetworkSocket socket = holder[0];
+
+            // each writer sends (thread, sequence) pairs; every thread's sequence must arrive in order.
+            Thread[] writers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                writers[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < writes; i++) {
+                            ByteBufferList list = new ByteBufferList();
+                            ByteBuffer b = ByteBufferList.obtain(8);
+                            b.putInt(id);
+                            b.putInt(i);
+                            b.flip();
+                            list.add(b);
+                            socket.write(list);
+                            assertFalse(list.hasRemaining());
+                        }
+                    }
+                };
+                writers[t].start();
+            }
+
+            DataInputStream din = new DataInputStream(client.getInputStream());
+            int[] next = new int[threads];
+            for (int i = 0; i < threads * writes; i++) {
+                int id = din.readInt();
+                int seq = din.readInt();
+                assertEquals(next[id]++, seq);
+            }
+            for (Thread writer: writers) {
+                writer.join();
+            }
+        }
+        finally {
+            client.close();
+            listener.stop();
+        }
+    }
+}
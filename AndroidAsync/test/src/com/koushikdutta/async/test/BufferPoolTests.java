@@ -0,0 +1,169 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.util.BufferPool;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BufferPoolTests extends TestCase {
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024);
+        ByteBuffer b = pool.obtain(10000, 8192);
+        assertEquals(16384, b.capacity());
+        b.position(100);
+        pool.reclaim(b);
+        assertEquals(16384, pool.size());
+
+        // a smaller request reuses a buffer from a larger class rather than allocating
+        assertSame(b, pool.obtain(5000, 8192));
+        assertEquals(0, pool.size());
+        pool.reclaim(b);
+
+        ByteBuffer again = pool.obtain(16000, 8192);
+        assertSame(b, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.remaining());
+        assertEquals(0, pool.size());
+    }
+
+    public void testSmallRequests() {
+        BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024);
+        // what gets allocated for a small request is minAlloc, and that is what comes back
+        ByteBuffer b = pool.obtain(1024, 8192);
+        assertEquals(8192, b.capacity());
+        pool.reclaim(b);
+        assertSame(b, pool.obtain(1024, 8192));
+        pool.reclaim(b);
+        assertSame(b, pool.obtain(4096, 4096));
+        // but not one far larger than asked for
+        ByteBuffer big = pool.obtain(64 * 1024, 8192);
+        pool.reclaim(big);
+        assertNotSame(big, pool.obtain(4096, 4096));
+    }
+
+    public void testOddCapacity() {
+        BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024);
+        ByteBuffer b = ByteBuffer.allocate(12000);
+        pool.reclaim(b);
+        // 12000 can satisfy anything up to 8192, but not 16384
+        assertNotSame(b, pool.obtain(12000, 8192));
+        assertSame(b, pool.obtain(8192, 8192));
+    }
+
+    public void testDirectCapacity() {
+        BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024, true);
+        ByteBuffer b = pool.obtain(8192, 8192);
+        b.position(100);
+        // not a size class, so not something the pool handed out
+        pool.reclaim(b.slice());
+        pool.reclaim(ByteBuffer.allocateDirect(12000));
+        assertEquals(0, pool.size());
+        pool.reclaim(b);
+        assertEquals(8192, pool.size());
+    }
+
+    public void testNotPooled() {
+        BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024);
+        pool.reclaim(ByteBuffer.allocate(1024));
+        pool.reclaim(ByteBuffer.allocate(512 * 1024));
+        pool.reclaim(ByteBuffer.allocateDirect(8192));
+        pool.reclaim(ByteBuffer.wrap(new byte[16384], 8192, 8192).slice());
+        assertEquals(0, pool.size());
+
+        ByteBuffer big = pool.obtain(300 * 1024, 8192);
+        assertEquals(300 * 1024, big.capacity());
+    }
+
+    public void testDirect() {
+        BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024, true);
+        ByteBuffer b = pool.obtain(8192, 8192);
+        assertTrue(b.isDirect());
+        // heap buffers never end up in a direct pool
+        pool.reclaim(ByteBuffer.allocate(8192));
+        assertEquals(0, pool.size());
+        pool.reclaim(b);
+        assertEquals(8192, pool.size());
+        assertSame(b, pool.obtain(8192, 8192));
+    }
+
+    public void testMaxSize() throws Exception {
+        final BufferPool pool = new BufferPool(64 * 1024, 256 * 1024);
+        for (int i = 0; i < 32; i++) {
+            pool.reclaim(ByteBuffer.allocate(8192));
+        }
+        assertEquals(64 * 1024, pool.size());
+
+        // the budget covers the shared pool and every thread cache together
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 32; i++) {
+                    pool.reclaim(ByteBuffer.allocate(8192));
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(64 * 1024, pool.size());
+    }
+
+    public void testSharedAcrossThreads() throws Exception {
+        final BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024);
+        final ArrayList<ByteBuffer> reclaimed = new ArrayList<ByteBuffer>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                // more than the thread cache holds, the rest overflows to the shared stripes
+                for (int i = 0; i < 16; i++) {
+                    ByteBuffer b = ByteBuffer.allocate(8192);
+                    reclaimed.add(b);
+                    pool.reclaim(b);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+
+        int found = 0;
+        for (int i = 0; i < 16; i++) {
+            if (reclaimed.contains(pool.obtain(8192, 8192)))
+                found++;
+        }
+        assertTrue(found > 0);
+    }
+
+    public void testConcurrent() throws Exception {
+        final BufferPool pool = new BufferPool(1024 * 1024, 256 * 1024);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ArrayList<ByteBuffer> held = new ArrayList<ByteBuffer>();
+                    for (int i = 0; i < 20000; i++) {
+                        ByteBuffer b = pool.obtain(4096 << (i % 5), 8192);
+                        // a buffer handed out twice would be seen with another thread's marker
+                        b.putInt(0, i);
+                        held.add(b);
+                        if (held.size() > 8) {
+                            ByteBuffer r = held.remove(0);
+                            if (r.getInt(0) != i - 8)
+                                failed.set(true);
+                            pool.reclaim(r);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+        assertTrue(pool.size() <= 1024 * 1024);
+    }
+}
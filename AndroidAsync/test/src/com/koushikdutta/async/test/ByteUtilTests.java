@@ -9,6 +9,8 @@ import com.koushikdutta.async.callback.DataCallback;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by koush on 5/17/13.
  */
@@ -88,4 +90,31 @@ public class ByteUtilTests extends TestCase {
         assertEquals(readByte, (byte) 3);
         assertEquals(readString, "test");
     }
+
+    public void testSplitSharesArray() {
+        byte[] bytes = new byte[16384];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)i;
+        }
+        ByteBufferList list = new ByteBufferList(bytes);
+        ByteBufferList first = list.get(5000);
+        ByteBufferList second = list.get(5000);
+        assertEquals(6384, list.remaining());
+
+        // no copies, every piece is a view of the original array
+        ByteBuffer b = first.remove();
+        assertSame(bytes, b.array());
+        assertEquals(5000, b.remaining());
+        assertEquals((byte)4999, b.get(4999));
+        ByteBuffer c = second.remove();
+        assertSame(bytes, c.array());
+        assertEquals((byte)5000, c.get());
+
+        // the array only goes back to the pool once every view is reclaimed
+        ByteBufferList.reclaim(b);
+        ByteBufferList.reclaim(c);
+        assertNotSame(bytes, ByteBufferList.obtain(16384).array());
+        list.recycle();
+        assertSame(bytes, ByteBufferList.obtain(16384).array());
+    }
 }
@@ -72,6 +72,48 @@ public class CacheTests {
         }
     }
 
+    @Test
+    public void testMemoryTier() throws Exception {
+        AsyncHttpClient client = new AsyncHttpClient(AsyncServer.getDefault());
+        ResponseCacheMiddleware cache = ResponseCacheMiddleware.addCache(client, new File(getContext().getFilesDir(), "AndroidAsyncTest"), 1024 * 1024 * 10);
+        AsyncHttpServer httpServer = new AsyncHttpServer();
+        try {
+            httpServer.get("/uname/(.*)", new HttpServerRequestCallback() {
+                @Override
+                public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                    response.getHeaders().set("Date", HttpDate.format(new Date()));
+                    response.getHeaders().set("Cache-Control", "max-age=10000");
+                    response.send(request.getMatcher().group(1));
+                }
+            });
+
+            AsyncServerSocket socket = httpServer.listen(AsyncServer.getDefault(), 0);
+            int port = socket.getLocalPort();
+            cache.clear();
+
+            // stored, then promoted to memory by the first hit, then served from memory
+            for (int i = 0; i < 4; i++) {
+                assertEquals("43434", client.executeString(new AsyncHttpGet("http://localhost:" + port + "/uname/43434"), null).get());
+            }
+            assertEquals(1, cache.getNetworkCount());
+            assertEquals(3, cache.getCacheHitCount());
+            assertEquals(2, cache.getMemoryHitCount());
+
+            // evicted from memory after the file went away, so it is written back
+            cache.getFileCache().clear();
+            cache.setMemoryCacheSize(1);
+            assertEquals("12345", client.executeString(new AsyncHttpGet("http://localhost:" + port + "/uname/12345"), null).get());
+            assertEquals("12345", client.executeString(new AsyncHttpGet("http://localhost:" + port + "/uname/12345"), null).get());
+            assertEquals(1, cache.getDemoteCount());
+            assertEquals("43434", client.executeString(new AsyncHttpGet("http://localhost:" + port + "/uname/43434"), null).get());
+            assertEquals(2, cache.getNetworkCount());
+        }
+        finally {
+            AsyncServer.getDefault().stop();
+            client.getMiddleware().remove(cache);
+        }
+    }
+
     final static String dataNameAndHash = "6691924d7d24237d3b3679310157d640";
     @Test
     public void test304() throws Exception {
@@ -0,0 +1,171 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.AsyncSocketMiddleware;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPoolTests extends TestCase {
+    AsyncServer server;
+    AsyncHttpClient client;
+    AsyncSocketMiddleware pool;
+    AsyncHttpServer httpServer;
+    AsyncServerSocket listener;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new AsyncServer();
+        client = new AsyncHttpClient(server);
+        pool = client.getSocketMiddleware();
+        httpServer = new AsyncHttpServer();
+        httpServer.get("/hello", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send("hello");
+            }
+        });
+        httpServer.get("/slow", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                server.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        response.send("slow");
+                    }
+                }, 200);
+            }
+        });
+        listener = httpServer.listen(server, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        listener.stop();
+        server.stop();
+    }
+
+    private String get(String host, String path) throws Exception {
+        return client.executeString(new AsyncHttpGet("http://" + host + ":" + listener.getLocalPort() + path), null).get(5000, TimeUnit.MILLISECONDS);
+    }
+
+    // the socket goes back to the pool after the response is delivered, read the pool on its thread
+    private <T> T poll(final Callable<T> callable, T expected) throws Exception {
+        long start = System.currentTimeMillis();
+        T value;
+        do {
+            final Object[] result = new Object[1];
+            server.run(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result[0] = callable.call();
+                    }
+                    catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            value = (T)result[0];
+            if (expected.equals(value))
+                return value;
+            Thread.sleep(20);
+        }
+        while (System.currentTimeMillis() < start + 5000);
+        return value;
+    }
+
+    private int count(Callable<Integer> counter, int expected) throws Exception {
+        return poll(counter, expected);
+    }
+
+    public void testReuse() throws Exception {
+        assertEquals("hello", get("localhost", "/hello"));
+        assertEquals(1, count(pool::getIdleSocketCount, 1));
+        assertEquals("hello", get("localhost", "/hello"));
+        assertEquals(1, count(pool::getIdleSocketCount, 1));
+        assertEquals(1, count(pool::getHitCount, 1));
+        assertEquals(1, count(pool::getMissCount, 1));
+    }
+
+    public void testMaxIdle() throws Exception {
+        pool.setMaxIdleSocketCount(1);
+        assertEquals("hello", get("localhost", "/hello"));
+        assertEquals(1, count(pool::getIdleSocketCount, 1));
+        // a different host, the socket to localhost is the least recently used
+        assertEquals("hello", get("127.0.0.1", "/hello"));
+        assertEquals(1, count(pool::getIdleSocketCount, 1));
+        assertEquals(1, count(pool::getEvictionCount, 1));
+        assertEquals("hello", get("127.0.0.1", "/hello"));
+        assertEquals(1, count(pool::getHitCount, 1));
+    }
+
+    public void testReaper() throws Exception {
+        pool.setIdleTimeoutMs(200);
+        assertEquals("hello", get("localhost", "/hello"));
+        assertEquals(1, count(pool::getEvictionCount, 1));
+        assertEquals(0, count(pool::getIdleSocketCount, 0));
+    }
+
+    public void testIdleTimeoutChanged() throws Exception {
+        assertEquals("hello", get("localhost", "/hello"));
+        count(pool::getIdleSocketCount, 1);
+        // the reaper waiting on the old timeout is replaced the next time the pool is used
+        pool.setIdleTimeoutMs(200);
+        assertEquals("hello", get("127.0.0.1", "/hello"));
+        assertEquals(2, count(pool::getEvictionCount, 2));
+        assertEquals(0, count(pool::getIdleSocketCount, 0));
+    }
+
+    public void testKeepWarm() throws Exception {
+        client.keepWarm("http://localhost:" + listener.getLocalPort() + "/", 2);
+        assertEquals(2, count(pool::getIdleSocketCount, 2));
+        assertEquals("hello", get("localhost", "/hello"));
+        assertEquals(1, count(pool::getHitCount, 1));
+        assertEquals(0, count(pool::getMissCount, 0));
+        // the one that was used goes back, and the one opened to replace it joins it
+        assertEquals(3, count(pool::getIdleSocketCount, 3));
+    }
+
+    public void testPredictiveConnect() throws Exception {
+        pool.setPredictiveConnect(true);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("hello", get("localhost", "/hello"));
+            assertEquals(1, count(pool::getIdleSocketCount, 1));
+        }
+        // the fourth request makes the host hot, so a spare replaces the socket it takes
+        assertEquals("hello", get("localhost", "/hello"));
+        assertEquals(2, count(pool::getIdleSocketCount, 2));
+        // a spare is not a miss, no request waited on it
+        assertEquals(1, count(pool::getMissCount, 1));
+        // only one spare is kept, the next request takes one and leaves one
+        Future<String> slow = client.executeString(new AsyncHttpGet("http://localhost:" + listener.getLocalPort() + "/slow"), null);
+        assertEquals("slow", slow.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(2, count(pool::getIdleSocketCount, 2));
+        assertEquals(1, count(pool::getMissCount, 1));
+    }
+
+    public void testMaxTotal() throws Exception {
+        pool.setMaxTotalConnectionCount(1);
+        Future<String> first = client.executeString(new AsyncHttpGet("http://localhost:" + listener.getLocalPort() + "/slow"), null);
+        Future<String> second = client.executeString(new AsyncHttpGet("http://127.0.0.1:" + listener.getLocalPort() + "/slow"), null);
+        assertEquals("slow", first.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals("slow", second.get(5000, TimeUnit.MILLISECONDS));
+        // the second host waited for the first to finish, then took the place of its idle socket
+        assertTrue(pool.getWaitTimeMs() >= 100);
+        assertEquals(1, count(pool::getEvictionCount, 1));
+        assertEquals(1, count(pool::getIdleSocketCount, 1));
+    }
+}
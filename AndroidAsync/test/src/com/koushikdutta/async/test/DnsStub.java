@@ -0,0 +1,211 @@
+package com.koushikdutta.async.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A nameserver on loopback for tests, over UDP and TCP on the same port. Answers A and AAAA
+ * queries for the names added, and NXDOMAIN with an SOA record for anything else.
+ */
+public class DnsStub {
+    public static final int TTL = 300;
+    public static final int NEGATIVE_TTL = 60;
+
+    final DatagramSocket socket;
+    final ServerSocket serverSocket;
+    final HashMap<String, ArrayList<InetAddress>> records = new HashMap<String, ArrayList<InetAddress>>();
+    public final AtomicInteger queries = new AtomicInteger();
+    // don't answer at all
+    public volatile boolean silent;
+    public volatile long delay;
+    // answers with more records than this are truncated over UDP
+    public volatile int maxUdpAnswers = Integer.MAX_VALUE;
+    // TCP queries are read this many at a time and then answered in reverse order
+    public volatile int tcpBatch = 1;
+    public final AtomicInteger tcpConnections = new AtomicInteger();
+    public final AtomicInteger tcpQueries = new AtomicInteger();
+
+    public DnsStub() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        serverSocket = new ServerSocket(0, 50, loopback);
+        socket = new DatagramSocket(new InetSocketAddress(loopback, serverSocket.getLocalPort()));
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        serve(serverSocket.accept());
+                    }
+                    catch (Exception e) {
+                        return;
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1500];
+                while (true) {
+                    try {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        socket.receive(packet);
+                        queries.incrementAndGet();
+                        if (silent)
+                            continue;
+                        if (delay > 0)
+                            Thread.sleep(delay);
+                        byte[] response = answer(buffer, packet.getLength(), maxUdpAnswers);
+                        socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                    }
+                    catch (Exception e) {
+                        return;
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve(final Socket client) {
+        tcpConnections.incrementAndGet();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    DataInputStream in = new DataInputStream(client.getInputStream());
+                    DataOutputStream out = new DataOutputStream(client.getOutputStream());
+                    while (true) {
+                        ArrayList<byte[]> responses = new ArrayList<byte[]>();
+                        for (int i = 0; i < tcpBatch; i++) {
+                            byte[] query = new byte[in.readUnsignedShort()];
+                            in.readFully(query);
+                            tcpQueries.incrementAndGet();
+                            responses.add(0, answer(query, query.length, Integer.MAX_VALUE));
+                        }
+                        for (byte[] response: responses) {
+                            out.writeShort(response.length);
+                            out.write(response);
+                        }
+                        out.flush();
+                    }
+                }
+                catch (Exception e) {
+                }
+                finally {
+                    try {
+                        client.close();
+                    }
+                    catch (Exception e) {
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress)socket.getLocalSocketAddress();
+    }
+
+    public void add(String name, String address) throws Exception {
+        synchronized (records) {
+            ArrayList<InetAddress> addresses = records.get(name);
+            if (addresses == null) {
+                addresses = new ArrayList<InetAddress>();
+                records.put(name, addresses);
+            }
+            addresses.add(InetAddress.getByName(address));
+        }
+    }
+
+    public void close() throws Exception {
+        socket.close();
+        serverSocket.close();
+    }
+
+    byte[] answer(byte[] query, int length, int maxAnswers) throws Exception {
+        // the question follows the 12 byte header
+        int end = 12;
+        StringBuilder name = new StringBuilder();
+        int label;
+        while ((label = query[end++]) != 0) {
+            if (name.length() > 0)
+                name.append('.');
+            name.append(new String(query, end, label));
+            end += label;
+        }
+        int type = ((query[end] & 0xFF) << 8) | (query[end + 1] & 0xFF);
+        end += 4;
+
+        ArrayList<InetAddress> answers = new ArrayList<InetAddress>();
+        boolean exists;
+        synchronized (records) {
+            ArrayList<InetAddress> addresses = records.get(name.toString());
+            exists = addresses != null;
+            if (exists) {
+                for (InetAddress address: addresses) {
+                    if ((address instanceof Inet4Address) == (type == 1))
+                        answers.add(address);
+                }
+            }
+        }
+
+        // truncated answers have the TC bit set, and leave out the records
+        boolean truncated = answers.size() > maxAnswers;
+        if (truncated)
+            answers.clear();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(query, 0, 2);
+        // response, recursion desired and available, no error or NXDOMAIN
+        out.writeShort(0x8180 | (truncated ? 0x0200 : 0) | (exists ? 0 : 3));
+        out.writeShort(1);
+        out.writeShort(answers.size());
+        out.writeShort(exists ? 0 : 1);
+        out.writeShort(0);
+        out.write(query, 12, end - 12);
+        for (InetAddress address: answers) {
+            // a pointer to the name in the question
+            out.writeShort(0xC00C);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeInt(TTL);
+            byte[] data = address.getAddress();
+            out.writeShort(data.length);
+            out.write(data);
+        }
+        if (!exists) {
+            out.writeShort(0xC00C);
+            out.writeShort(6);
+            out.writeShort(1);
+            out.writeInt(TTL);
+            out.writeShort(22);
+            // root mname and rname, serial, refresh, retry, expire, minimum
+            out.writeByte(0);
+            out.writeByte(0);
+            out.writeInt(1);
+            out.writeInt(TTL);
+            out.writeInt(TTL);
+            out.writeInt(TTL);
+            out.writeInt(NEGATIVE_TTL);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -8,21 +8,37 @@ import com.koushikdutta.async.DataEmitter;
 import com.koushikdutta.async.callback.ConnectCallback;
 import com.koushikdutta.async.callback.DataCallback;
 import com.koushikdutta.async.dns.Dns;
+import com.koushikdutta.async.dns.DnsRecord;
+import com.koushikdutta.async.dns.DnsResolver;
 import com.koushikdutta.async.dns.DnsResponse;
+import com.koushikdutta.async.dns.MdnsBrowser;
+import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by koush on 10/20/13.
@@ -93,4 +109,315 @@ public class DnsTests extends TestCase {
             server.stop();
         }
     }
+
+    DnsResolver resolver(AsyncServer server, DnsStub... stubs) {
+        ArrayList<InetSocketAddress> nameservers = new ArrayList<InetSocketAddress>();
+        for (DnsStub stub: stubs) {
+            nameservers.add(stub.getAddress());
+        }
+        return new DnsResolver(server, nameservers);
+    }
+
+    public void testResolver() throws Exception {
+        AsyncServer server = new AsyncServer();
+        DnsStub stub = new DnsStub();
+        try {
+            stub.add("example.test", "10.0.0.1");
+            stub.add("example.test", "2001:db8::1");
+            DnsResolver resolver = resolver(server, stub);
+            InetAddress[] addresses = resolver.resolve("example.test").get(5000, TimeUnit.MILLISECONDS);
+            assertEquals(2, addresses.length);
+            assertEquals(InetAddress.getByName("10.0.0.1"), addresses[0]);
+            assertEquals(InetAddress.getByName("2001:db8::1"), addresses[1]);
+            // one query for each family
+            assertEquals(2, stub.queries.get());
+
+            addresses = resolver.resolve("Example.Test.").get(5000, TimeUnit.MILLISECONDS);
+            assertEquals(2, addresses.length);
+            assertEquals(2, stub.queries.get());
+            assertEquals(1, resolver.getQueryCount());
+            assertEquals(1, resolver.getHitCount());
+        }
+        finally {
+            stub.close();
+            server.stop();
+        }
+    }
+
+    public void testNegativeCache() throws Exception {
+        AsyncServer server = new AsyncServer();
+        DnsStub stub = new DnsStub();
+        try {
+            DnsResolver resolver = resolver(server, stub);
+            for (int i = 0; i < 2; i++) {
+                try {
+                    resolver.resolve("missing.test").get(5000, TimeUnit.MILLISECONDS);
+                    fail();
+                }
+                catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof UnknownHostException);
+                }
+            }
+            assertEquals(1, resolver.getQueryCount());
+            assertEquals(1, resolver.getHitCount());
+        }
+        finally {
+            stub.close();
+            server.stop();
+        }
+    }
+
+    public void testInFlight() throws Exception {
+        AsyncServer server = new AsyncServer();
+        DnsStub stub = new DnsStub();
+        try {
+            stub.add("example.test", "10.0.0.1");
+            stub.delay = 200;
+            DnsResolver resolver = resolver(server, stub);
+            ArrayList<Future<InetAddress[]>> futures = new ArrayList<Future<InetAddress[]>>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(resolver.resolve("example.test"));
+            }
+            for (Future<InetAddress[]> future: futures) {
+                assertEquals(InetAddress.getByName("10.0.0.1"), future.get(5000, TimeUnit.MILLISECONDS)[0]);
+            }
+            assertEquals(1, resolver.getQueryCount());
+        }
+        finally {
+            stub.close();
+            server.stop();
+        }
+    }
+
+    public void testFailover() throws Exception {
+        AsyncServer server = new AsyncServer();
+        DnsStub dead = new DnsStub();
+        DnsStub stub = new DnsStub();
+        try {
+            dead.silent = true;
+            stub.add("example.test", "10.0.0.1");
+            DnsResolver resolver = resolver(server, dead, stub);
+            resolver.setTimeout(200);
+            assertEquals(InetAddress.getByName("10.0.0.1"), resolver.resolve("example.test").get(5000, TimeUnit.MILLISECONDS)[0]);
+            assertEquals(2, dead.queries.get());
+
+            // nobody answers
+            stub.silent = true;
+            try {
+                resolver.resolve("other.test").get(5000, TimeUnit.MILLISECONDS);
+                fail();
+            }
+            catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof UnknownHostException);
+            }
+        }
+        finally {
+            dead.close();
+            stub.close();
+            server.stop();
+        }
+    }
+
+    public void testTcpFallback() throws Exception {
+        AsyncServer server = new AsyncServer();
+        DnsStub stub = new DnsStub();
+        try {
+            for (int i = 1; i <= 40; i++) {
+                stub.add("large.test", "10.0.0." + i);
+                stub.add("large.test", "2001:db8::" + i);
+            }
+            stub.add("mixed.test", "2001:db8::1");
+            for (int i = 1; i <= 20; i++) {
+                stub.add("mixed.test", "10.0.1." + i);
+            }
+            stub.maxUdpAnswers = 8;
+            // both truncated answers go out on one connection, and come back in the other order
+            stub.tcpBatch = 2;
+            DnsResolver resolver = resolver(server, stub);
+            InetAddress[] addresses = resolver.resolve("large.test").get(5000, TimeUnit.MILLISECONDS);
+            assertEquals(80, addresses.length);
+            assertEquals(InetAddress.getByName("10.0.0.1"), addresses[0]);
+            assertEquals(InetAddress.getByName("2001:db8::1"), addresses[40]);
+            assertEquals(1, stub.tcpConnections.get());
+            assertEquals(2, stub.tcpQueries.get());
+
+            // only the A answer is truncated, and the idle connection is used again
+            stub.tcpBatch = 1;
+            addresses = resolver.resolve("mixed.test").get(5000, TimeUnit.MILLISECONDS);
+            assertEquals(21, addresses.length);
+            assertEquals(1, stub.tcpConnections.get());
+            assertEquals(3, stub.tcpQueries.get());
+        }
+        finally {
+            stub.close();
+            server.stop();
+        }
+    }
+
+    public void testGetAllByName() throws Exception {
+        AsyncServer server = new AsyncServer();
+        DnsStub stub = new DnsStub();
+        try {
+            stub.add("example.test", "2001:db8::1");
+            stub.add("example.test", "10.0.0.1");
+            server.setDnsResolver(resolver(server, stub));
+            InetAddress[] addresses = server.getAllByName("example.test").get(5000, TimeUnit.MILLISECONDS);
+            assertTrue(addresses[0] instanceof Inet4Address);
+            assertEquals(InetAddress.getByName("2001:db8::1"), addresses[1]);
+            assertEquals(InetAddress.getByName("127.0.0.1"), server.getAllByName("127.0.0.1").get(5000, TimeUnit.MILLISECONDS)[0]);
+        }
+        finally {
+            stub.close();
+            server.stop();
+        }
+    }
+
+    static void writeName(DataOutputStream out, String name) throws Exception {
+        for (String label: name.split("\\.")) {
+            out.writeByte(label.length());
+            out.write(label.getBytes());
+        }
+        out.writeByte(0);
+    }
+
+    static void writeRecord(DataOutputStream out, String name, int type, int ttl, byte[] data) throws Exception {
+        writeName(out, name);
+        out.writeShort(type);
+        // cache flush, internet class
+        out.writeShort(type == DnsRecord.PTR ? 1 : 0x8001);
+        out.writeInt(ttl);
+        out.writeShort(data.length);
+        out.write(data);
+    }
+
+    // a device with one printer on it, answering browse queries over multicast unless the query already knows it
+    static class Responder extends Thread {
+        final DatagramChannel channel;
+        final InetSocketAddress group;
+        final AtomicInteger suppressed = new AtomicInteger();
+
+        Responder(InetSocketAddress group) throws Exception {
+            this.group = group;
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(group.getPort()));
+            for (NetworkInterface networkInterface: Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (networkInterface.isUp() && networkInterface.supportsMulticast())
+                    channel.join(group.getAddress(), networkInterface);
+            }
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    ByteBuffer packet = ByteBuffer.allocate(9000);
+                    channel.receive(packet);
+                    packet.flip();
+                    // responses, including this one's own, have the QR bit set
+                    if ((packet.getShort(2) & 0x8000) != 0)
+                        continue;
+                    if (packet.getShort(6) > 0) {
+                        suppressed.incrementAndGet();
+                        continue;
+                    }
+                    send(4500);
+                }
+            }
+            catch (Exception e) {
+            }
+        }
+
+        void send(int ptrTtl) throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(0);
+            out.writeShort(0x8400);
+            out.writeShort(0);
+            out.writeShort(1);
+            out.writeShort(0);
+            out.writeShort(ptrTtl == 0 ? 0 : 3);
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            writeName(new DataOutputStream(data), "Printer._test._tcp.local");
+            writeRecord(out, "_test._tcp.local", DnsRecord.PTR, ptrTtl, data.toByteArray());
+            if (ptrTtl != 0) {
+                data = new ByteArrayOutputStream();
+                DataOutputStream srv = new DataOutputStream(data);
+                srv.writeShort(0);
+                srv.writeShort(0);
+                srv.writeShort(631);
+                writeName(srv, "printer.local");
+                writeRecord(out, "Printer._test._tcp.local", DnsRecord.SRV, 120, data.toByteArray());
+                writeRecord(out, "Printer._test._tcp.local", DnsRecord.TXT, 4500, new byte[] { 9, 'p', 'a', 't', 'h', '=', '/', 'i', 'p', 'p' });
+                writeRecord(out, "printer.local", DnsRecord.A, 120, new byte[] { 10, 0, 0, 5 });
+            }
+            channel.send(ByteBuffer.wrap(bytes.toByteArray()), group);
+        }
+    }
+
+    public void testMdnsBrowser() throws Exception {
+        AsyncServer server = new AsyncServer();
+        DatagramSocket free = new DatagramSocket(0);
+        InetSocketAddress group = new InetSocketAddress(InetAddress.getByName("224.0.0.251"), free.getLocalPort());
+        free.close();
+        Responder responder = new Responder(group);
+        responder.start();
+        MdnsBrowser browser = new MdnsBrowser(server, "_test._tcp.local", group);
+        try {
+            final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+            browser.setCallback(new MdnsBrowser.ServiceCallback() {
+                @Override
+                public void onServiceAdded(MdnsBrowser.Service service) {
+                    events.add("added " + service.getName());
+                }
+
+                @Override
+                public void onServiceRemoved(MdnsBrowser.Service service) {
+                    events.add("removed " + service.getName());
+                }
+            });
+            assertSame(browser, browser.start().get(5000, TimeUnit.MILLISECONDS));
+            assertEquals("added Printer._test._tcp.local", events.poll(5000, TimeUnit.MILLISECONDS));
+            MdnsBrowser.Service service = browser.getServices().get(0);
+            assertEquals("printer.local", service.getHost());
+            assertEquals(631, service.getPort());
+            assertEquals(InetAddress.getByName("10.0.0.5"), service.getAddresses().get(0));
+            assertEquals("/ipp", service.getTxt().getString("path"));
+
+            // the next query lists the printer as a known answer, so the responder stays quiet
+            long start = System.currentTimeMillis();
+            while (responder.suppressed.get() == 0 && System.currentTimeMillis() < start + 5000)
+                Thread.sleep(50);
+            assertTrue(responder.suppressed.get() > 0);
+            assertEquals(1, browser.getServices().size());
+            assertTrue(events.isEmpty());
+
+            responder.send(0);
+            assertEquals("removed Printer._test._tcp.local", events.poll(5000, TimeUnit.MILLISECONDS));
+            assertTrue(browser.getServices().isEmpty());
+        }
+        finally {
+            browser.stop();
+            responder.channel.close();
+            server.stop();
+        }
+    }
+
+    public void testMdnsBrowserJoinFails() throws Exception {
+        AsyncServer server = new AsyncServer();
+        // not a multicast address, so no interface can join it
+        MdnsBrowser browser = new MdnsBrowser(server, "_test._tcp.local", new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        try {
+            browser.start().get(5000, TimeUnit.MILLISECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        finally {
+            server.stop();
+        }
+    }
 }
@@ -0,0 +1,130 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncNetworkSocket;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.HappyEyeballs;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import junit.framework.TestCase;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class HappyEyeballsTests extends TestCase {
+    AsyncServer server = new AsyncServer();
+    HappyEyeballs happyEyeballs = new HappyEyeballs(server);
+    InetAddress ipv4;
+    InetAddress ipv6;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ipv4 = InetAddress.getByName("127.0.0.1");
+        ipv6 = InetAddress.getByName("::1");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        server.stop();
+    }
+
+    AsyncServerSocket listen(InetAddress address) {
+        return server.listen(address, 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+            }
+        });
+    }
+
+    AsyncNetworkSocket race(InetAddress[] addresses, int port) throws Exception {
+        final SimpleFuture<AsyncSocket> ret = new SimpleFuture<AsyncSocket>();
+        happyEyeballs.connect("test", addresses, port, ret::setComplete);
+        return (AsyncNetworkSocket)ret.get(5000, TimeUnit.MILLISECONDS);
+    }
+
+    public void testFallback() throws Exception {
+        AsyncServerSocket listener = listen(ipv4);
+        try {
+            // nothing listens on ::1, so the next address starts right away instead of after the delay
+            happyEyeballs.setAttemptDelay(5000);
+            long start = System.currentTimeMillis();
+            AsyncNetworkSocket socket = race(new InetAddress[] { ipv6, ipv4 }, listener.getLocalPort());
+            assertTrue(System.currentTimeMillis() - start < 2500);
+            assertEquals(ipv4, socket.getRemoteAddress().getAddress());
+            assertEquals(Inet4Address.class, happyEyeballs.getPreferredFamily("test"));
+            socket.close();
+        }
+        finally {
+            listener.stop();
+        }
+    }
+
+    public void testPreferredFamily() throws Exception {
+        AsyncServerSocket listener = listen(ipv6);
+        try {
+            assertNull(happyEyeballs.getPreferredFamily("test"));
+            AsyncNetworkSocket socket = race(new InetAddress[] { ipv4, ipv6 }, listener.getLocalPort());
+            assertEquals(ipv6, socket.getRemoteAddress().getAddress());
+            assertEquals(Inet6Address.class, happyEyeballs.getPreferredFamily("test"));
+            socket.close();
+        }
+        finally {
+            listener.stop();
+        }
+    }
+
+    public void testAllFail() throws Exception {
+        AsyncServerSocket listener = listen(ipv4);
+        int port = listener.getLocalPort();
+        listener.stop();
+        try {
+            race(new InetAddress[] { ipv4, ipv6 }, port);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertNotNull(e.getCause());
+        }
+        assertNull(happyEyeballs.getPreferredFamily("test"));
+    }
+
+    public void testConnectAllAddresses() throws Exception {
+        AsyncHttpServer httpServer = new AsyncHttpServer();
+        httpServer.get("/hello", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send("hello");
+            }
+        });
+        AsyncServerSocket listener = httpServer.listen(server, 0);
+        try {
+            AsyncHttpClient client = new AsyncHttpClient(server);
+            client.getSocketMiddleware().setConnectAllAddresses(true);
+            assertEquals("hello", client.executeString(new AsyncHttpGet("http://localhost:" + listener.getLocalPort() + "/hello"), null).get(5000, TimeUnit.MILLISECONDS));
+            assertNotNull(client.getSocketMiddleware().getHappyEyeballs().getPreferredFamily("localhost"));
+        }
+        finally {
+            listener.stop();
+        }
+    }
+}
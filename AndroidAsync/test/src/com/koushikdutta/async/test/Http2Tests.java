@@ -0,0 +1,331 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.ConnectCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.AsyncHttpPost;
+import com.koushikdutta.async.http.AsyncHttpResponse;
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.http.body.StringBody;
+import com.koushikdutta.async.http.http2.Hpack;
+import com.koushikdutta.async.http.http2.Http2Connection;
+import com.koushikdutta.async.http.http2.Http2Stream;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Http2Tests extends TestCase {
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static Headers decode(Hpack.Decoder decoder, String block) throws Exception {
+        byte[] bytes = hex(block);
+        return decoder.decode(bytes, 0, bytes.length);
+    }
+
+    // RFC 7541 C.4, requests with huffman coding sharing one dynamic table
+    public void testHpackDecode() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        Headers headers = decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        assertEquals("GET", headers.get(":method"));
+        assertEquals("http", headers.get(":scheme"));
+        assertEquals("/", headers.get(":path"));
+        assertEquals("www.example.com", headers.get(":authority"));
+
+        headers = decode(decoder, "828684be5886a8eb10649cbf");
+        assertEquals("www.example.com", headers.get(":authority"));
+        assertEquals("no-cache", headers.get("cache-control"));
+
+        headers = decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+        assertEquals("https", headers.get(":scheme"));
+        assertEquals("/index.html", headers.get(":path"));
+        assertEquals("www.example.com", headers.get(":authority"));
+        assertEquals("custom-value", headers.get("custom-key"));
+    }
+
+    public void testHpackRoundTrip() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder();
+        Headers headers = new Headers();
+        headers.set(":method", "GET");
+        headers.set(":path", "/some/path?q=1");
+        headers.set("user-agent", "AndroidAsync test é");
+        headers.set("authorization", "secret");
+        headers.add("accept", "text/html");
+        headers.add("accept", "*/*");
+
+        byte[] first = encoder.encode(headers);
+        byte[] second = encoder.encode(headers);
+        // the second time around the indexed headers are a byte each
+        assertTrue(second.length < first.length);
+        for (byte[] block: new byte[][] { first, second }) {
+            Headers decoded = decoder.decode(block, 0, block.length);
+            assertEquals(headers.getMultiMap(), decoded.getMultiMap());
+        }
+    }
+
+    AsyncServer server;
+    AsyncHttpClient client;
+    AsyncServerSocket listener;
+    final AtomicInteger connections = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new AsyncServer();
+        client = new AsyncHttpClient(server);
+        client.getSocketMiddleware().enableHttp2("localhost");
+        listener = server.listen(null, 0, new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                connections.incrementAndGet();
+                Http2Connection connection = new Http2Connection(socket, false);
+                connection.setStreamHandler(Http2Tests.this::serve);
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        listener.stop();
+        server.stop();
+    }
+
+    // echoes the request body, or answers with the path. /large/n answers with n bytes, /hold never answers.
+    private void serve(final Http2Stream stream) {
+        final String path = stream.getHeaders().get(":path");
+        final ByteBufferList body = new ByteBufferList();
+        stream.setDataCallback(new DataCallback() {
+            @Override
+            public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                bb.get(body);
+            }
+        });
+        stream.setEndCallback(new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                if (path.equals("/hold"))
+                    return;
+                byte[] response;
+                if (path.startsWith("/large/"))
+                    response = new byte[Integer.parseInt(path.substring(7))];
+                else if (body.hasRemaining())
+                    response = body.getAllByteArray();
+                else
+                    response = path.getBytes();
+                Headers headers = new Headers();
+                headers.set(":status", "200");
+                headers.set("content-length", String.valueOf(response.length));
+                stream.writeHeaders(headers, false);
+                Util.writeAll(stream, response, new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        stream.end();
+                    }
+                });
+            }
+        });
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + listener.getLocalPort() + path;
+    }
+
+    private Future<Http2Connection> connect() {
+        final SimpleFuture<Http2Connection> ret = new SimpleFuture<Http2Connection>();
+        server.connectSocket("localhost", listener.getLocalPort(), new ConnectCallback() {
+            @Override
+            public void onConnectCompleted(Exception ex, AsyncSocket socket) {
+                if (ex != null)
+                    ret.setComplete(ex);
+                else
+                    ret.setComplete(new Http2Connection(socket, true));
+            }
+        });
+        return ret;
+    }
+
+    private static Headers get(String path) {
+        Headers headers = new Headers();
+        headers.set(":method", "GET");
+        headers.set(":scheme", "http");
+        headers.set(":authority", "localhost");
+        headers.set(":path", path);
+        return headers;
+    }
+
+    public void testStreamLimit() throws Exception {
+        final Http2Connection connection = connect().get(5000, TimeUnit.MILLISECONDS);
+        final int count = 101;
+        final List<String> refused = Collections.synchronizedList(new ArrayList<String>());
+        final SimpleFuture<Integer> done = new SimpleFuture<Integer>();
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    final Http2Stream stream = connection.newStream();
+                    stream.setEndCallback(new CompletedCallback() {
+                        @Override
+                        public void onCompleted(Exception ex) {
+                            refused.add(stream.getId() + ": " + ex.getMessage());
+                            done.setComplete(stream.getId());
+                        }
+                    });
+                    stream.writeHeaders(get("/hold"), true);
+                }
+            }
+        });
+        // only the stream past the advertised limit is reset, the others are left waiting
+        assertEquals(2 * count - 1, (int)done.get(5000, TimeUnit.MILLISECONDS));
+        Thread.sleep(200);
+        assertEquals(1, refused.size());
+        assertEquals((2 * count - 1) + ": stream reset by peer: 7", refused.get(0));
+    }
+
+    public void testHeaderFlood() throws Exception {
+        final Http2Connection connection = connect().get(5000, TimeUnit.MILLISECONDS);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 200 * 1024; i++) {
+            value.append((char)('!' + i % 90));
+        }
+        final Headers headers = get("/flood");
+        headers.set("x-flood", value.toString());
+        final SimpleFuture<String> reset = new SimpleFuture<String>();
+        final SimpleFuture<Boolean> closed = new SimpleFuture<Boolean>();
+        server.post(new Runnable() {
+            @Override
+            public void run() {
+                connection.setClosedCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        closed.setComplete(true);
+                    }
+                });
+                Http2Stream stream = connection.newStream();
+                stream.setEndCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        reset.setComplete(ex.getMessage());
+                    }
+                });
+                // sent as a HEADERS frame and a run of CONTINUATION frames
+                stream.writeHeaders(headers, true);
+            }
+        });
+        // the server gives up on the block part way through, and goes away with ENHANCE_YOUR_CALM
+        assertEquals("stream refused by GOAWAY: 11", reset.get(5000, TimeUnit.MILLISECONDS));
+        assertTrue(closed.get(5000, TimeUnit.MILLISECONDS));
+        assertFalse(connection.isOpen());
+    }
+
+    public void testMultiplexed() throws Exception {
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 20; i++) {
+            futures.add(client.executeString(new AsyncHttpGet(url("/" + i)), null));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("/" + i, futures.get(i).get(5000, TimeUnit.MILLISECONDS));
+        }
+        // and once more on the now idle connection
+        assertEquals("/again", client.executeString(new AsyncHttpGet(url("/again")), null).get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(1, connections.get());
+    }
+
+    public void testPost() throws Exception {
+        AsyncHttpPost post = new AsyncHttpPost(url("/echo"));
+        post.setBody(new StringBody("hello world"));
+        assertEquals("hello world", client.executeString(post, null).get(5000, TimeUnit.MILLISECONDS));
+    }
+
+    public void testFlowControl() throws Exception {
+        // larger than the receive windows, so the server has to wait for window updates
+        int length = 3 * 1024 * 1024;
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(client.executeString(new AsyncHttpGet(url("/large/" + length)), null));
+        }
+        for (Future<String> future: futures) {
+            assertEquals(length, future.get(10000, TimeUnit.MILLISECONDS).length());
+        }
+        assertEquals(1, connections.get());
+    }
+
+    public void testHttpServer() throws Exception {
+        AsyncHttpServer httpServer = new AsyncHttpServer();
+        httpServer.setHttp2Enabled(true);
+        httpServer.get("/hello/(\\d+)", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send("hello " + request.getMatcher().group(1) + " " + request.getHeaders().get("Host"));
+            }
+        });
+        httpServer.post("/echo", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send(request.getBody().get().toString());
+            }
+        });
+        AsyncServerSocket socket = httpServer.listen(server, 0);
+        try {
+            String base = "http://localhost:" + socket.getLocalPort();
+            ArrayList<Future<AsyncHttpResponse>> futures = new ArrayList<Future<AsyncHttpResponse>>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(client.execute(new AsyncHttpGet(base + "/hello/" + i), null));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                AsyncHttpResponse response = futures.get(i).get(5000, TimeUnit.MILLISECONDS);
+                assertEquals("h2", response.protocol());
+                assertEquals(200, response.code());
+            }
+            assertEquals("hello 3 localhost:" + socket.getLocalPort(), client.executeString(new AsyncHttpGet(base + "/hello/3"), null).get(5000, TimeUnit.MILLISECONDS));
+
+            AsyncHttpPost post = new AsyncHttpPost(base + "/echo");
+            post.setBody(new StringBody("hello world"));
+            assertEquals("hello world", client.executeString(post, null).get(5000, TimeUnit.MILLISECONDS));
+
+            AsyncHttpResponse missing = client.execute(new AsyncHttpGet(base + "/missing"), null).get(5000, TimeUnit.MILLISECONDS);
+            assertEquals(404, missing.code());
+
+            // HTTP/1.1 clients are still served on the same port
+            AsyncHttpClient http1 = new AsyncHttpClient(server);
+            assertEquals("hello 5 localhost:" + socket.getLocalPort(), http1.executeString(new AsyncHttpGet(base + "/hello/5"), null).get(5000, TimeUnit.MILLISECONDS));
+        }
+        finally {
+            socket.stop();
+        }
+    }
+}
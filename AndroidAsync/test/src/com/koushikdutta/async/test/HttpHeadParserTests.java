@@ -0,0 +1,100 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.FilteredDataEmitter;
+import com.koushikdutta.async.Util;
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.http.HttpHeadParser;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class HttpHeadParserTests extends TestCase {
+    static final String HEAD = "GET /index.html HTTP/1.1\r\n" +
+        "Host: example.com\r\n" +
+        "content-length:  4 \r\n" +
+        "X-Custom: a: b\r\n" +
+        "Empty:\r\n" +
+        "\r\n";
+
+    static class Result implements HttpHeadParser.HeadCallback {
+        String startLine;
+        Headers headers;
+
+        @Override
+        public boolean onStartLine(String line) {
+            startLine = line;
+            return true;
+        }
+
+        @Override
+        public void onHeadersReceived(Headers headers) {
+            this.headers = headers;
+        }
+    }
+
+    private static void check(Result result) {
+        assertEquals("GET /index.html HTTP/1.1", result.startLine);
+        assertNotNull(result.headers);
+        assertEquals("example.com", result.headers.get("host"));
+        assertEquals("4", result.headers.get("Content-Length"));
+        assertEquals("a: b", result.headers.get("x-custom"));
+        assertEquals("", result.headers.get("Empty"));
+        // the casing that was sent is kept for writing the headers back out
+        assertTrue(result.headers.toPrefixString("").contains("content-length: 4"));
+    }
+
+    public void testSplitEverywhere() {
+        byte[] bytes = (HEAD + "body").getBytes();
+        for (int split = 1; split < bytes.length; split++) {
+            final Result result = new Result();
+            final ByteBufferList body = new ByteBufferList();
+            final FilteredDataEmitter emitter = new FilteredDataEmitter() {
+                @Override
+                public boolean isPaused() {
+                    return false;
+                }
+            };
+            emitter.setDataCallback(new HttpHeadParser(new Headers(), new HttpHeadParser.HeadCallback() {
+                @Override
+                public boolean onStartLine(String line) {
+                    return result.onStartLine(line);
+                }
+
+                @Override
+                public void onHeadersReceived(Headers headers) {
+                    result.onHeadersReceived(headers);
+                    emitter.setDataCallback((e, bb) -> bb.get(body));
+                }
+            }));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length - split);
+            direct.put(bytes, split, bytes.length - split);
+            direct.flip();
+            Util.emitAllData(emitter, new ByteBufferList(ByteBuffer.wrap(bytes, 0, split)));
+            Util.emitAllData(emitter, new ByteBufferList(direct));
+
+            check(result);
+            assertEquals("body", body.readString());
+        }
+    }
+
+    public void testNotHttp() {
+        HttpHeadParser parser = new HttpHeadParser(new Headers(), new HttpHeadParser.HeadCallback() {
+            @Override
+            public boolean onStartLine(String line) {
+                return false;
+            }
+
+            @Override
+            public void onHeadersReceived(Headers headers) {
+                fail();
+            }
+        });
+        ByteBufferList bb = new ByteBufferList("hello\r\nworld\r\n\r\n".getBytes());
+        parser.onDataAvailable(null, bb);
+        // parsing stops right after the start line
+        assertEquals("world\r\n\r\n", bb.readString());
+    }
+}
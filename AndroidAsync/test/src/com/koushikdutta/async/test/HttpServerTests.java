@@ -1,9 +1,11 @@
 package com.koushikdutta.async.test;
 
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerGroup;
 import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.AsyncHttpPost;
+import com.koushikdutta.async.http.Headers;
 import com.koushikdutta.async.http.NameValuePair;
 import com.koushikdutta.async.http.body.JSONObjectBody;
 import com.koushikdutta.async.http.body.MultipartFormDataBody;
@@ -19,9 +21,16 @@ import junit.framework.TestCase;
 
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
 
 public class HttpServerTests extends TestCase {
     AsyncHttpServer httpServer;
@@ -132,6 +141,143 @@ public class HttpServerTests extends TestCase {
         assertEquals(contents, "hello");
     }
     
+    public void testHeaderBlock() throws Exception {
+        httpServer.addHeaders("/hello", new Headers()
+        .add("Server", "AndroidAsync")
+        .add("Cache-Control", "no-cache"));
+        httpServer.get("/override", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.getHeaders().set("Cache-Control", "max-age=60");
+                response.send("override");
+            }
+        });
+        httpServer.addHeaders("/override", new Headers().add("Cache-Control", "no-cache"));
+
+        HttpURLConnection conn = (HttpURLConnection)new URL("http://localhost:5000/hello").openConnection();
+        assertEquals("hello", StreamUtility.readToEnd(conn.getInputStream()));
+        assertEquals("AndroidAsync", conn.getHeaderField("Server"));
+        assertEquals("no-cache", conn.getHeaderField("Cache-Control"));
+        assertTrue(conn.getHeaderField("Date").endsWith(" GMT"));
+        assertTrue(conn.getDate() > 0);
+
+        conn = (HttpURLConnection)new URL("http://localhost:5000/override").openConnection();
+        assertEquals("override", StreamUtility.readToEnd(conn.getInputStream()));
+        assertEquals(Arrays.asList("max-age=60"), conn.getHeaderFields().get("Cache-Control"));
+        assertNull(conn.getHeaderField("Server"));
+    }
+
+    public void testServerGroup() throws Exception {
+        AsyncServerGroup group = new AsyncServerGroup(2);
+        AsyncHttpServer groupServer = new AsyncHttpServer();
+        groupServer.get("/thread", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send(Thread.currentThread().getName());
+            }
+        });
+        groupServer.listen(group, 5001);
+
+        try {
+            HashSet<String> threads = new HashSet<String>();
+            for (int i = 0; i < 4; i++) {
+                URLConnection conn = new URL("http://localhost:5001/thread").openConnection();
+                conn.setRequestProperty("Connection", "close");
+                InputStream is = conn.getInputStream();
+                threads.add(StreamUtility.readToEnd(is));
+                is.close();
+            }
+            assertEquals(2, threads.size());
+        }
+        finally {
+            groupServer.stop();
+            group.stop();
+        }
+    }
+
+    public void testSendFile() throws Exception {
+        final File file = File.createTempFile("sendfile", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[2 * 1024 * 1024];
+        new Random(0).nextBytes(data);
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(data);
+        fout.close();
+
+        httpServer.get("/file", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.sendFile(file);
+            }
+        });
+
+        HttpURLConnection conn = (HttpURLConnection)new URL("http://localhost:5000/file").openConnection();
+        InputStream is = conn.getInputStream();
+        assertTrue(Arrays.equals(data, StreamUtility.readToEndAsArray(is)));
+        is.close();
+
+        conn = (HttpURLConnection)new URL("http://localhost:5000/file").openConnection();
+        conn.setRequestProperty("Range", "bytes=1000-1999");
+        is = conn.getInputStream();
+        assertEquals(206, conn.getResponseCode());
+        assertEquals("bytes 1000-1999/" + data.length, conn.getHeaderField("Content-Range"));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 2000), StreamUtility.readToEndAsArray(is)));
+        is.close();
+    }
+
+    public void testPipelined() throws Exception {
+        final char[] large = new char[256 * 1024];
+        Arrays.fill(large, 'x');
+        httpServer.get("/slow", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, final AsyncHttpServerResponse response) {
+                AsyncServer.getDefault().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        response.send("slow");
+                    }
+                }, 200);
+            }
+        });
+        httpServer.get("/large", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send(new String(large));
+            }
+        });
+        httpServer.post("/body", new HttpServerRequestCallback() {
+            @Override
+            public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+                response.send("body " + request.getBody().get());
+            }
+        });
+
+        // everything in one write, the responses that are ready first have to wait their turn
+        Socket socket = new Socket("localhost", 5000);
+        try {
+            socket.getOutputStream().write((
+                "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "POST /body HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\nContent-Length: 3\r\n\r\nbar" +
+                "GET /hello HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes());
+            socket.setSoTimeout(10000);
+            String responses = new String(StreamUtility.readToEndAsArray(socket.getInputStream()));
+
+            int slow = responses.indexOf("\r\n\r\nslow");
+            int x = responses.indexOf(new String(large));
+            int body = responses.indexOf("\r\n\r\nbody bar");
+            int hello = responses.indexOf("\r\n\r\nhello");
+            assertTrue(slow > 0);
+            assertTrue(x > slow);
+            assertTrue(body > x);
+            assertTrue(hello > body);
+            assertEquals(4, responses.split("HTTP/1.1 200").length - 1);
+        }
+        finally {
+            socket.close();
+        }
+    }
+
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
@@ -0,0 +1,113 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipeliningTests extends TestCase {
+    AsyncServer server;
+    AsyncHttpClient client;
+    ServerSocket serverSocket;
+    final AtomicInteger connections = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new AsyncServer();
+        client = new AsyncHttpClient(server);
+        client.getSocketMiddleware().enablePipelining("localhost", 4);
+        serverSocket = new ServerSocket(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        serverSocket.close();
+        server.stop();
+    }
+
+    // reads request heads and returns their paths
+    private static ArrayList<String> readRequests(InputStream in, int count) throws Exception {
+        ArrayList<String> paths = new ArrayList<String>();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (paths.size() < count) {
+            int b = in.read();
+            if (b == -1)
+                break;
+            head.write(b);
+            String s = head.toString();
+            if (s.endsWith("\r\n\r\n")) {
+                paths.add(s.split(" ")[1]);
+                head.reset();
+            }
+        }
+        return paths;
+    }
+
+    private static void respond(OutputStream out, String body) throws Exception {
+        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body).getBytes());
+        out.flush();
+    }
+
+    // each connection answers the first "answer" of "count" requests and then closes.
+    private void serve(final int[] counts, final int[] answers) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < counts.length; i++) {
+                        Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        // every request arrives before a single response has been sent
+                        ArrayList<String> paths = readRequests(socket.getInputStream(), counts[i]);
+                        for (int r = 0; r < answers[i] && r < paths.size(); r++) {
+                            respond(socket.getOutputStream(), paths.get(r));
+                        }
+                        socket.close();
+                    }
+                }
+                catch (Exception e) {
+                }
+            }
+        }.start();
+    }
+
+    private ArrayList<Future<String>> get(int count) {
+        ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(client.executeString(new AsyncHttpGet("http://localhost:" + serverSocket.getLocalPort() + "/" + i), null));
+        }
+        return futures;
+    }
+
+    public void testPipelined() throws Exception {
+        serve(new int[] { 3 }, new int[] { 3 });
+        ArrayList<Future<String>> futures = get(3);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("/" + i, futures.get(i).get(5000, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(1, connections.get());
+    }
+
+    public void testRetryOnClose() throws Exception {
+        // the first connection closes after one response, the rest are sent again
+        serve(new int[] { 3, 2 }, new int[] { 1, 2 });
+        ArrayList<Future<String>> futures = get(3);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals("/" + i, futures.get(i).get(5000, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(2, connections.get());
+    }
+}
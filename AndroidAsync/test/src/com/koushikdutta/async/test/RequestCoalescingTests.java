@@ -0,0 +1,173 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.SimpleFuture;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.AsyncHttpGet;
+import com.koushikdutta.async.http.AsyncHttpRequest;
+import com.koushikdutta.async.http.AsyncHttpResponse;
+import com.koushikdutta.async.http.RequestCoalescingMiddleware;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RequestCoalescingTests extends TestCase {
+    AsyncServer server;
+    AsyncHttpClient client;
+    RequestCoalescingMiddleware coalescing;
+    AsyncHttpServer httpServer;
+    AsyncServerSocket listener;
+    AtomicInteger hits = new AtomicInteger();
+    String body;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < 1024 * 1024; i++) {
+            builder.append(i).append('\n');
+        }
+        body = builder.toString();
+
+        server = new AsyncServer();
+        client = new AsyncHttpClient(server);
+        coalescing = RequestCoalescingMiddleware.addCoalescing(client);
+        httpServer = new AsyncHttpServer();
+        httpServer.get("/slow", (request, response) -> {
+            hits.incrementAndGet();
+            server.postDelayed(() -> response.send(body), 200);
+        });
+        httpServer.get("/vary", (request, response) -> {
+            hits.incrementAndGet();
+            response.getHeaders().set("Vary", "X-Flavor");
+            server.postDelayed(() -> response.send(request.getHeaders().get("X-Flavor")), 200);
+        });
+        httpServer.get("/etag", (request, response) -> {
+            hits.incrementAndGet();
+            server.postDelayed(() -> {
+                if ("\"v1\"".equals(request.getHeaders().get("If-None-Match"))) {
+                    response.code(304).end();
+                    return;
+                }
+                response.getHeaders().set("ETag", "\"v1\"");
+                response.send(body);
+            }, 200);
+        });
+        listener = httpServer.listen(server, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        listener.stop();
+        server.stop();
+    }
+
+    private AsyncHttpRequest get(String path) {
+        return new AsyncHttpGet("http://localhost:" + listener.getLocalPort() + path);
+    }
+
+    public void testCoalesce() throws Exception {
+        ArrayList<Future<String>> responses = new ArrayList<Future<String>>();
+        for (int i = 0; i < 4; i++) {
+            responses.add(client.executeString(get("/slow"), null));
+        }
+        for (Future<String> response: responses) {
+            assertEquals(body, response.get(5000, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(1, hits.get());
+        assertEquals(1, coalescing.getExchangeCount());
+        assertEquals(3, coalescing.getCoalescedCount());
+
+        // done, so the next one goes out
+        assertEquals(body, client.executeString(get("/slow"), null).get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(2, hits.get());
+    }
+
+    public void testVary() throws Exception {
+        ArrayList<Future<String>> responses = new ArrayList<Future<String>>();
+        for (String flavor: new String[] { "a", "a", "b", "b" }) {
+            AsyncHttpRequest request = get("/vary");
+            request.getHeaders().set("X-Flavor", flavor);
+            responses.add(client.executeString(request, null));
+        }
+        assertEquals("a", responses.get(0).get(5000, TimeUnit.MILLISECONDS));
+        assertEquals("a", responses.get(1).get(5000, TimeUnit.MILLISECONDS));
+        assertEquals("b", responses.get(2).get(5000, TimeUnit.MILLISECONDS));
+        assertEquals("b", responses.get(3).get(5000, TimeUnit.MILLISECONDS));
+        // the b requests learned they differ once the first response came back
+        assertEquals(3, hits.get());
+    }
+
+    public void testConditional() throws Exception {
+        AsyncHttpRequest conditional = get("/etag");
+        conditional.getHeaders().set("If-None-Match", "\"v1\"");
+        Future<AsyncHttpResponse> notModified = client.execute(conditional, null);
+        // would have been handed the 304 had it waited on the request above
+        Future<String> plain = client.executeString(get("/etag"), null);
+
+        assertEquals(304, notModified.get(5000, TimeUnit.MILLISECONDS).code());
+        assertEquals(body, plain.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(2, hits.get());
+        assertEquals(0, coalescing.getCoalescedCount());
+    }
+
+    public void testNoCache() throws Exception {
+        Future<String> first = client.executeString(get("/slow"), null);
+        AsyncHttpRequest noCache = get("/slow");
+        noCache.getHeaders().set("Cache-Control", "no-cache");
+        Future<String> second = client.executeString(noCache, null);
+
+        assertEquals(body, first.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(body, second.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(2, hits.get());
+        assertEquals(0, coalescing.getCoalescedCount());
+    }
+
+    public void testSlowReader() throws Exception {
+        coalescing.setMaxBuffer(16 * 1024);
+        Future<String> fast = client.executeString(get("/slow"), null);
+
+        // this one stops reading for a while, which holds up the exchange without losing anything
+        final SimpleFuture<String> slow = new SimpleFuture<String>();
+        final ByteBufferList read = new ByteBufferList();
+        client.execute(get("/slow"), (ex, response) -> {
+            if (ex != null) {
+                slow.setComplete(ex);
+                return;
+            }
+            response.pause();
+            server.postDelayed(response::resume, 500);
+            response.setDataCallback((emitter, bb) -> bb.get(read));
+            response.setEndCallback(e -> {
+                if (e != null)
+                    slow.setComplete(e);
+                else
+                    slow.setComplete(read.readString());
+            });
+        });
+
+        assertEquals(body, fast.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(body, slow.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(1, hits.get());
+    }
+
+    public void testLeaderCancelled() throws Exception {
+        Future<String> first = client.executeString(get("/slow"), null);
+        Future<String> second = client.executeString(get("/slow"), null);
+        Thread.sleep(50);
+        first.cancel();
+
+        // the second one is sent in place of the first
+        assertEquals(body, second.get(5000, TimeUnit.MILLISECONDS));
+        assertEquals(2, coalescing.getExchangeCount());
+        assertEquals(1, coalescing.getCoalescedCount());
+    }
+}
@@ -0,0 +1,74 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.AsyncHttpServerRouter;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import junit.framework.TestCase;
+
+public class RouterTests extends TestCase {
+    static class Named implements HttpServerRequestCallback {
+        final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        }
+    }
+
+    private static String route(AsyncHttpServerRouter router, String method, String path) {
+        AsyncHttpServerRouter.RouteMatch match = router.route(method, path);
+        if (match == null)
+            return null;
+        return ((Named)match.callback).name;
+    }
+
+    public void testLiteralAndParams() {
+        AsyncHttpServerRouter router = new AsyncHttpServerRouter();
+        router.get("/users/(\\d+)", new Named("user"));
+        router.get("/users/me", new Named("me"));
+        router.get("/users/([^/]+)/posts", new Named("posts"));
+        router.post("/users", new Named("create"));
+        router.get("/files/favicon\\.ico", new Named("favicon"));
+
+        assertEquals("user", route(router, "GET", "/users/42"));
+        assertEquals("42", router.route("GET", "/users/42").matcher.group(1));
+        assertEquals("me", route(router, "GET", "/users/me"));
+        assertEquals("posts", route(router, "GET", "/users/bob/posts"));
+        assertEquals("create", route(router, "POST", "/users"));
+        assertEquals("favicon", route(router, "GET", "/files/favicon.ico"));
+        assertNull(route(router, "GET", "/users"));
+        assertNull(route(router, "GET", "/users/"));
+        assertNull(route(router, "GET", "/users/42/"));
+        assertNull(route(router, "PUT", "/users/42"));
+        assertNull(route(router, "GET", "/files/faviconxico"));
+    }
+
+    public void testFirstMatchWins() {
+        AsyncHttpServerRouter router = new AsyncHttpServerRouter();
+        router.get("/a/.*", new Named("regex"));
+        router.get("/a/b", new Named("literal"));
+        router.get("/c/([^/]+)", new Named("param"));
+        router.get("/c/d", new Named("shadowed"));
+        router.get("/c/.*", new Named("later regex"));
+
+        assertEquals("regex", route(router, "GET", "/a/b"));
+        assertEquals("param", route(router, "GET", "/c/d"));
+        assertEquals("later regex", route(router, "GET", "/c/d/e"));
+
+        router.removeAction("GET", "/a/.*");
+        assertEquals("literal", route(router, "GET", "/a/b"));
+    }
+
+    public void testWildcardMethod() {
+        AsyncHttpServerRouter router = new AsyncHttpServerRouter();
+        router.addAction(null, "/any", new Named("any"));
+        router.addAction("GET", "/any", new Named("get"));
+        assertEquals("any", route(router, "GET", "/any"));
+        assertEquals("any", route(router, "DELETE", "/any"));
+    }
+}
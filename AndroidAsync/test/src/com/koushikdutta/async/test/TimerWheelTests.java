@@ -0,0 +1,107 @@
+package com.koushikdutta.async.test;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.future.Cancellable;
+import com.koushikdutta.async.util.TimerWheel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class TimerWheelTests extends TestCase {
+    static class TestTimer extends TimerWheel.Timer {
+        int id;
+        TestTimer(int id) {
+            this.id = id;
+        }
+    }
+
+    public void testExpireOrder() {
+        TimerWheel<TestTimer> wheel = new TimerWheel<TestTimer>(16, 0);
+        TestTimer a = new TestTimer(0);
+        TestTimer b = new TestTimer(1);
+        TestTimer c = new TestTimer(2);
+        wheel.add(c, 10);
+        wheel.add(a, 3);
+        wheel.add(b, 3);
+        assertEquals(3, wheel.size());
+        assertEquals(3, wheel.getWait(0));
+
+        ArrayList<TestTimer> expired = new ArrayList<TestTimer>();
+        wheel.expire(2, expired);
+        assertEquals(0, expired.size());
+        wheel.expire(5, expired);
+        assertEquals(2, expired.size());
+        assertSame(a, expired.get(0));
+        assertSame(b, expired.get(1));
+        assertFalse(a.isScheduled());
+
+        wheel.expire(10, expired);
+        assertSame(c, expired.get(2));
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.getWait(10));
+    }
+
+    public void testRemove() {
+        TimerWheel<TestTimer> wheel = new TimerWheel<TestTimer>(16, 0);
+        TestTimer a = new TestTimer(0);
+        TestTimer b = new TestTimer(1);
+        wheel.add(a, 5);
+        wheel.add(b, 5);
+        assertTrue(wheel.remove(a));
+        assertFalse(wheel.remove(a));
+
+        ArrayList<TestTimer> expired = new ArrayList<TestTimer>();
+        wheel.expire(100, expired);
+        assertEquals(Collections.singletonList(b), expired);
+    }
+
+    public void testMultipleRevolutions() {
+        TimerWheel<TestTimer> wheel = new TimerWheel<TestTimer>(16, 0);
+        TestTimer far = new TestTimer(0);
+        wheel.add(far, 100);
+
+        ArrayList<TestTimer> expired = new ArrayList<TestTimer>();
+        for (long now = 1; now < 100; now += 7) {
+            wheel.expire(now, expired);
+            assertEquals(0, expired.size());
+            // the wait is a lower bound, never past the deadline
+            assertTrue(now + wheel.getWait(now) <= 100);
+        }
+        wheel.expire(100, expired);
+        assertEquals(1, expired.size());
+    }
+
+    public void testServerOrdering() throws Exception {
+        AsyncServer server = new AsyncServer();
+        final ArrayList<Integer> order = new ArrayList<Integer>();
+        final Semaphore semaphore = new Semaphore(0);
+        try {
+            server.run(new Runnable() {
+                @Override
+                public void run() {
+                    server.postDelayed(() -> {
+                        order.add(3);
+                        semaphore.release();
+                    }, 50);
+                    server.postDelayed(() -> order.add(2), 10);
+                    Cancellable cancelled = server.postDelayed(() -> order.add(-1), 20);
+                    server.post(() -> order.add(0));
+                    server.post(() -> order.add(1));
+                    assertTrue(cancelled.cancel());
+                }
+            });
+            assertTrue(semaphore.tryAcquire(5000, TimeUnit.MILLISECONDS));
+            assertEquals(4, order.size());
+            for (int i = 0; i < order.size(); i++) {
+                assertEquals(i, (int)order.get(i));
+            }
+        }
+        finally {
+            server.stop();
+        }
+    }
+}